@@ -34,23 +34,37 @@ import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.util.ByteUtil;
 import org.whispersystems.libsignal.util.Hex;
 import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
 
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class SealedSessionCipher {
 
+  private static final int STATIC_SECRET_CACHE_SIZE = 256;
+
+  // The static agreement only depends on the two identity keys, so it's the same for every
+  // message between them. A new identity key is simply a different entry.
+  private static final LinkedHashMap<IdentityPair, byte[]> staticSecrets = new LinkedHashMap<IdentityPair, byte[]>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<IdentityPair, byte[]> eldest) {
+      return size() > STATIC_SECRET_CACHE_SIZE;
+    }
+  };
+
   private final SignalProtocolStore   signalProtocolStore;
   private final LokiSessionResetProtocol lokiSessionResetProtocol;
   private final SignalProtocolAddress localAddress;
@@ -86,7 +100,7 @@ public class SealedSessionCipher {
           byte[]        staticKeyCiphertext = encrypt(ephemeralKeys.cipherKey, ephemeralKeys.macKey, ourIdentity.getPublicKey().getPublicKey().serialize());
 
           byte[]                           staticSalt   = ByteUtil.combine(ephemeralKeys.chainKey, staticKeyCiphertext);
-          StaticKeys                       staticKeys   = calculateStaticKeys(theirIdentity, ourIdentity.getPrivateKey(), staticSalt);
+          StaticKeys                       staticKeys   = calculateStaticKeys(theirIdentity, ourIdentity, staticSalt);
           UnidentifiedSenderMessageContent content      = new UnidentifiedSenderMessageContent(message.getType(), senderCertificate, message.serialize());
           byte[]                           messageBytes = encrypt(staticKeys.cipherKey, staticKeys.macKey, content.getSerialized());
 
@@ -108,6 +122,16 @@ public class SealedSessionCipher {
       ProtocolInvalidVersionException, ProtocolDuplicateMessageException,
       ProtocolInvalidKeyIdException, ProtocolUntrustedIdentityException,
       SelfSendException
+  {
+    return decryptContent(unseal(validator, ciphertext, timestamp));
+  }
+
+  /**
+   * Decrypt the outer layer of a sealed session message, which reveals and validates its sender
+   * without touching any session state, so it's safe to do for many messages at once.
+   */
+  public UnidentifiedSenderMessageContent unseal(CertificateValidator validator, byte[] ciphertext, long timestamp)
+      throws InvalidMetadataMessageException, InvalidMetadataVersionException, SelfSendException
   {
     UnidentifiedSenderMessageContent content;
 
@@ -120,7 +144,7 @@ public class SealedSessionCipher {
 
       ECPublicKey staticKey    = Curve.decodePoint(staticKeyBytes, 0);
       byte[]      staticSalt   = ByteUtil.combine(ephemeralKeys.chainKey, wrapper.getEncryptedStatic());
-      StaticKeys  staticKeys   = calculateStaticKeys(staticKey, ourIdentity.getPrivateKey(), staticSalt);
+      StaticKeys  staticKeys   = calculateStaticKeys(staticKey, ourIdentity, staticSalt);
       byte[]      messageBytes = decrypt(staticKeys.cipherKey, staticKeys.macKey, wrapper.getEncryptedMessage());
 
       content = new UnidentifiedSenderMessageContent(messageBytes);
@@ -139,6 +163,20 @@ public class SealedSessionCipher {
       throw new InvalidMetadataMessageException(e);
     }
 
+    return content;
+  }
+
+  /**
+   * Decrypt the message within a sealed session message, from {@link #unseal(CertificateValidator, byte[], long)}.
+   * Messages from the same sender have to be decrypted in order.
+   */
+  public Pair<SignalProtocolAddress, Pair<Integer, byte[]>> decryptContent(UnidentifiedSenderMessageContent content)
+      throws
+      ProtocolInvalidMessageException, ProtocolInvalidKeyException,
+      ProtocolNoSessionException, ProtocolLegacyMessageException,
+      ProtocolInvalidVersionException, ProtocolDuplicateMessageException,
+      ProtocolInvalidKeyIdException, ProtocolUntrustedIdentityException
+  {
     try {
         Pair<Integer, byte[]> dataPair = new Pair<>(content.getType(), decrypt(content));
         return new Pair<>(
@@ -184,9 +222,30 @@ public class SealedSessionCipher {
     }
   }
 
-  private StaticKeys calculateStaticKeys(ECPublicKey staticPublic, ECPrivateKey staticPrivate, byte[] salt) throws InvalidKeyException {
+  /**
+   * Forget the cached static agreements with an identity key, e.g. once it's been replaced.
+   */
+  public static void invalidateStaticSecrets(ECPublicKey theirIdentity) {
+    synchronized (staticSecrets) {
+      Iterator<IdentityPair> iterator = staticSecrets.keySet().iterator();
+
+      while (iterator.hasNext()) {
+        if (iterator.next().hasRemote(theirIdentity)) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  public static void clearStaticSecrets() {
+    synchronized (staticSecrets) {
+      staticSecrets.clear();
+    }
+  }
+
+  private StaticKeys calculateStaticKeys(ECPublicKey staticPublic, IdentityKeyPair ourIdentity, byte[] salt) throws InvalidKeyException {
     try {
-      byte[]      staticSecret       = Curve.calculateAgreement(staticPublic, staticPrivate);
+      byte[]      staticSecret       = getStaticSecret(staticPublic, ourIdentity);
       byte[]      staticDerived      = new HKDFv3().deriveSecrets(staticSecret, salt, new byte[0], 96);
       byte[][]    staticDerivedParts = ByteUtil.split(staticDerived, 32, 32, 32);
 
@@ -196,6 +255,25 @@ public class SealedSessionCipher {
     }
   }
 
+  private byte[] getStaticSecret(ECPublicKey staticPublic, IdentityKeyPair ourIdentity) throws InvalidKeyException {
+    IdentityPair key = new IdentityPair(ourIdentity.getPublicKey().getPublicKey(), staticPublic);
+    byte[]       secret;
+
+    synchronized (staticSecrets) {
+      secret = staticSecrets.get(key);
+    }
+
+    if (secret == null) {
+      secret = Curve.calculateAgreement(staticPublic, ourIdentity.getPrivateKey());
+
+      synchronized (staticSecrets) {
+        staticSecrets.put(key, secret);
+      }
+    }
+
+    return secret;
+  }
+
   private byte[] decrypt(UnidentifiedSenderMessageContent message)
       throws InvalidVersionException, InvalidMessageException, InvalidKeyException, DuplicateMessageException, InvalidKeyIdException, UntrustedIdentityException, LegacyMessageException, NoSessionException
   {
@@ -219,10 +297,10 @@ public class SealedSessionCipher {
 
   private byte[] encrypt(SecretKeySpec cipherKey, SecretKeySpec macKey, byte[] plaintext) {
     try {
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      Cipher cipher = CryptoPrimitives.getAesCtr();
       cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(new byte[16]));
 
-      Mac mac = Mac.getInstance("HmacSHA256");
+      Mac mac = CryptoPrimitives.getHmacSha256();
       mac.init(macKey);
 
       byte[] ciphertext = cipher.doFinal(plaintext);
@@ -230,10 +308,6 @@ public class SealedSessionCipher {
       byte[] ourMac     = ByteUtil.trim(ourFullMac, 10);
 
       return ByteUtil.combine(ciphertext, ourMac);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
     } catch (java.security.InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (BadPaddingException e) {
@@ -253,7 +327,7 @@ public class SealedSessionCipher {
 
       byte[][] ciphertextParts = ByteUtil.split(ciphertext, ciphertext.length - 10, 10);
 
-      Mac mac = Mac.getInstance("HmacSHA256");
+      Mac mac = CryptoPrimitives.getHmacSha256();
       mac.init(macKey);
 
       byte[] digest   = mac.doFinal(ciphertextParts[0]);
@@ -264,16 +338,12 @@ public class SealedSessionCipher {
         throw new InvalidMacException("Bad mac!");
       }
 
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      Cipher cipher = CryptoPrimitives.getAesCtr();
       cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(new byte[16]));
 
       return cipher.doFinal(ciphertextParts[0]);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (java.security.InvalidKeyException e) {
       throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
     } catch (InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     } catch (IllegalBlockSizeException e) {
@@ -296,6 +366,33 @@ public class SealedSessionCipher {
     }
   }
 
+  private static class IdentityPair {
+    private final byte[] local;
+    private final byte[] remote;
+
+    private IdentityPair(ECPublicKey local, ECPublicKey remote) {
+      this.local  = local.serialize();
+      this.remote = remote.serialize();
+    }
+
+    private boolean hasRemote(ECPublicKey remote) {
+      return Arrays.equals(this.remote, remote.serialize());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof IdentityPair)) return false;
+
+      IdentityPair that = (IdentityPair) other;
+      return Arrays.equals(local, that.local) && Arrays.equals(remote, that.remote);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(local) ^ Arrays.hashCode(remote);
+    }
+  }
+
   private static class StaticKeys {
     private final SecretKeySpec cipherKey;
     private final SecretKeySpec macKey;
@@ -27,6 +27,7 @@ import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -383,10 +384,11 @@ public class SessionCipher {
       throw new InvalidMessageException("Over 2000 messages into the future!");
     }
 
-    while (chainKey.getIndex() < counter) {
-      MessageKeys messageKeys = chainKey.getMessageKeys();
-      sessionState.setMessageKeys(theirEphemeral, messageKeys);
-      chainKey = chainKey.getNextChainKey();
+    if (chainKey.getIndex() < counter) {
+      List<MessageKeys> skippedKeys = new ArrayList<MessageKeys>(counter - chainKey.getIndex());
+
+      chainKey = chainKey.getChainKeyAt(counter, skippedKeys);
+      sessionState.setMessageKeys(theirEphemeral, skippedKeys);
     }
 
     sessionState.setReceiverChainKey(theirEphemeral, chainKey.getNextChainKey());
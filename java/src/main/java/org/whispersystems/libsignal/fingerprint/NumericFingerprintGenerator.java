@@ -92,11 +92,14 @@ public class NumericFingerprintGenerator implements FingerprintGenerator {
   }
 
   private byte[] getFingerprint(int iterations, String stableIdentifier, List<IdentityKey> unsortedIdentityKeys) {
+    return getFingerprint(iterations, stableIdentifier, getLogicalKeyBytes(unsortedIdentityKeys));
+  }
+
+  static byte[] getFingerprint(int iterations, String stableIdentifier, byte[] publicKey) {
     try {
-      MessageDigest digest    = MessageDigest.getInstance("SHA-512");
-      byte[]        publicKey = getLogicalKeyBytes(unsortedIdentityKeys);
-      byte[]        hash      = ByteUtil.combine(ByteUtil.shortToByteArray(FINGERPRINT_VERSION),
-                                                 publicKey, stableIdentifier.getBytes());
+      MessageDigest digest = MessageDigest.getInstance("SHA-512");
+      byte[]        hash   = ByteUtil.combine(ByteUtil.shortToByteArray(FINGERPRINT_VERSION),
+                                              publicKey, stableIdentifier.getBytes());
 
       for (int i=0;i<iterations;i++) {
         digest.update(hash);
@@ -109,7 +112,7 @@ public class NumericFingerprintGenerator implements FingerprintGenerator {
     }
   }
 
-  private byte[] getLogicalKeyBytes(List<IdentityKey> identityKeys) {
+  static byte[] getLogicalKeyBytes(List<IdentityKey> identityKeys) {
     ArrayList<IdentityKey> sortedIdentityKeys = new ArrayList<IdentityKey>(identityKeys);
     Collections.sort(sortedIdentityKeys, new IdentityKeyComparator());
 
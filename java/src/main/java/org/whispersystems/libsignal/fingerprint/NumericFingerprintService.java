@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.fingerprint;
+
+import org.whispersystems.libsignal.IdentityKey;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link FingerprintGenerator} producing the same 60 digit numerics as
+ * {@link NumericFingerprintGenerator}, but which memoizes the result of the
+ * iterated hash for each (stable identifier, identity key set) pair in a bounded
+ * LRU cache. The local half of a fingerprint is computed once per process rather
+ * than on every comparison.
+ *
+ * Local and remote halves are hashed concurrently on the supplied {@link Executor},
+ * and {@link #createFor(String, List, Map)} verifies many contacts at once. If the
+ * calling thread is interrupted while waiting for a hash, its interrupt flag is kept
+ * and a {@link CancellationException} is thrown.
+ */
+public class NumericFingerprintService implements FingerprintGenerator {
+
+  private final int                                   iterations;
+  private final Executor                              executor;
+  private final LinkedHashMap<CacheKey, Future<byte[]>> cache;
+
+  /**
+   * @param iterations The number of internal iterations, see {@link NumericFingerprintGenerator}.
+   * @param cacheSize The maximum number of fingerprint halves to remember.
+   * @param executor The executor to hash fingerprint halves on.
+   */
+  public NumericFingerprintService(int iterations, final int cacheSize, Executor executor) {
+    this.iterations = iterations;
+    this.executor   = executor;
+    this.cache      = new LinkedHashMap<CacheKey, Future<byte[]>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, Future<byte[]>> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  @Override
+  public Fingerprint createFor(String localStableIdentifier, IdentityKey localIdentityKey,
+                               String remoteStableIdentifier, IdentityKey remoteIdentityKey)
+  {
+    return createFor(localStableIdentifier, Collections.singletonList(localIdentityKey),
+                     remoteStableIdentifier, Collections.singletonList(remoteIdentityKey));
+  }
+
+  @Override
+  public Fingerprint createFor(String localStableIdentifier, List<IdentityKey> localIdentityKeys,
+                               String remoteStableIdentifier, List<IdentityKey> remoteIdentityKeys)
+  {
+    Future<byte[]> localFingerprint  = getFingerprint(localStableIdentifier, localIdentityKeys, true);
+    Future<byte[]> remoteFingerprint = getFingerprint(remoteStableIdentifier, remoteIdentityKeys, false);
+
+    return createFingerprint(get(localFingerprint), get(remoteFingerprint));
+  }
+
+  /**
+   * Generate fingerprints for many contacts against the same local identity, e.g. to
+   * re-verify safety numbers after a device restore.
+   *
+   * @param localStableIdentifier The client's "stable" identifier.
+   * @param localIdentityKeys The client's collection of physical identity keys.
+   * @param remoteIdentityKeys The remote parties' identity keys, keyed by their "stable" identifiers.
+   * @return A fingerprint for each remote party, keyed by their "stable" identifier.
+   */
+  public Map<String, Fingerprint> createFor(String localStableIdentifier, List<IdentityKey> localIdentityKeys,
+                                            Map<String, List<IdentityKey>> remoteIdentityKeys)
+  {
+    Future<byte[]>              localFingerprint   = getFingerprint(localStableIdentifier, localIdentityKeys, true);
+    Map<String, Future<byte[]>> remoteFingerprints = new LinkedHashMap<String, Future<byte[]>>();
+    Map<String, Fingerprint>    results            = new LinkedHashMap<String, Fingerprint>();
+
+    for (Map.Entry<String, List<IdentityKey>> remote : remoteIdentityKeys.entrySet()) {
+      remoteFingerprints.put(remote.getKey(), getFingerprint(remote.getKey(), remote.getValue(), true));
+    }
+
+    byte[] local = get(localFingerprint);
+
+    for (Map.Entry<String, Future<byte[]>> remote : remoteFingerprints.entrySet()) {
+      results.put(remote.getKey(), createFingerprint(local, get(remote.getValue())));
+    }
+
+    return results;
+  }
+
+  public void clearCache() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  private Future<byte[]> getFingerprint(final String stableIdentifier, List<IdentityKey> identityKeys,
+                                        boolean async)
+  {
+    final byte[]             publicKey = NumericFingerprintGenerator.getLogicalKeyBytes(identityKeys);
+    final CacheKey           cacheKey  = new CacheKey(stableIdentifier, publicKey);
+    final FutureTask<byte[]> task;
+
+    synchronized (cache) {
+      Future<byte[]> cached = cache.get(cacheKey);
+
+      if (cached != null) {
+        return cached;
+      }
+
+      task = new FutureTask<byte[]>(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return NumericFingerprintGenerator.getFingerprint(iterations, stableIdentifier, publicKey);
+        }
+      });
+
+      cache.put(cacheKey, task);
+    }
+
+    if (async) {
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        task.run();
+      }
+    } else {
+      task.run();
+    }
+
+    return task;
+  }
+
+  private static Fingerprint createFingerprint(byte[] localFingerprint, byte[] remoteFingerprint) {
+    return new Fingerprint(new DisplayableFingerprint(localFingerprint, remoteFingerprint),
+                           new ScannableFingerprint(localFingerprint, remoteFingerprint));
+  }
+
+  private static byte[] get(Future<byte[]> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw (CancellationException) new CancellationException("Interrupted while waiting for a fingerprint").initCause(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error)            throw (Error) e.getCause();
+      throw new AssertionError(e);
+    }
+  }
+
+  private static final class CacheKey {
+    private final String stableIdentifier;
+    private final byte[] publicKey;
+
+    private CacheKey(String stableIdentifier, byte[] publicKey) {
+      this.stableIdentifier = stableIdentifier;
+      this.publicKey        = publicKey;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == null)                   return false;
+      if (!(other instanceof CacheKey))    return false;
+
+      CacheKey that = (CacheKey)other;
+      return this.stableIdentifier.equals(that.stableIdentifier) &&
+             Arrays.equals(this.publicKey, that.publicKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return stableIdentifier.hashCode() ^ Arrays.hashCode(publicKey);
+    }
+  }
+}
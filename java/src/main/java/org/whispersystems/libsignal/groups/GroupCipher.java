@@ -20,6 +20,8 @@ import org.whispersystems.libsignal.protocol.SenderKeyMessage;
 
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -36,11 +38,21 @@ import javax.crypto.spec.SecretKeySpec;
  * distributed to each member of the group, this class can be used for all subsequent encrypt/decrypt
  * operations within that session (ie: until group membership changes).
  *
+ * Operations are serialized per {@link SenderKeyName} rather than globally, so the
+ * {@link SenderKeyStore} must tolerate concurrent access for distinct sender keys.
+ *
  * @author Moxie Marlinspike
  */
 public class GroupCipher {
 
-  static final Object LOCK = new Object();
+  private static final int      LOCK_STRIPES = 64;
+  private static final Object[] LOCKS        = new Object[LOCK_STRIPES];
+
+  static {
+    for (int i=0;i<LOCK_STRIPES;i++) {
+      LOCKS[i] = new Object();
+    }
+  }
 
   private final SenderKeyStore senderKeyStore;
   private final SenderKeyName senderKeyId;
@@ -58,7 +70,7 @@ public class GroupCipher {
    * @throws NoSessionException
    */
   public byte[] encrypt(byte[] paddedPlaintext) throws NoSessionException {
-    synchronized (LOCK) {
+    synchronized (getLock(senderKeyId)) {
       try {
         SenderKeyRecord  record         = senderKeyStore.loadSenderKey(senderKeyId);
         SenderKeyState   senderKeyState = record.getSenderKeyState();
@@ -115,7 +127,7 @@ public class GroupCipher {
       throws LegacyMessageException, InvalidMessageException, DuplicateMessageException,
              NoSessionException
   {
-    synchronized (LOCK) {
+    synchronized (getLock(senderKeyId)) {
       try {
         SenderKeyRecord record = senderKeyStore.loadSenderKey(senderKeyId);
 
@@ -163,15 +175,28 @@ public class GroupCipher {
       throw new InvalidMessageException("Over 2000 messages into the future!");
     }
 
-    while (senderChainKey.getIteration() < iteration) {
-      senderKeyState.addSenderMessageKey(senderChainKey.getSenderMessageKey());
-      senderChainKey = senderChainKey.getNext();
+    if (senderChainKey.getIteration() < iteration) {
+      List<SenderMessageKey> skippedKeys = new ArrayList<SenderMessageKey>(iteration - senderChainKey.getIteration());
+
+      while (senderChainKey.getIteration() < iteration) {
+        skippedKeys.add(senderChainKey.getSenderMessageKey());
+        senderChainKey = senderChainKey.getNext();
+      }
+
+      senderKeyState.addSenderMessageKeys(skippedKeys);
     }
 
     senderKeyState.setSenderChainKey(senderChainKey.getNext());
     return senderChainKey.getSenderMessageKey();
   }
 
+  static Object getLock(SenderKeyName senderKeyName) {
+    int hash = senderKeyName.hashCode();
+    hash ^= (hash >>> 16);
+
+    return LOCKS[(hash & 0x7fffffff) % LOCK_STRIPES];
+  }
+
   private byte[] getPlainText(byte[] iv, byte[] key, byte[] ciphertext)
       throws InvalidMessageException
   {
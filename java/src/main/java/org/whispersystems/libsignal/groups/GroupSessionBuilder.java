@@ -44,7 +44,7 @@ public class GroupSessionBuilder {
    * @param senderKeyDistributionMessage A received SenderKeyDistributionMessage.
    */
   public void process(SenderKeyName senderKeyName, SenderKeyDistributionMessage senderKeyDistributionMessage) {
-    synchronized (GroupCipher.LOCK) {
+    synchronized (GroupCipher.getLock(senderKeyName)) {
       SenderKeyRecord senderKeyRecord = senderKeyStore.loadSenderKey(senderKeyName);
       senderKeyRecord.addSenderKeyState(senderKeyDistributionMessage.getId(),
                                         senderKeyDistributionMessage.getIteration(),
@@ -61,7 +61,7 @@ public class GroupSessionBuilder {
    * @return A SenderKeyDistributionMessage that is individually distributed to each member of the group.
    */
   public SenderKeyDistributionMessage create(SenderKeyName senderKeyName) {
-    synchronized (GroupCipher.LOCK) {
+    synchronized (GroupCipher.getLock(senderKeyName)) {
       try {
         SenderKeyRecord senderKeyRecord = senderKeyStore.loadSenderKey(senderKeyName);
 
@@ -16,9 +16,11 @@ import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SenderKeyStateStructure;
 
@@ -33,6 +35,9 @@ public class SenderKeyState {
 
   private SenderKeyStateStructure senderKeyStateStructure;
 
+  private Map<Integer, SenderKeyStateStructure.SenderMessageKey> senderMessageKeys;
+  private boolean                                                senderMessageKeysModified;
+
   public SenderKeyState(int id, int iteration, byte[] chainKey, ECPublicKey signatureKey) {
     this(id, iteration, chainKey, signatureKey, Optional.<ECPrivateKey>absent());
   }
@@ -103,53 +108,41 @@ public class SenderKeyState {
   }
 
   public boolean hasSenderMessageKey(int iteration) {
-    for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : senderKeyStateStructure.getSenderMessageKeysList()) {
-      if (senderMessageKey.getIteration() == iteration) return true;
-    }
-
-    return false;
+    return getSenderMessageKeys().containsKey(iteration);
   }
 
   public void addSenderMessageKey(SenderMessageKey senderMessageKey) {
-    SenderKeyStateStructure.SenderMessageKey senderMessageKeyStructure =
-        SenderKeyStateStructure.SenderMessageKey.newBuilder()
-                                                .setIteration(senderMessageKey.getIteration())
-                                                .setSeed(ByteString.copyFrom(senderMessageKey.getSeed()))
-                                                .build();
+    addSenderMessageKeys(Collections.singletonList(senderMessageKey));
+  }
 
-    SenderKeyStateStructure.Builder builder = this.senderKeyStateStructure.toBuilder();
+  public void addSenderMessageKeys(List<SenderMessageKey> senderMessageKeyList) {
+    Map<Integer, SenderKeyStateStructure.SenderMessageKey> senderMessageKeys = getSenderMessageKeys();
 
-    builder.addSenderMessageKeys(senderMessageKeyStructure);
+    for (SenderMessageKey senderMessageKey : senderMessageKeyList) {
+      SenderKeyStateStructure.SenderMessageKey senderMessageKeyStructure =
+          SenderKeyStateStructure.SenderMessageKey.newBuilder()
+                                                  .setIteration(senderMessageKey.getIteration())
+                                                  .setSeed(ByteString.copyFrom(senderMessageKey.getSeed()))
+                                                  .build();
 
-    if (builder.getSenderMessageKeysCount() > MAX_MESSAGE_KEYS) {
-      builder.removeSenderMessageKeys(0);
+      senderMessageKeys.put(senderMessageKey.getIteration(), senderMessageKeyStructure);
     }
 
-    this.senderKeyStateStructure = builder.build();
-  }
-
-  public SenderMessageKey removeSenderMessageKey(int iteration) {
-    List<SenderKeyStateStructure.SenderMessageKey>     keys     = new LinkedList<SenderKeyStateStructure.SenderMessageKey>(senderKeyStateStructure.getSenderMessageKeysList());
-    Iterator<SenderKeyStateStructure.SenderMessageKey> iterator = keys.iterator();
-
-    SenderKeyStateStructure.SenderMessageKey result = null;
+    Iterator<Integer> iterator = senderMessageKeys.keySet().iterator();
 
-    while (iterator.hasNext()) {
-      SenderKeyStateStructure.SenderMessageKey senderMessageKey = iterator.next();
-
-      if (senderMessageKey.getIteration() == iteration) {
-        result = senderMessageKey;
-        iterator.remove();
-        break;
-      }
+    while (senderMessageKeys.size() > MAX_MESSAGE_KEYS) {
+      iterator.next();
+      iterator.remove();
     }
 
-    this.senderKeyStateStructure = this.senderKeyStateStructure.toBuilder()
-                                                               .clearSenderMessageKeys()
-                                                               .addAllSenderMessageKeys(keys)
-                                                               .build();
+    senderMessageKeysModified = true;
+  }
+
+  public SenderMessageKey removeSenderMessageKey(int iteration) {
+    SenderKeyStateStructure.SenderMessageKey result = getSenderMessageKeys().remove(iteration);
 
     if (result != null) {
+      senderMessageKeysModified = true;
       return new SenderMessageKey(result.getIteration(), result.getSeed().toByteArray());
     } else {
       return null;
@@ -157,6 +150,31 @@ public class SenderKeyState {
   }
 
   public SenderKeyStateStructure getStructure() {
+    if (senderMessageKeysModified) {
+      this.senderKeyStateStructure = senderKeyStateStructure.toBuilder()
+                                                            .clearSenderMessageKeys()
+                                                            .addAllSenderMessageKeys(senderMessageKeys.values())
+                                                            .build();
+      this.senderMessageKeysModified = false;
+    }
+
     return senderKeyStateStructure;
   }
+
+  /**
+   * Skipped message keys are indexed by iteration and only written back to the
+   * protobuf structure when it is next requested, so a burst of out-of-order
+   * messages doesn't rebuild the structure once per message.
+   */
+  private Map<Integer, SenderKeyStateStructure.SenderMessageKey> getSenderMessageKeys() {
+    if (senderMessageKeys == null) {
+      senderMessageKeys = new LinkedHashMap<Integer, SenderKeyStateStructure.SenderMessageKey>();
+
+      for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : senderKeyStateStructure.getSenderMessageKeysList()) {
+        senderMessageKeys.put(senderMessageKey.getIteration(), senderMessageKey);
+      }
+    }
+
+    return senderMessageKeys;
+  }
 }
@@ -6,7 +6,6 @@
 
 package org.whispersystems.libsignal.kdf;
 
-import java.io.ByteArrayOutputStream;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
@@ -31,33 +30,42 @@ public abstract class HKDF {
   }
 
   public byte[] deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info, int outputLength) {
-    byte[] prk = extract(salt, inputKeyMaterial);
-    return expand(prk, info, outputLength);
+    return deriveSecrets(getMac(), inputKeyMaterial, salt, info, outputLength);
   }
 
-  private byte[] extract(byte[] salt, byte[] inputKeyMaterial) {
+  /**
+   * Derives secrets with a caller-supplied HmacSHA256 instance, so that callers deriving
+   * many secrets in a loop don't pay for a provider lookup on every derivation.
+   */
+  public byte[] deriveSecrets(Mac mac, byte[] inputKeyMaterial, byte[] info, int outputLength) {
+    byte[] salt = new byte[HASH_OUTPUT_SIZE];
+    return deriveSecrets(mac, inputKeyMaterial, salt, info, outputLength);
+  }
+
+  public byte[] deriveSecrets(Mac mac, byte[] inputKeyMaterial, byte[] salt, byte[] info, int outputLength) {
+    byte[] prk = extract(mac, salt, inputKeyMaterial);
+    return expand(mac, prk, info, outputLength);
+  }
+
+  private byte[] extract(Mac mac, byte[] salt, byte[] inputKeyMaterial) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
       mac.init(new SecretKeySpec(salt, "HmacSHA256"));
       return mac.doFinal(inputKeyMaterial);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
   }
 
-  private byte[] expand(byte[] prk, byte[] info, int outputSize) {
+  private byte[] expand(Mac mac, byte[] prk, byte[] info, int outputSize) {
     try {
-      int                   iterations     = (int) Math.ceil((double) outputSize / (double) HASH_OUTPUT_SIZE);
-      byte[]                mixin          = new byte[0];
-      ByteArrayOutputStream results        = new ByteArrayOutputStream();
-      int                   remainingBytes = outputSize;
+      int    iterations     = (int) Math.ceil((double) outputSize / (double) HASH_OUTPUT_SIZE);
+      byte[] mixin          = new byte[0];
+      byte[] results        = new byte[outputSize];
+      int    remainingBytes = outputSize;
 
-      for (int i= getIterationStartOffset();i<iterations + getIterationStartOffset();i++) {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+      mac.init(new SecretKeySpec(prk, "HmacSHA256"));
 
+      for (int i= getIterationStartOffset();i<iterations + getIterationStartOffset();i++) {
         mac.update(mixin);
         if (info != null) {
           mac.update(info);
@@ -67,20 +75,26 @@ public abstract class HKDF {
         byte[] stepResult = mac.doFinal();
         int    stepSize   = Math.min(remainingBytes, stepResult.length);
 
-        results.write(stepResult, 0, stepSize);
+        System.arraycopy(stepResult, 0, results, outputSize - remainingBytes, stepSize);
 
         mixin          = stepResult;
         remainingBytes -= stepSize;
       }
 
-      return results.toByteArray();
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
+      return results;
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
   }
 
+  private static Mac getMac() {
+    try {
+      return Mac.getInstance("HmacSHA256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   protected abstract int getIterationStartOffset();
 
 }
@@ -11,8 +11,10 @@ import org.whispersystems.libsignal.kdf.HKDF;
 
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 public class ChainKey {
@@ -20,6 +22,8 @@ public class ChainKey {
   private static final byte[] MESSAGE_KEY_SEED = {0x01};
   private static final byte[] CHAIN_KEY_SEED   = {0x02};
 
+  private static final byte[] MESSAGE_KEYS_INFO = "WhisperMessageKeys".getBytes();
+
   private final HKDF   kdf;
   private final byte[] key;
   private final int    index;
@@ -44,23 +48,74 @@ public class ChainKey {
   }
 
   public MessageKeys getMessageKeys() {
-    byte[]                inputKeyMaterial = getBaseMaterial(MESSAGE_KEY_SEED);
-    byte[]                keyMaterialBytes = kdf.deriveSecrets(inputKeyMaterial, "WhisperMessageKeys".getBytes(), DerivedMessageSecrets.SIZE);
+    Mac    mac              = getMac();
+    byte[] inputKeyMaterial = getBaseMaterial(mac, key, MESSAGE_KEY_SEED);
+
+    return deriveMessageKeys(mac, inputKeyMaterial, index);
+  }
+
+  /**
+   * Steps the chain forward to {@code targetIndex}, appending the message keys for every
+   * skipped index to {@code skippedKeys}. One Mac instance and one set of scratch buffers
+   * are reused for the whole walk, instead of a fresh HMAC per step.
+   *
+   * @return the chain key at {@code targetIndex}.
+   */
+  public ChainKey getChainKeyAt(int targetIndex, List<MessageKeys> skippedKeys) {
+    if (targetIndex <= index) {
+      return this;
+    }
+
+    try {
+      Mac    mac              = getMac();
+      byte[] currentKey       = key.clone();
+      byte[] inputKeyMaterial = new byte[mac.getMacLength()];
+      int    currentIndex     = index;
+
+      while (currentIndex < targetIndex) {
+        mac.init(new SecretKeySpec(currentKey, "HmacSHA256"));
+        mac.update(MESSAGE_KEY_SEED);
+        mac.doFinal(inputKeyMaterial, 0);
+
+        mac.update(CHAIN_KEY_SEED);
+        mac.doFinal(currentKey, 0);
+
+        skippedKeys.add(deriveMessageKeys(mac, inputKeyMaterial, currentIndex));
+        currentIndex++;
+      }
+
+      return new ChainKey(kdf, currentKey, currentIndex);
+    } catch (InvalidKeyException | ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private MessageKeys deriveMessageKeys(Mac mac, byte[] inputKeyMaterial, int counter) {
+    byte[]                keyMaterialBytes = kdf.deriveSecrets(mac, inputKeyMaterial, MESSAGE_KEYS_INFO, DerivedMessageSecrets.SIZE);
     DerivedMessageSecrets keyMaterial      = new DerivedMessageSecrets(keyMaterialBytes);
 
-    return new MessageKeys(keyMaterial.getCipherKey(), keyMaterial.getMacKey(), keyMaterial.getIv(), index);
+    return new MessageKeys(keyMaterial.getCipherKey(), keyMaterial.getMacKey(), keyMaterial.getIv(), counter);
   }
 
   private byte[] getBaseMaterial(byte[] seed) {
+    return getBaseMaterial(getMac(), key, seed);
+  }
+
+  private static byte[] getBaseMaterial(Mac mac, byte[] key, byte[] seed) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
       mac.init(new SecretKeySpec(key, "HmacSHA256"));
 
       return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
   }
+
+  private static Mac getMac() {
+    try {
+      return Mac.getInstance("HmacSHA256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
 }
@@ -0,0 +1,24 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.state;
+
+import java.util.List;
+
+/**
+ * A {@link PreKeyStore} that can persist a whole batch of freshly generated
+ * {@link PreKeyRecord}s at once, e.g. in a single transaction or as one
+ * {@link PreKeyRecord#serialize(List)} buffer.
+ */
+public interface BulkPreKeyStore extends PreKeyStore {
+
+  /**
+   * Store a batch of local PreKeyRecords.
+   *
+   * @param records the PreKeyRecords, each stored under its own ID.
+   */
+  public void storePreKeys(List<PreKeyRecord> records);
+
+}
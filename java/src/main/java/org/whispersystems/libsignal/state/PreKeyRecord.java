@@ -6,6 +6,8 @@
 package org.whispersystems.libsignal.state;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.ecc.Curve;
@@ -14,6 +16,8 @@ import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.whispersystems.libsignal.state.StorageProtos.PreKeyRecordStructure;
 
@@ -35,6 +39,10 @@ public class PreKeyRecord {
     this.structure = PreKeyRecordStructure.parseFrom(serialized);
   }
 
+  private PreKeyRecord(PreKeyRecordStructure structure) {
+    this.structure = structure;
+  }
+
   public int getId() {
     return this.structure.getId();
   }
@@ -53,4 +61,56 @@ public class PreKeyRecord {
   public byte[] serialize() {
     return this.structure.toByteArray();
   }
+
+  /**
+   * Serialize a batch of PreKeyRecords into a single contiguous, length-delimited
+   * buffer, so that a whole batch can be persisted with one write.
+   *
+   * @param records The records to serialize.
+   * @return the serialized batch, readable with {@link #deserialize(byte[])}.
+   */
+  public static byte[] serialize(List<PreKeyRecord> records) {
+    try {
+      int size = 0;
+
+      for (PreKeyRecord record : records) {
+        int recordSize = record.structure.getSerializedSize();
+        size += CodedOutputStream.computeRawVarint32Size(recordSize) + recordSize;
+      }
+
+      byte[]            serialized   = new byte[size];
+      CodedOutputStream outputStream = CodedOutputStream.newInstance(serialized);
+
+      for (PreKeyRecord record : records) {
+        outputStream.writeRawVarint32(record.structure.getSerializedSize());
+        record.structure.writeTo(outputStream);
+      }
+
+      outputStream.checkNoSpaceLeft();
+
+      return serialized;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Parse a batch of PreKeyRecords produced by {@link #serialize(List)}.
+   *
+   * @param serialized The serialized batch.
+   * @return the PreKeyRecords, in the order they were serialized.
+   * @throws IOException if the batch is malformed.
+   */
+  public static List<PreKeyRecord> deserialize(byte[] serialized) throws IOException {
+    List<PreKeyRecord> records     = new ArrayList<PreKeyRecord>();
+    CodedInputStream   inputStream = CodedInputStream.newInstance(serialized);
+
+    while (!inputStream.isAtEnd()) {
+      int limit = inputStream.pushLimit(inputStream.readRawVarint32());
+      records.add(new PreKeyRecord(PreKeyRecordStructure.parseFrom(inputStream)));
+      inputStream.popLimit(limit);
+    }
+
+    return records;
+  }
 }
@@ -35,6 +35,19 @@ public class SessionRecord {
     this.fresh        = false;
   }
 
+  /**
+   * Copies a record. Like a deserialized record, the copy is never fresh, so a session stored
+   * and loaded again is archived rather than overwritten when a new one is built.
+   */
+  public SessionRecord(SessionRecord copy) {
+    this.sessionState = new SessionState(copy.sessionState);
+    this.fresh        = false;
+
+    for (SessionState previousState : copy.previousStates) {
+      previousStates.add(new SessionState(previousState));
+    }
+  }
+
   public SessionRecord(byte[] serialized) throws IOException {
     RecordStructure record = RecordStructure.parseFrom(serialized);
     this.sessionState = new SessionState(record.getCurrentSession());
@@ -27,6 +27,7 @@ import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Pending
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -326,6 +327,43 @@ public class SessionState {
                                                  .build();
   }
 
+  /**
+   * Stores a run of skipped message keys with a single chain rebuild, rather than one
+   * rebuild per key as {@link #setMessageKeys(ECPublicKey, MessageKeys)} would.
+   */
+  public void setMessageKeys(ECPublicKey senderEphemeral, List<MessageKeys> messageKeysList) {
+    if (messageKeysList.isEmpty()) {
+      return;
+    }
+
+    Pair<Chain,Integer>    chainAndIndex  = getReceiverChain(senderEphemeral);
+    Chain                  chain          = chainAndIndex.first();
+    List<Chain.MessageKey> messageKeyList = new ArrayList<Chain.MessageKey>(chain.getMessageKeysCount() + messageKeysList.size());
+
+    messageKeyList.addAll(chain.getMessageKeysList());
+
+    for (MessageKeys messageKeys : messageKeysList) {
+      messageKeyList.add(Chain.MessageKey.newBuilder()
+                                         .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
+                                         .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
+                                         .setIndex(messageKeys.getCounter())
+                                         .setIv(ByteString.copyFrom(messageKeys.getIv().getIV()))
+                                         .build());
+    }
+
+    if (messageKeyList.size() > MAX_MESSAGE_KEYS) {
+      messageKeyList = messageKeyList.subList(messageKeyList.size() - MAX_MESSAGE_KEYS, messageKeyList.size());
+    }
+
+    Chain updatedChain = chain.toBuilder().clearMessageKeys()
+                              .addAllMessageKeys(messageKeyList)
+                              .build();
+
+    this.sessionStructure = this.sessionStructure.toBuilder()
+                                                 .setReceiverChains(chainAndIndex.second(), updatedChain)
+                                                 .build();
+  }
+
   public void setReceiverChainKey(ECPublicKey senderEphemeral, ChainKey chainKey) {
     Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
     Chain               chain         = chainAndIndex.first();
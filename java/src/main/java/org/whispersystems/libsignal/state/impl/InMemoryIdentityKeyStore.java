@@ -10,12 +10,12 @@ import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.state.IdentityKeyStore;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class InMemoryIdentityKeyStore implements IdentityKeyStore {
 
-  private final Map<SignalProtocolAddress, IdentityKey> trustedKeys = new HashMap<SignalProtocolAddress, IdentityKey>();
+  private final ConcurrentMap<SignalProtocolAddress, IdentityKey> trustedKeys = new ConcurrentHashMap<SignalProtocolAddress, IdentityKey>();
 
   private final IdentityKeyPair identityKeyPair;
   private final int             localRegistrationId;
@@ -37,14 +37,8 @@ public class InMemoryIdentityKeyStore implements IdentityKeyStore {
 
   @Override
   public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
-    IdentityKey existing = trustedKeys.get(address);
-
-    if (!identityKey.equals(existing)) {
-      trustedKeys.put(address, identityKey);
-      return true;
-    } else {
-      return false;
-    }
+    IdentityKey existing = trustedKeys.put(address, identityKey);
+    return !identityKey.equals(existing);
   }
 
   @Override
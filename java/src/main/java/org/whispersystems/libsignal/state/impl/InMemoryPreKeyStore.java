@@ -6,33 +6,38 @@
 package org.whispersystems.libsignal.state.impl;
 
 import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.state.BulkPreKeyStore;
 import org.whispersystems.libsignal.state.PreKeyRecord;
-import org.whispersystems.libsignal.state.PreKeyStore;
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-public class InMemoryPreKeyStore implements PreKeyStore {
+public class InMemoryPreKeyStore implements BulkPreKeyStore {
 
-  private final Map<Integer, byte[]> store = new HashMap<Integer, byte[]>();
+  private final ConcurrentMap<Integer, PreKeyRecord> store = new ConcurrentHashMap<Integer, PreKeyRecord>();
 
   @Override
   public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-    try {
-      if (!store.containsKey(preKeyId)) {
-        throw new InvalidKeyIdException("No such prekeyrecord!");
-      }
-
-      return new PreKeyRecord(store.get(preKeyId));
-    } catch (IOException e) {
-      throw new AssertionError(e);
+    PreKeyRecord record = store.get(preKeyId);
+
+    if (record == null) {
+      throw new InvalidKeyIdException("No such prekeyrecord!");
     }
+
+    return record;
   }
 
   @Override
   public void storePreKey(int preKeyId, PreKeyRecord record) {
-    store.put(preKeyId, record.serialize());
+    store.put(preKeyId, record);
+  }
+
+  @Override
+  public void storePreKeys(List<PreKeyRecord> records) {
+    for (PreKeyRecord record : records) {
+      store.put(record.getId(), record);
+    }
   }
 
   @Override
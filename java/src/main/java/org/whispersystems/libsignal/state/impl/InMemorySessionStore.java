@@ -9,40 +9,49 @@ import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionStore;
 
-import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * A thread-safe in-memory {@link SessionStore}.
+ *
+ * Records are kept as parsed snapshots rather than serialized bytes. A snapshot is copied
+ * on the way in and on the way out, so callers can't mutate stored state, but nothing is
+ * re-parsed on load. Device ids are indexed by name, so per-name lookups and bulk deletes
+ * don't scan every session.
+ */
 public class InMemorySessionStore implements SessionStore {
 
-  private Map<SignalProtocolAddress, byte[]> sessions = new HashMap<SignalProtocolAddress, byte[]>();
+  private final ConcurrentMap<SignalProtocolAddress, SessionRecord> sessions = new ConcurrentHashMap<SignalProtocolAddress, SessionRecord>();
+  private final ConcurrentMap<String, Set<Integer>>                 devices  = new ConcurrentHashMap<String, Set<Integer>>();
 
   public InMemorySessionStore() {}
 
   @Override
-  public synchronized SessionRecord loadSession(SignalProtocolAddress remoteAddress) {
-    try {
-      if (containsSession(remoteAddress)) {
-        return new SessionRecord(sessions.get(remoteAddress));
-      } else {
-        return new SessionRecord();
-      }
-    } catch (IOException e) {
-      throw new AssertionError(e);
+  public SessionRecord loadSession(SignalProtocolAddress remoteAddress) {
+    SessionRecord record = sessions.get(remoteAddress);
+
+    if (record != null) {
+      return new SessionRecord(record);
+    } else {
+      return new SessionRecord();
     }
   }
 
   @Override
-  public synchronized List<Integer> getSubDeviceSessions(String name) {
+  public List<Integer> getSubDeviceSessions(String name) {
     List<Integer> deviceIds = new LinkedList<Integer>();
+    Set<Integer>  known     = devices.get(name);
 
-    for (SignalProtocolAddress key : sessions.keySet()) {
-      if (key.getName().equals(name) &&
-          key.getDeviceId() != 1)
-      {
-        deviceIds.add(key.getDeviceId());
+    if (known != null) {
+      for (int deviceId : known) {
+        if (deviceId != 1) {
+          deviceIds.add(deviceId);
+        }
       }
     }
 
@@ -50,26 +59,64 @@ public class InMemorySessionStore implements SessionStore {
   }
 
   @Override
-  public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
-    sessions.put(address, record.serialize());
+  public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    Set<Integer> deviceIds = getDeviceIds(address.getName());
+
+    synchronized (deviceIds) {
+      sessions.put(address, new SessionRecord(record));
+      deviceIds.add(address.getDeviceId());
+    }
   }
 
   @Override
-  public synchronized boolean containsSession(SignalProtocolAddress address) {
+  public boolean containsSession(SignalProtocolAddress address) {
     return sessions.containsKey(address);
   }
 
   @Override
-  public synchronized void deleteSession(SignalProtocolAddress address) {
-    sessions.remove(address);
+  public void deleteSession(SignalProtocolAddress address) {
+    Set<Integer> deviceIds = devices.get(address.getName());
+
+    if (deviceIds == null) {
+      return;
+    }
+
+    synchronized (deviceIds) {
+      sessions.remove(address);
+      deviceIds.remove(address.getDeviceId());
+    }
   }
 
   @Override
-  public synchronized void deleteAllSessions(String name) {
-    for (SignalProtocolAddress key : sessions.keySet()) {
-      if (key.getName().equals(name)) {
-        sessions.remove(key);
+  public void deleteAllSessions(String name) {
+    Set<Integer> deviceIds = devices.get(name);
+
+    if (deviceIds == null) {
+      return;
+    }
+
+    synchronized (deviceIds) {
+      for (int deviceId : deviceIds) {
+        sessions.remove(new SignalProtocolAddress(name, deviceId));
+      }
+
+      deviceIds.clear();
+    }
+  }
+
+  private Set<Integer> getDeviceIds(String name) {
+    Set<Integer> deviceIds = devices.get(name);
+
+    if (deviceIds == null) {
+      Set<Integer> created = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+      deviceIds = devices.putIfAbsent(name, created);
+
+      if (deviceIds == null) {
+        deviceIds = created;
       }
     }
+
+    return deviceIds;
   }
 }
@@ -9,6 +9,7 @@ import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.state.BulkPreKeyStore;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SessionRecord;
@@ -16,7 +17,7 @@ import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 
 import java.util.List;
 
-public class InMemorySignalProtocolStore implements SignalProtocolStore {
+public class InMemorySignalProtocolStore implements SignalProtocolStore, BulkPreKeyStore {
 
   private final InMemoryPreKeyStore       preKeyStore       = new InMemoryPreKeyStore();
   private final InMemorySessionStore      sessionStore      = new InMemorySessionStore();
@@ -63,6 +64,11 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     preKeyStore.storePreKey(preKeyId, record);
   }
 
+  @Override
+  public void storePreKeys(List<PreKeyRecord> records) {
+    preKeyStore.storePreKeys(records);
+  }
+
   @Override
   public boolean containsPreKey(int preKeyId) {
     return preKeyStore.containsPreKey(preKeyId);
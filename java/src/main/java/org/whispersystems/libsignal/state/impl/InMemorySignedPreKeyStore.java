@@ -9,47 +9,34 @@ import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
 
-import java.io.IOException;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class InMemorySignedPreKeyStore implements SignedPreKeyStore {
 
-  private final Map<Integer, byte[]> store = new HashMap<Integer, byte[]>();
+  private final ConcurrentMap<Integer, SignedPreKeyRecord> store = new ConcurrentHashMap<Integer, SignedPreKeyRecord>();
 
   @Override
   public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
-    try {
-      if (!store.containsKey(signedPreKeyId)) {
-        throw new InvalidKeyIdException("No such signedprekeyrecord! " + signedPreKeyId);
-      }
+    SignedPreKeyRecord record = store.get(signedPreKeyId);
 
-      return new SignedPreKeyRecord(store.get(signedPreKeyId));
-    } catch (IOException e) {
-      throw new AssertionError(e);
+    if (record == null) {
+      throw new InvalidKeyIdException("No such signedprekeyrecord! " + signedPreKeyId);
     }
+
+    return record;
   }
 
   @Override
   public List<SignedPreKeyRecord> loadSignedPreKeys() {
-    try {
-      List<SignedPreKeyRecord> results = new LinkedList<SignedPreKeyRecord>();
-
-      for (byte[] serialized : store.values()) {
-        results.add(new SignedPreKeyRecord(serialized));
-      }
-
-      return results;
-    } catch (IOException e) {
-      throw new AssertionError(e);
-    }
+    return new LinkedList<SignedPreKeyRecord>(store.values());
   }
 
   @Override
   public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-    store.put(signedPreKeyId, record.serialize());
+    store.put(signedPreKeyId, record);
   }
 
   @Override
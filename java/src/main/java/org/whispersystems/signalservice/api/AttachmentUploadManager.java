@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentStream;
+import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
+import org.whispersystems.signalservice.internal.push.PushAttachmentData;
+import org.whispersystems.signalservice.internal.push.http.AttachmentCipherOutputStreamFactory;
+import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
+import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
+import org.whispersystems.signalservice.loki.api.LokiDotNetAPI;
+import org.whispersystems.signalservice.loki.api.LokiFileServerAPI;
+import org.whispersystems.signalservice.loki.utilities.BasicOutputStreamFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads attachments to a file server, a bounded number at a time.
+ *
+ * Uploads are keyed by server and plaintext hash, so an attachment that was already
+ * uploaded (or is being uploaded) to the same server, for example when it's forwarded
+ * to several conversations, reuses that upload's key and {@link LokiDotNetAPI.UploadResult}
+ * instead of being encrypted and uploaded again.  Attachments without a
+ * {@link SignalServiceAttachmentStream#getPlaintextHash() plaintext hash} are hashed
+ * as they upload, so only later uploads of the same attachment can be deduplicated.
+ */
+public class AttachmentUploadManager {
+
+  private static final String TAG = AttachmentUploadManager.class.getSimpleName();
+
+  private static final int  DEFAULT_MAX_CONCURRENT_UPLOADS = 3;
+  private static final int  DEFAULT_CACHE_SIZE             = 100;
+  private static final long DEFAULT_MAX_AGE                = TimeUnit.DAYS.toMillis(1);
+
+  private final ExecutorService                        executor;
+  private final int                                    cacheSize;
+  private final long                                   maxAgeMillis;
+  private final Map<UploadKey, Upload>                 uploads;
+  private final Map<UploadKey, SettableFuture<Upload>> pendingUploads;
+
+  private final AtomicLong uploadCount       = new AtomicLong();
+  private final AtomicLong deduplicatedCount = new AtomicLong();
+  private final AtomicLong bytesUploaded     = new AtomicLong();
+
+  private volatile MetricsListener metricsListener;
+
+  public AttachmentUploadManager() {
+    this(DEFAULT_MAX_CONCURRENT_UPLOADS, DEFAULT_CACHE_SIZE, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * @param maxConcurrentUploads The number of uploads that can be in flight at once.
+   * @param cacheSize The number of completed uploads to remember for reuse.
+   * @param maxAgeMillis How long a completed upload can be reused for.
+   */
+  public AttachmentUploadManager(int maxConcurrentUploads, final int cacheSize, long maxAgeMillis) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrentUploads, maxConcurrentUploads,
+                                                         30, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+
+    this.executor       = executor;
+    this.cacheSize      = cacheSize;
+    this.maxAgeMillis   = maxAgeMillis;
+    this.pendingUploads = new HashMap<UploadKey, SettableFuture<Upload>>();
+    this.uploads        = new LinkedHashMap<UploadKey, Upload>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<UploadKey, Upload> eldest) {
+        return size() > AttachmentUploadManager.this.cacheSize;
+      }
+    };
+  }
+
+  public void setMetricsListener(MetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+
+  /**
+   * Queue an attachment for upload, or reuse an earlier upload of it.
+   *
+   * @param server The file server to upload to.
+   * @param encrypt Whether to encrypt the attachment, which isn't done for public chats.
+   * @param usePadding Whether to pad the attachment before encrypting it.
+   *
+   * @return A future for the attachment's key and upload result.  If it fails, the cause is
+   *         usually an {@link IOException}.
+   */
+  public ListenableFuture<Upload> upload(final String server, final boolean encrypt, final boolean usePadding,
+                                         final SignalServiceAttachmentStream attachment)
+  {
+    final long                   startTime = System.currentTimeMillis();
+    final SettableFuture<Upload> future    = new SettableFuture<Upload>();
+
+    Upload                 existing = null;
+    SettableFuture<Upload> pending  = null;
+
+    if (attachment.getPlaintextHash().isPresent()) {
+      UploadKey uploadKey = new UploadKey(server, attachment.getPlaintextHash().get(), encrypt, usePadding);
+
+      synchronized (this) {
+        existing = getUpload(uploadKey);
+        pending  = existing == null ? pendingUploads.get(uploadKey) : null;
+
+        if (existing == null && pending == null) {
+          pendingUploads.put(uploadKey, future);
+        }
+      }
+    }
+
+    if (existing != null) {
+      Log.d(TAG, "Reusing earlier upload: " + existing.getResult().getUrl());
+      notifyMetrics(new UploadMetrics(server, attachment.getLength(), 0, System.currentTimeMillis() - startTime, true));
+      future.set(existing);
+      return future;
+    }
+
+    if (pending != null) {
+      Log.d(TAG, "Waiting for identical upload in progress...");
+      return deduplicated(pending, server, attachment.getLength(), startTime);
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Upload upload;
+
+        try {
+          upload = performUpload(server, encrypt, usePadding, attachment, startTime);
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          finish(server, encrypt, usePadding, attachment.getPlaintextHash().orNull(), null);
+          future.setException(e);
+          return;
+        } catch (RuntimeException e) {
+          Log.w(TAG, e);
+          finish(server, encrypt, usePadding, attachment.getPlaintextHash().orNull(), null);
+          future.setException(e);
+          return;
+        }
+
+        finish(server, encrypt, usePadding, upload.plaintextHash, upload);
+        future.set(upload);
+      }
+    });
+
+    return future;
+  }
+
+  public long getUploadCount() {
+    return uploadCount.get();
+  }
+
+  public long getDeduplicatedCount() {
+    return deduplicatedCount.get();
+  }
+
+  public long getBytesUploaded() {
+    return bytesUploaded.get();
+  }
+
+  public synchronized void clearCache() {
+    uploads.clear();
+  }
+
+  private Upload performUpload(String server, boolean encrypt, boolean usePadding,
+                               SignalServiceAttachmentStream attachment, long queuedTime)
+      throws IOException
+  {
+    long                startTime           = System.currentTimeMillis();
+    byte[]              attachmentKey       = Util.getSecretBytes(64);
+    MessageDigest       plaintextDigest     = getPlaintextDigest();
+    InputStream         plaintextStream     = new DigestInputStream(attachment.getInputStream(), plaintextDigest);
+    long                paddedLength        = usePadding ? PaddingInputStream.getPaddedSize(attachment.getLength()) : attachment.getLength();
+    InputStream         dataStream          = usePadding ? new PaddingInputStream(plaintextStream, attachment.getLength()) : plaintextStream;
+    long                ciphertextLength    = encrypt ? AttachmentCipherOutputStream.getCiphertextLength(paddedLength) : attachment.getLength();
+    OutputStreamFactory outputStreamFactory = encrypt ? new AttachmentCipherOutputStreamFactory(attachmentKey) : new BasicOutputStreamFactory();
+    PushAttachmentData  attachmentData      = new PushAttachmentData(attachment.getContentType(), dataStream, ciphertextLength,
+                                                                     outputStreamFactory, attachment.getListener());
+
+    LokiDotNetAPI.UploadResult result = LokiFileServerAPI.shared.uploadAttachment(server, attachmentData);
+
+    long   endTime       = System.currentTimeMillis();
+    byte[] plaintextHash = attachment.getPlaintextHash().isPresent() ? attachment.getPlaintextHash().get()
+                                                                     : plaintextDigest.digest();
+
+    uploadCount.incrementAndGet();
+    bytesUploaded.addAndGet(ciphertextLength);
+    notifyMetrics(new UploadMetrics(server, attachment.getLength(), ciphertextLength, endTime - queuedTime, endTime - startTime, false));
+
+    return new Upload(attachmentKey, result, plaintextHash, endTime);
+  }
+
+  private synchronized void finish(String server, boolean encrypt, boolean usePadding, byte[] plaintextHash, Upload upload) {
+    if (plaintextHash == null) return;
+
+    UploadKey uploadKey = new UploadKey(server, plaintextHash, encrypt, usePadding);
+
+    pendingUploads.remove(uploadKey);
+
+    if (upload != null) {
+      uploads.put(uploadKey, upload);
+    }
+  }
+
+  private Upload getUpload(UploadKey uploadKey) {
+    Upload upload = uploads.get(uploadKey);
+
+    if (upload != null && System.currentTimeMillis() - upload.timestamp > maxAgeMillis) {
+      uploads.remove(uploadKey);
+      return null;
+    }
+
+    return upload;
+  }
+
+  private ListenableFuture<Upload> deduplicated(SettableFuture<Upload> pending, final String server,
+                                                final long plaintextLength, final long startTime)
+  {
+    final SettableFuture<Upload> result = new SettableFuture<Upload>();
+
+    pending.addListener(new ListenableFuture.Listener<Upload>() {
+      @Override
+      public void onSuccess(Upload upload) {
+        notifyMetrics(new UploadMetrics(server, plaintextLength, 0, System.currentTimeMillis() - startTime, true));
+        result.set(upload);
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        result.setException(e.getCause());
+      }
+    });
+
+    return result;
+  }
+
+  private void notifyMetrics(UploadMetrics metrics) {
+    if (metrics.isDeduplicated()) {
+      deduplicatedCount.incrementAndGet();
+    }
+
+    MetricsListener listener = metricsListener;
+
+    if (listener != null) {
+      listener.onUploadCompleted(metrics);
+    }
+  }
+
+  private static MessageDigest getPlaintextDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * An uploaded attachment's key and where it was uploaded to.
+   */
+  public static class Upload {
+
+    private final byte[]                     key;
+    private final LokiDotNetAPI.UploadResult result;
+    private final byte[]                     plaintextHash;
+    private final long                       timestamp;
+
+    private Upload(byte[] key, LokiDotNetAPI.UploadResult result, byte[] plaintextHash, long timestamp) {
+      this.key           = key;
+      this.result        = result;
+      this.plaintextHash = plaintextHash;
+      this.timestamp     = timestamp;
+    }
+
+    public byte[] getKey() {
+      return key;
+    }
+
+    public LokiDotNetAPI.UploadResult getResult() {
+      return result;
+    }
+
+    public byte[] getPlaintextHash() {
+      return plaintextHash;
+    }
+  }
+
+  public static class UploadMetrics {
+
+    private final String  server;
+    private final long    plaintextLength;
+    private final long    bytesUploaded;
+    private final long    totalMillis;
+    private final long    transferMillis;
+    private final boolean deduplicated;
+
+    private UploadMetrics(String server, long plaintextLength, long bytesUploaded, long totalMillis, boolean deduplicated) {
+      this(server, plaintextLength, bytesUploaded, totalMillis, 0, deduplicated);
+    }
+
+    private UploadMetrics(String server, long plaintextLength, long bytesUploaded, long totalMillis, long transferMillis, boolean deduplicated) {
+      this.server          = server;
+      this.plaintextLength = plaintextLength;
+      this.bytesUploaded   = bytesUploaded;
+      this.totalMillis     = totalMillis;
+      this.transferMillis  = transferMillis;
+      this.deduplicated    = deduplicated;
+    }
+
+    public String getServer() {
+      return server;
+    }
+
+    public long getPlaintextLength() {
+      return plaintextLength;
+    }
+
+    /**
+     * @return the number of bytes sent, which is 0 if an earlier upload was reused.
+     */
+    public long getBytesUploaded() {
+      return bytesUploaded;
+    }
+
+    /**
+     * @return the time from queueing the upload to its completion.
+     */
+    public long getTotalMillis() {
+      return totalMillis;
+    }
+
+    /**
+     * @return the time spent uploading, excluding time spent queued.
+     */
+    public long getTransferMillis() {
+      return transferMillis;
+    }
+
+    public boolean isDeduplicated() {
+      return deduplicated;
+    }
+
+    /**
+     * @return the upload's throughput in bytes per second, or 0 if nothing was uploaded.
+     */
+    public long getBytesPerSecond() {
+      if (bytesUploaded == 0) return 0;
+      return bytesUploaded * 1000 / Math.max(transferMillis, 1);
+    }
+  }
+
+  public interface MetricsListener {
+    public void onUploadCompleted(UploadMetrics metrics);
+  }
+
+  private static class UploadKey {
+
+    private final String  server;
+    private final byte[]  plaintextHash;
+    private final boolean encrypt;
+    private final boolean usePadding;
+
+    private UploadKey(String server, byte[] plaintextHash, boolean encrypt, boolean usePadding) {
+      this.server        = server;
+      this.plaintextHash = plaintextHash;
+      this.encrypt       = encrypt;
+      this.usePadding    = usePadding;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof UploadKey)) return false;
+
+      UploadKey that = (UploadKey)other;
+
+      return this.server.equals(that.server)                       &&
+             Arrays.equals(this.plaintextHash, that.plaintextHash) &&
+             this.encrypt == that.encrypt                          &&
+             this.usePadding == that.usePadding;
+    }
+
+    @Override
+    public int hashCode() {
+      return server.hashCode() ^ Arrays.hashCode(plaintextHash) ^ (encrypt ? 1 : 0) ^ (usePadding ? 2 : 0);
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sends outgoing messages a bounded number at a time, in order of priority.
+ *
+ * Queued sends are started in the order of their {@link Priority}, then in the order they were
+ * queued, so that a user's messages don't wait behind a burst of receipts. A send queued with
+ * a coalescing key replaces any send with the same key that hasn't started yet, like a typing
+ * indicator that's made obsolete by a newer one, and the replaced send gets the newer one's
+ * result.
+ */
+public class OutboundMessageScheduler {
+
+  private static final String TAG = OutboundMessageScheduler.class.getSimpleName();
+
+  private static final int DEFAULT_MAX_CONCURRENT_SENDS = 4;
+
+  /**
+   * Queued sends are started in the order of their priority.
+   */
+  public enum Priority { MESSAGE, SYNC, RECEIPT, TYPING }
+
+  private final ThreadPoolExecutor   executor;
+  private final ThreadLocal<Boolean> isWorker    = new ThreadLocal<Boolean>();
+  private final AtomicLong           sequence    = new AtomicLong();
+  private final Map<String, Send<?>> coalescable = new HashMap<String, Send<?>>();
+
+  private final AtomicLongArray queued        = new AtomicLongArray(Priority.values().length);
+  private final AtomicLongArray completed     = new AtomicLongArray(Priority.values().length);
+  private final AtomicLongArray coalesced     = new AtomicLongArray(Priority.values().length);
+  private final AtomicLongArray totalWaitTime = new AtomicLongArray(Priority.values().length);
+
+  public OutboundMessageScheduler() {
+    this(DEFAULT_MAX_CONCURRENT_SENDS);
+  }
+
+  /**
+   * @param maxConcurrentSends The number of sends that can be in flight at once.
+   */
+  public OutboundMessageScheduler(int maxConcurrentSends) {
+    this.executor = new ThreadPoolExecutor(maxConcurrentSends, maxConcurrentSends,
+                                           30, TimeUnit.SECONDS,
+                                           new PriorityBlockingQueue<Runnable>(),
+                                           new ThreadFactory() {
+                                             private final AtomicInteger count = new AtomicInteger();
+
+                                             @Override
+                                             public Thread newThread(final Runnable runnable) {
+                                               return new Thread(new Runnable() {
+                                                 @Override
+                                                 public void run() {
+                                                   isWorker.set(true);
+                                                   runnable.run();
+                                                 }
+                                               }, "OutboundMessageScheduler-" + count.incrementAndGet());
+                                             }
+                                           });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue a send.
+   *
+   * @param coalescingKey Identifies sends that make each other obsolete, or null if the send
+   *                      can't be replaced by a later one.
+   * @return A future for the send's result. If it fails, the cause is whatever the send threw.
+   */
+  public <T> ListenableFuture<T> schedule(Priority priority, String coalescingKey, Callable<T> callable) {
+    Send<T> send = new Send<T>(priority, coalescingKey, sequence.getAndIncrement(), callable);
+
+    if (coalescingKey != null) {
+      Send<?> replaced;
+
+      synchronized (coalescable) {
+        replaced = coalescable.put(coalescingKey, send);
+      }
+
+      if (replaced != null && replaced.replaceWith(send)) {
+        Log.d(TAG, "Coalescing obsolete send: " + coalescingKey);
+        queued.decrementAndGet(replaced.priority.ordinal());
+        coalesced.incrementAndGet(replaced.priority.ordinal());
+        executor.remove(replaced);
+      }
+    }
+
+    queued.incrementAndGet(priority.ordinal());
+    executor.execute(send);
+
+    return send.future;
+  }
+
+  /**
+   * Queue a send and wait for it to finish. A send made from within another send is run
+   * straight away instead, since it could otherwise wait on itself.
+   */
+  public <T> T run(Priority priority, String coalescingKey, Callable<T> callable)
+      throws InterruptedException, ExecutionException
+  {
+    if (Boolean.TRUE.equals(isWorker.get())) {
+      try {
+        return callable.call();
+      } catch (Exception e) {
+        throw new ExecutionException(e);
+      }
+    }
+
+    return schedule(priority, coalescingKey, callable).get();
+  }
+
+  public long getQueuedCount(Priority priority) {
+    return queued.get(priority.ordinal());
+  }
+
+  public long getCompletedCount(Priority priority) {
+    return completed.get(priority.ordinal());
+  }
+
+  public long getCoalescedCount(Priority priority) {
+    return coalesced.get(priority.ordinal());
+  }
+
+  /**
+   * @return The average time sends of the priority spent queued before they were started.
+   */
+  public long getAverageWaitMillis(Priority priority) {
+    long count = completed.get(priority.ordinal());
+    return count == 0 ? 0 : totalWaitTime.get(priority.ordinal()) / count;
+  }
+
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  private class Send<T> implements Runnable, Comparable<Send<?>> {
+
+    private final Priority          priority;
+    private final String            coalescingKey;
+    private final long              sequence;
+    private final long              queuedTime;
+    private final Callable<T>       callable;
+    private final SettableFuture<T> future = new SettableFuture<T>();
+
+    private boolean started;
+    private boolean replaced;
+
+    private Send(Priority priority, String coalescingKey, long sequence, Callable<T> callable) {
+      this.priority      = priority;
+      this.coalescingKey = coalescingKey;
+      this.sequence      = sequence;
+      this.queuedTime    = System.currentTimeMillis();
+      this.callable      = callable;
+    }
+
+    /**
+     * @return Whether this send hadn't started yet, so its result will be the other send's.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean replaceWith(Send<?> other) {
+      synchronized (this) {
+        if (started) return false;
+        replaced = true;
+      }
+
+      ((Send<T>) other).future.addListener(new ListenableFuture.Listener<T>() {
+        @Override
+        public void onSuccess(T result) {
+          future.set(result);
+        }
+
+        @Override
+        public void onFailure(ExecutionException e) {
+          future.setException(e.getCause());
+        }
+      });
+
+      return true;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (replaced) return;
+        started = true;
+      }
+
+      if (coalescingKey != null) {
+        synchronized (coalescable) {
+          if (coalescable.get(coalescingKey) == this) coalescable.remove(coalescingKey);
+        }
+      }
+
+      queued.decrementAndGet(priority.ordinal());
+      totalWaitTime.addAndGet(priority.ordinal(), System.currentTimeMillis() - queuedTime);
+
+      try {
+        future.set(callable.call());
+      } catch (Throwable t) {
+        // Including errors, since whoever is waiting on the send would otherwise wait forever
+        future.setException(t);
+      } finally {
+        completed.incrementAndGet(priority.ordinal());
+      }
+    }
+
+    @Override
+    public int compareTo(Send<?> other) {
+      int result = priority.compareTo(other.priority);
+      if (result != 0) return result;
+      else             return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+}
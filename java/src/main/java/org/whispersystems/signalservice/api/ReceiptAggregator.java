@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
+import org.whispersystems.signalservice.api.messages.multidevice.ReadMessage;
+import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds on to receipts and read syncs for a short while, so that the ones sent in quick
+ * succession, like when a busy conversation is opened, go out together as one message.
+ *
+ * Receipts are batched by recipient and type, and read syncs are batched together, so each
+ * batch costs one encryption, proof of work and send instead of one for each message.
+ */
+public class ReceiptAggregator {
+
+  private static final String TAG = ReceiptAggregator.class.getSimpleName();
+
+  private static final long DEFAULT_WINDOW_MILLIS = 1000;
+  private static final int  DEFAULT_MAX_BATCH     = 100;
+
+  private final SignalServiceMessageSender  sender;
+  private final long                        windowMillis;
+  private final int                         maxBatchSize;
+  private final ScheduledThreadPoolExecutor timer;
+
+  private final Map<String, ReceiptBatch> receiptBatches = new HashMap<String, ReceiptBatch>();
+  private       ReadBatch                 readBatch;
+
+  private final AtomicLong batchesSent  = new AtomicLong();
+  private final AtomicLong messagesSent = new AtomicLong();
+
+  public ReceiptAggregator(SignalServiceMessageSender sender) {
+    this(sender, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH);
+  }
+
+  /**
+   * @param windowMillis How long to wait for more receipts after the first one in a batch.
+   * @param maxBatchSize The number of timestamps after which a batch is sent straight away.
+   */
+  public ReceiptAggregator(SignalServiceMessageSender sender, long windowMillis, int maxBatchSize) {
+    this.sender       = sender;
+    this.windowMillis = windowMillis;
+    this.maxBatchSize = maxBatchSize;
+    this.timer        = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ReceiptAggregator");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    this.timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Queue a receipt to be sent along with any others of the same type to the same recipient.
+   *
+   * @return A future that's set once the batch the receipt went out in has been sent.
+   */
+  public ListenableFuture<Void> addReceipt(long messageID,
+                                           SignalServiceAddress recipient,
+                                           Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                                           SignalServiceReceiptMessage message)
+  {
+    String               key    = recipient.getNumber() + ":" + message.getType();
+    SettableFuture<Void> future = new SettableFuture<Void>();
+    ReceiptBatch         full   = null;
+
+    synchronized (this) {
+      ReceiptBatch batch = receiptBatches.get(key);
+
+      if (batch == null) {
+        batch = new ReceiptBatch(key, recipient, message.getType());
+        receiptBatches.put(key, batch);
+        scheduleFlush(batch);
+      }
+
+      batch.add(messageID, unidentifiedAccess, message, future);
+
+      if (batch.size() >= maxBatchSize) {
+        full = batch;
+        removeReceiptBatch(batch);
+      }
+    }
+
+    if (full != null) send(full);
+
+    return future;
+  }
+
+  /**
+   * Queue read syncs to be sent to our other devices along with any others.
+   *
+   * @return A future that's set once the batch the syncs went out in has been sent.
+   */
+  public ListenableFuture<Void> addRead(long messageID, List<ReadMessage> reads, Optional<UnidentifiedAccessPair> unidentifiedAccess) {
+    SettableFuture<Void> future = new SettableFuture<Void>();
+    ReadBatch            full   = null;
+
+    synchronized (this) {
+      if (readBatch == null) {
+        readBatch = new ReadBatch();
+        scheduleFlush(readBatch);
+      }
+
+      readBatch.add(messageID, unidentifiedAccess, reads, future);
+
+      if (readBatch.size() >= maxBatchSize) {
+        full = readBatch;
+        removeReadBatch(readBatch);
+      }
+    }
+
+    if (full != null) send(full);
+
+    return future;
+  }
+
+  /**
+   * Send everything that's waiting straight away.
+   */
+  public void flush() {
+    List<Batch> batches = new LinkedList<Batch>();
+
+    synchronized (this) {
+      for (ReceiptBatch batch : new LinkedList<ReceiptBatch>(receiptBatches.values())) {
+        removeReceiptBatch(batch);
+        batches.add(batch);
+      }
+
+      if (readBatch != null) {
+        batches.add(readBatch);
+        removeReadBatch(readBatch);
+      }
+    }
+
+    for (Batch batch : batches) {
+      send(batch);
+    }
+  }
+
+  public long getBatchesSent() {
+    return batchesSent.get();
+  }
+
+  /**
+   * @return The number of timestamps and read syncs that have been sent, across all batches.
+   */
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  private void scheduleFlush(final Batch batch) {
+    batch.flushTask = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        boolean due;
+
+        synchronized (ReceiptAggregator.this) {
+          due = batch instanceof ReceiptBatch ? removeReceiptBatch((ReceiptBatch) batch) : removeReadBatch((ReadBatch) batch);
+        }
+
+        if (due) send(batch);
+      }
+    }, windowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean removeReceiptBatch(ReceiptBatch batch) {
+    if (receiptBatches.get(batch.key) != batch) return false;
+
+    receiptBatches.remove(batch.key);
+    batch.flushTask.cancel(false);
+    return true;
+  }
+
+  private boolean removeReadBatch(ReadBatch batch) {
+    if (readBatch != batch) return false;
+
+    readBatch = null;
+    batch.flushTask.cancel(false);
+    return true;
+  }
+
+  private void send(final Batch batch) {
+    ListenableFuture<Void> sent = SignalServiceMessageSender.getOutboundScheduler().schedule(batch.getPriority(), null, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        batch.send();
+        return null;
+      }
+    });
+
+    sent.addListener(new ListenableFuture.Listener<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+        batchesSent.incrementAndGet();
+        messagesSent.addAndGet(batch.size());
+
+        for (SettableFuture<Void> future : batch.futures) {
+          future.set(null);
+        }
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        Log.w(TAG, e);
+
+        for (SettableFuture<Void> future : batch.futures) {
+          future.setException(e.getCause());
+        }
+      }
+    });
+  }
+
+  private static abstract class Batch {
+
+    final List<SettableFuture<Void>> futures = new LinkedList<SettableFuture<Void>>();
+
+    long                             messageID;
+    Optional<UnidentifiedAccessPair> unidentifiedAccess;
+    ScheduledFuture<?>               flushTask;
+
+    void add(long messageID, Optional<UnidentifiedAccessPair> unidentifiedAccess, SettableFuture<Void> future) {
+      this.messageID          = messageID;
+      this.unidentifiedAccess = unidentifiedAccess;
+      this.futures.add(future);
+    }
+
+    abstract int size();
+
+    abstract OutboundMessageScheduler.Priority getPriority();
+
+    abstract void send() throws Exception;
+  }
+
+  private class ReceiptBatch extends Batch {
+
+    private final String                           key;
+    private final SignalServiceAddress             recipient;
+    private final SignalServiceReceiptMessage.Type type;
+    private final Set<Long>                        timestamps = new LinkedHashSet<Long>();
+
+    private long when;
+
+    private ReceiptBatch(String key, SignalServiceAddress recipient, SignalServiceReceiptMessage.Type type) {
+      this.key       = key;
+      this.recipient = recipient;
+      this.type      = type;
+    }
+
+    void add(long messageID, Optional<UnidentifiedAccessPair> unidentifiedAccess, SignalServiceReceiptMessage message, SettableFuture<Void> future) {
+      add(messageID, unidentifiedAccess, future);
+      timestamps.addAll(message.getTimestamps());
+      when = Math.max(when, message.getWhen());
+    }
+
+    @Override
+    int size() {
+      return timestamps.size();
+    }
+
+    @Override
+    OutboundMessageScheduler.Priority getPriority() {
+      return OutboundMessageScheduler.Priority.RECEIPT;
+    }
+
+    @Override
+    void send() throws Exception {
+      Log.d(TAG, "Sending " + timestamps.size() + " receipts in one message.");
+      SignalServiceReceiptMessage receipt = new SignalServiceReceiptMessage(type, new LinkedList<Long>(timestamps), when);
+      SendMessageResult           result  = sender.sendReceipt(messageID, recipient, unidentifiedAccess, receipt);
+
+      if (result.getSuccess() == null) {
+        throw new IOException("Couldn't send " + timestamps.size() + " receipts to " + recipient.getNumber() + ".");
+      }
+    }
+  }
+
+  private class ReadBatch extends Batch {
+
+    private final List<ReadMessage> reads = new LinkedList<ReadMessage>();
+
+    void add(long messageID, Optional<UnidentifiedAccessPair> unidentifiedAccess, List<ReadMessage> reads, SettableFuture<Void> future) {
+      add(messageID, unidentifiedAccess, future);
+      this.reads.addAll(reads);
+    }
+
+    @Override
+    int size() {
+      return reads.size();
+    }
+
+    @Override
+    OutboundMessageScheduler.Priority getPriority() {
+      return OutboundMessageScheduler.Priority.SYNC;
+    }
+
+    @Override
+    void send() throws Exception {
+      Log.d(TAG, "Sending " + reads.size() + " read syncs in one message.");
+      sender.sendMessage(messageID, SignalServiceSyncMessage.forRead(reads), unidentifiedAccess);
+    }
+  }
+}
@@ -9,6 +9,7 @@ package org.whispersystems.signalservice.api;
 import com.google.protobuf.ByteString;
 
 import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
@@ -22,14 +23,17 @@ import org.whispersystems.signalservice.internal.push.SendMessageResponse;
 import org.whispersystems.signalservice.internal.util.Base64;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -45,8 +49,13 @@ public class SignalServiceMessagePipe {
 
   private static final String TAG = SignalServiceMessagePipe.class.getName();
 
+  private static final int  MAX_OUTSTANDING_REQUESTS = 64;
+  private static final long REQUEST_TIMEOUT_MILLIS   = TimeUnit.SECONDS.toMillis(10);
+
   private final WebSocketConnection           websocket;
   private final Optional<CredentialsProvider> credentialsProvider;
+  private final Semaphore                     outstandingRequests = new Semaphore(MAX_OUTSTANDING_REQUESTS);
+  private final SecureRandom                  random              = new SecureRandom();
 
   SignalServiceMessagePipe(WebSocketConnection websocket, Optional<CredentialsProvider> credentialsProvider) {
     this.websocket           = websocket;
@@ -99,124 +108,223 @@ public class SignalServiceMessagePipe {
     }
 
     while (true) {
-      WebSocketRequestMessage  request            = websocket.readRequest(unit.toMillis(timeout));
-      WebSocketResponseMessage response           = createWebSocketResponse(request);
-      boolean                  signalKeyEncrypted = isSignalKeyEncrypted(request);
-
-      try {
-        if (isSignalServiceEnvelope(request)) {
-          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(),
-                                                                     credentialsProvider.get().getSignalingKey(),
-                                                                     signalKeyEncrypted);
-
-          callback.onMessage(envelope);
-          return envelope;
-        }
-      } finally {
-        websocket.sendResponse(response);
+      WebSocketRequestMessage request  = websocket.readRequest(unit.toMillis(timeout));
+      SignalServiceEnvelope   envelope = handleRequest(request, callback);
+
+      if (envelope != null) {
+        return envelope;
       }
     }
   }
 
-  public SendMessageResponse send(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
-    try {
-      List<String> headers = new LinkedList<String>() {{
-        add("content-type:application/json");
-      }};
+  /**
+   * Have messages pushed to a callback as they arrive, instead of reading them with
+   * {@link #read(long, java.util.concurrent.TimeUnit, MessagePipeCallback)}, which can't be
+   * used while a callback is set. Messages are delivered one at a time on a thread of the
+   * pipe's own, and each is acknowledged once the callback returns.
+   *
+   * @param callback The callback to deliver messages to, or null to stop delivering them.
+   */
+  public void setMessageListener(final MessagePipeCallback callback) {
+    if (!credentialsProvider.isPresent()) {
+      throw new IllegalArgumentException("You can't read messages if you haven't specified credentials");
+    }
+
+    if (callback == null) {
+      websocket.setRequestListener(null);
+      return;
+    }
 
-      if (unidentifiedAccess.isPresent()) {
-        headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    websocket.setRequestListener(new WebSocketConnection.RequestListener() {
+      @Override
+      public void onRequest(WebSocketRequestMessage request) {
+        try {
+          handleRequest(request, callback);
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        } catch (InvalidVersionException e) {
+          Log.w(TAG, e);
+        }
       }
+    });
+  }
+
+  public SendMessageResponse send(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
+    return await(sendAsync(list, unidentifiedAccess));
+  }
 
-      WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(SecureRandom.getInstance("SHA1PRNG").nextLong())
-                                                                      .setVerb("PUT")
-                                                                      .setPath(String.format("/v1/messages/%s", list.getDestination()))
-                                                                      .addAllHeaders(headers)
-                                                                      .setBody(ByteString.copyFrom(JsonUtil.toJson(list).getBytes()))
-                                                                      .build();
+  /**
+   * Sends a message without waiting for the response, so that many requests can be in flight
+   * over the pipe at once. Blocks while the pipe already has its limit of requests
+   * waiting for a response.
+   */
+  public ListenableFuture<SendMessageResponse> sendAsync(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
+    List<String> headers = new LinkedList<String>() {{
+      add("content-type:application/json");
+    }};
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+    if (unidentifiedAccess.isPresent()) {
+      headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    }
 
-      if (response.first() < 200 || response.first() >= 300) {
-        throw new IOException("Non-successful response: " + response.first());
+    WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
+                                                                    .setId(random.nextLong())
+                                                                    .setVerb("PUT")
+                                                                    .setPath(String.format("/v1/messages/%s", list.getDestination()))
+                                                                    .addAllHeaders(headers)
+                                                                    .setBody(ByteString.copyFrom(JsonUtil.toJson(list).getBytes()))
+                                                                    .build();
+
+    return sendRequest(requestMessage, new ResponseParser<SendMessageResponse>() {
+      @Override
+      public SendMessageResponse parse(String body) throws IOException {
+        if (Util.isEmpty(body)) return new SendMessageResponse(false);
+        else                    return JsonUtil.fromJson(body, SendMessageResponse.class);
       }
+    });
+  }
 
-      if (Util.isEmpty(response.second())) return new SendMessageResponse(false);
-      else                                 return JsonUtil.fromJson(response.second(), SendMessageResponse.class);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (InterruptedException e) {
-      throw new IOException(e);
-    } catch (ExecutionException e) {
-      throw new IOException(e);
-    } catch (TimeoutException e) {
-      throw new IOException(e);
+  /**
+   * Sends the messages for each recipient one after the other, before any of them have been
+   * responded to.
+   *
+   * @param unidentifiedAccess The unidentified access for each recipient, in the same order.
+   * @return The response to each message, in the same order.
+   */
+  public List<ListenableFuture<SendMessageResponse>> sendAsync(List<OutgoingPushMessageList> lists, List<Optional<UnidentifiedAccess>> unidentifiedAccess)
+      throws IOException
+  {
+    if (lists.size() != unidentifiedAccess.size()) {
+      throw new IllegalArgumentException("Expected unidentified access for each recipient!");
+    }
+
+    List<ListenableFuture<SendMessageResponse>> responses = new ArrayList<ListenableFuture<SendMessageResponse>>(lists.size());
+
+    for (int i = 0; i < lists.size(); i++) {
+      responses.add(sendAsync(lists.get(i), unidentifiedAccess.get(i)));
     }
+
+    return responses;
   }
 
   public SignalServiceProfile getProfile(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
-    try {
-      List<String> headers = new LinkedList<String>();
+    return await(getProfileAsync(address, unidentifiedAccess));
+  }
 
-      if (unidentifiedAccess.isPresent()) {
-        headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
-      }
+  public ListenableFuture<SignalServiceProfile> getProfileAsync(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
+    List<String> headers = new LinkedList<String>();
+
+    if (unidentifiedAccess.isPresent()) {
+      headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    }
 
-      WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(SecureRandom.getInstance("SHA1PRNG").nextLong())
-                                                                      .setVerb("GET")
-                                                                      .setPath(String.format("/v1/profile/%s", address.getNumber()))
-                                                                      .addAllHeaders(headers)
-                                                                      .build();
+    WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
+                                                                    .setId(random.nextLong())
+                                                                    .setVerb("GET")
+                                                                    .setPath(String.format("/v1/profile/%s", address.getNumber()))
+                                                                    .addAllHeaders(headers)
+                                                                    .build();
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+    return sendRequest(requestMessage, new JsonResponseParser<SignalServiceProfile>(SignalServiceProfile.class));
+  }
 
-      if (response.first() < 200 || response.first() >= 300) {
-        throw new IOException("Non-successful response: " + response.first());
-      }
+  public AttachmentUploadAttributes getAttachmentUploadAttributes() throws IOException {
+    return await(getAttachmentUploadAttributesAsync());
+  }
+
+  public ListenableFuture<AttachmentUploadAttributes> getAttachmentUploadAttributesAsync() throws IOException {
+    WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
+                                                                    .setId(random.nextLong())
+                                                                    .setVerb("GET")
+                                                                    .setPath("/v2/attachments/form/upload")
+                                                                    .build();
+
+    return sendRequest(requestMessage, new JsonResponseParser<AttachmentUploadAttributes>(AttachmentUploadAttributes.class));
+  }
 
-      return JsonUtil.fromJson(response.second(), SignalServiceProfile.class);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError(nsae);
+  /**
+   * Close this connection to the server.
+   */
+  public void shutdown() {
+    websocket.setRequestListener(null);
+    websocket.disconnect();
+  }
+
+  private <T> ListenableFuture<T> sendRequest(WebSocketRequestMessage request, final ResponseParser<T> parser) throws IOException {
+    try {
+      outstandingRequests.acquire();
     } catch (InterruptedException e) {
       throw new IOException(e);
-    } catch (ExecutionException e) {
-      throw new IOException(e);
-    } catch (TimeoutException e) {
-      throw new IOException(e);
     }
-  }
 
-  public AttachmentUploadAttributes getAttachmentUploadAttributes() throws IOException {
+    final SettableFuture<T>                      result = new SettableFuture<T>();
+    final ListenableFuture<Pair<Integer, String>> response;
+
     try {
-      WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(new SecureRandom().nextLong())
-                                                                      .setVerb("GET")
-                                                                      .setPath("/v2/attachments/form/upload")
-                                                                      .build();
+      response = websocket.sendRequest(request, REQUEST_TIMEOUT_MILLIS);
+    } catch (IOException e) {
+      outstandingRequests.release();
+      throw e;
+    }
+
+    response.addListener(new ListenableFuture.Listener<Pair<Integer, String>>() {
+      @Override
+      public void onSuccess(Pair<Integer, String> response) {
+        outstandingRequests.release();
+
+        if (response.first() < 200 || response.first() >= 300) {
+          result.setException(new IOException("Non-successful response: " + response.first()));
+          return;
+        }
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+        try {
+          result.set(parser.parse(response.second()));
+        } catch (IOException e) {
+          result.setException(e);
+        }
+      }
 
-      if (response.first() < 200 || response.first() >= 300) {
-        throw new IOException("Non-successful response: " + response.first());
+      @Override
+      public void onFailure(ExecutionException e) {
+        outstandingRequests.release();
+        result.setException(e.getCause());
       }
+    });
+
+    return result;
+  }
 
-      return JsonUtil.fromJson(response.second(), AttachmentUploadAttributes.class);
+  private static <T> T await(ListenableFuture<T> future) throws IOException {
+    try {
+      return future.get();
     } catch (InterruptedException e) {
       throw new IOException(e);
     } catch (ExecutionException e) {
-      throw new IOException(e);
-    } catch (TimeoutException e) {
-      throw new IOException(e);
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      else                                     throw new IOException(e);
     }
   }
 
-  /**
-   * Close this connection to the server.
-   */
-  public void shutdown() {
-    websocket.disconnect();
+  private SignalServiceEnvelope handleRequest(WebSocketRequestMessage request, MessagePipeCallback callback)
+      throws IOException, InvalidVersionException
+  {
+    WebSocketResponseMessage response           = createWebSocketResponse(request);
+    boolean                  signalKeyEncrypted = isSignalKeyEncrypted(request);
+
+    try {
+      if (isSignalServiceEnvelope(request)) {
+        SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(),
+                                                                   credentialsProvider.get().getSignalingKey(),
+                                                                   signalKeyEncrypted);
+
+        callback.onMessage(envelope);
+        return envelope;
+      }
+
+      return null;
+    } finally {
+      websocket.sendResponse(response);
+    }
   }
 
   private boolean isSignalServiceEnvelope(WebSocketRequestMessage message) {
@@ -267,6 +375,24 @@ public class SignalServiceMessagePipe {
     public void onMessage(SignalServiceEnvelope envelope);
   }
 
+  private interface ResponseParser<T> {
+    T parse(String body) throws IOException;
+  }
+
+  private static class JsonResponseParser<T> implements ResponseParser<T> {
+
+    private final Class<T> type;
+
+    private JsonResponseParser(Class<T> type) {
+      this.type = type;
+    }
+
+    @Override
+    public T parse(String body) throws IOException {
+      return JsonUtil.fromJson(body, type);
+    }
+  }
+
   private static class NullMessagePipeCallback implements MessagePipeCallback {
     @Override
     public void onMessage(SignalServiceEnvelope envelope) {}
@@ -9,6 +9,7 @@ package org.whispersystems.signalservice.api;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.signalservice.api.crypto.AttachmentVerifyingOutputStream;
 import org.whispersystems.signalservice.api.crypto.ProfileCipherInputStream;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
@@ -28,13 +29,16 @@ import org.whispersystems.signalservice.internal.sticker.StickerProtos;
 import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
 import org.whispersystems.signalservice.internal.util.Util;
 import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
-import org.whispersystems.signalservice.loki.api.LokiFileUtilities;
+import org.whispersystems.signalservice.loki.api.LokiFileDownloader;
+import org.whispersystems.signalservice.loki.api.LokiFileDownloader.Priority;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -117,14 +121,14 @@ public class SignalServiceMessageReceiver {
   public InputStream retrieveProfileAvatar(String path, File destination, byte[] profileKey, int maxSizeBytes)
     throws IOException
   {
-    LokiFileUtilities.INSTANCE.downloadFile(destination, path, maxSizeBytes, null);
+    LokiFileDownloader.INSTANCE.downloadFile(destination, path, maxSizeBytes, Priority.AVATAR, null);
     return new ProfileCipherInputStream(new FileInputStream(destination), profileKey);
   }
 
   public InputStream retrievePublicProfilePicture(String path, File destination, int maxSizeBytes)
     throws IOException
   {
-    LokiFileUtilities.INSTANCE.downloadFile(destination, path, maxSizeBytes, null);
+    LokiFileDownloader.INSTANCE.downloadFile(destination, path, maxSizeBytes, Priority.AVATAR, null);
     return new FileInputStream(destination);
   }
 
@@ -133,7 +137,8 @@ public class SignalServiceMessageReceiver {
    *
    * @param pointer The {@link SignalServiceAttachmentPointer}
    *                received in a {@link SignalServiceDataMessage}.
-   * @param destination The download destination for this attachment.
+   * @param destination The download destination for this attachment. If it holds part of the
+   *                    attachment from an interrupted download, the download is resumed.
    * @param listener An optional listener (may be null) to receive callbacks on download progress.
    *
    * @return An InputStream that streams the plaintext attachment contents.
@@ -145,12 +150,61 @@ public class SignalServiceMessageReceiver {
   {
     // Loki - Fetch attachment
     if (pointer.getUrl().isEmpty()) throw new InvalidMessageException("Missing attachment URL.");
-    LokiFileUtilities.INSTANCE.downloadFile(destination, pointer.getUrl(), maxSizeBytes, listener);
 
     // Loki - Assume we're retrieving an attachment for a public chat server if the digest is not set
-    if (!pointer.getDigest().isPresent()) { return new FileInputStream(destination); }
+    if (!pointer.getDigest().isPresent()) {
+      LokiFileDownloader.INSTANCE.downloadFile(destination, pointer.getUrl(), maxSizeBytes, Priority.MEDIA, listener);
+      return new FileInputStream(destination);
+    }
+
+    AttachmentDownloadTarget target = new AttachmentDownloadTarget(destination, pointer.getKey(), pointer.getDigest().get());
 
-    return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
+    try {
+      LokiFileDownloader.INSTANCE.downloadFile(target, pointer.getUrl(), maxSizeBytes, Priority.MEDIA, listener);
+    } finally {
+      target.close();
+    }
+
+    try {
+      return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), target.getOutputStream());
+    } catch (InvalidMessageException e) {
+      // Don't resume from a bad download next time
+      destination.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * Retrieves a SignalServiceAttachment, decrypting it straight into {@code destination}
+   * as it downloads, without storing the ciphertext.
+   *
+   * The attachment is only verified once the download completes, so if this throws,
+   * whatever was written to {@code destination} must be discarded.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param destination The stream to write the plaintext attachment contents to.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   *
+   * @throws IOException
+   * @throws InvalidMessageException
+   */
+  public void retrieveAttachment(SignalServiceAttachmentPointer pointer, OutputStream destination, int maxSizeBytes, ProgressListener listener)
+      throws IOException, InvalidMessageException
+  {
+    if (pointer.getUrl().isEmpty()) throw new InvalidMessageException("Missing attachment URL.");
+
+    if (!pointer.getDigest().isPresent()) {
+      LokiFileDownloader.INSTANCE.downloadFile(destination, pointer.getUrl(), maxSizeBytes, Priority.MEDIA, listener);
+      return;
+    }
+
+    AttachmentVerifyingOutputStream outputStream = AttachmentVerifyingOutputStream.forPlaintext(destination, pointer.getKey(),
+                                                                                                pointer.getDigest().get(),
+                                                                                                pointer.getSize().or(0));
+
+    LokiFileDownloader.INSTANCE.downloadFile(outputStream, pointer.getUrl(), maxSizeBytes, Priority.MEDIA, listener);
+    outputStream.verify();
   }
 
   public InputStream retrieveSticker(byte[] packId, byte[] packKey, int stickerId)
@@ -260,4 +314,55 @@ public class SignalServiceMessageReceiver {
     public void onMessage(SignalServiceEnvelope envelope) {}
   }
 
+  /**
+   * Verifies an attachment as it's downloaded to a file, resuming from whatever
+   * part of it the file already holds.
+   */
+  private static class AttachmentDownloadTarget implements LokiFileDownloader.DownloadTarget {
+
+    private final File   destination;
+    private final byte[] key;
+    private final byte[] digest;
+
+    private AttachmentVerifyingOutputStream outputStream;
+
+    private AttachmentDownloadTarget(File destination, byte[] key, byte[] digest) {
+      this.destination = destination;
+      this.key         = key;
+      this.digest      = digest;
+    }
+
+    @Override
+    public long getResumeOffset() {
+      return destination.length();
+    }
+
+    @Override
+    public OutputStream open(long offset) throws IOException {
+      close();
+
+      outputStream = AttachmentVerifyingOutputStream.forCiphertext(new FileOutputStream(destination, offset > 0), key, digest);
+
+      if (offset > 0) {
+        InputStream storedCiphertext = new FileInputStream(destination);
+
+        try {
+          outputStream.resume(storedCiphertext);
+        } finally {
+          storedCiphertext.close();
+        }
+      }
+
+      return outputStream;
+    }
+
+    public AttachmentVerifyingOutputStream getOutputStream() throws InvalidMessageException {
+      if (outputStream == null) throw new InvalidMessageException("Attachment wasn't downloaded!");
+      return outputStream;
+    }
+
+    public void close() throws IOException {
+      if (outputStream != null) outputStream.close();
+    }
+  }
 }
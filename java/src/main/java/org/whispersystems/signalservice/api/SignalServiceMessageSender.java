@@ -22,7 +22,6 @@ import org.whispersystems.libsignal.loki.LokiSessionResetStatus;
 import org.whispersystems.libsignal.state.PreKeyBundle;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.util.guava.Optional;
-import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream;
 import org.whispersystems.signalservice.api.crypto.SignalServiceCipher;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
@@ -52,11 +51,9 @@ import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
 import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
-import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
 import org.whispersystems.signalservice.internal.push.MismatchedDevices;
 import org.whispersystems.signalservice.internal.push.OutgoingPushMessage;
 import org.whispersystems.signalservice.internal.push.OutgoingPushMessageList;
-import org.whispersystems.signalservice.internal.push.PushAttachmentData;
 import org.whispersystems.signalservice.internal.push.PushServiceSocket;
 import org.whispersystems.signalservice.internal.push.PushTransportDetails;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
@@ -73,17 +70,18 @@ import org.whispersystems.signalservice.internal.push.SignalServiceProtos.SyncMe
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.TypingMessage;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Verified;
 import org.whispersystems.signalservice.internal.push.StaleDevices;
-import org.whispersystems.signalservice.internal.push.http.AttachmentCipherOutputStreamFactory;
-import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
 import org.whispersystems.signalservice.internal.util.Base64;
+import org.whispersystems.signalservice.internal.util.Hex;
 import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
 import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 import org.whispersystems.signalservice.loki.api.DeviceLink;
 import org.whispersystems.signalservice.loki.api.LokiAPI;
 import org.whispersystems.signalservice.loki.api.LokiAPIDatabaseProtocol;
 import org.whispersystems.signalservice.loki.api.LokiDotNetAPI;
 import org.whispersystems.signalservice.loki.api.LokiFileServerAPI;
+import org.whispersystems.signalservice.loki.api.LokiNetworkClock;
 import org.whispersystems.signalservice.loki.api.LokiPublicChat;
 import org.whispersystems.signalservice.loki.api.LokiPublicChatAPI;
 import org.whispersystems.signalservice.loki.api.LokiPublicChatMessage;
@@ -93,7 +91,6 @@ import org.whispersystems.signalservice.loki.messaging.LokiSyncMessage;
 import org.whispersystems.signalservice.loki.messaging.LokiThreadDatabaseProtocol;
 import org.whispersystems.signalservice.loki.messaging.LokiUserDatabaseProtocol;
 import org.whispersystems.signalservice.loki.messaging.SignalMessageInfo;
-import org.whispersystems.signalservice.loki.utilities.BasicOutputStreamFactory;
 import org.whispersystems.signalservice.loki.utilities.Broadcaster;
 
 import java.io.IOException;
@@ -106,6 +103,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -124,6 +124,9 @@ public class SignalServiceMessageSender {
 
   private static final String TAG = SignalServiceMessageSender.class.getSimpleName();
 
+  private static final AttachmentUploadManager  attachmentUploadManager = new AttachmentUploadManager();
+  private static final OutboundMessageScheduler outboundScheduler       = new OutboundMessageScheduler();
+
   private final PushServiceSocket                                   socket;
   private final SignalProtocolStore                                 store;
   private final SignalServiceAddress                                localAddress;
@@ -211,18 +214,23 @@ public class SignalServiceMessageSender {
    *
    * @param recipient The sender of the received message you're acknowledging.
    * @param message The read receipt to deliver.
+   * @return The result of the send, which isn't a success if the receipt couldn't be delivered.
    * @throws IOException
    * @throws UntrustedIdentityException
    */
-  public void sendReceipt(long messageID,
-                          SignalServiceAddress recipient,
-                          Optional<UnidentifiedAccessPair> unidentifiedAccess,
-                          SignalServiceReceiptMessage message)
+  public SendMessageResult sendReceipt(final long messageID,
+                                       final SignalServiceAddress recipient,
+                                       final Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                                       final SignalServiceReceiptMessage message)
       throws IOException, UntrustedIdentityException
   {
-    byte[] content = createReceiptContent(message);
-
-    sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), message.getWhen(), content, false, message.getTTL());
+    return schedule(OutboundMessageScheduler.Priority.RECEIPT, null, new Callable<SendMessageResult>() {
+      @Override
+      public SendMessageResult call() throws Exception {
+        byte[] content = createReceiptContent(message);
+        return sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), message.getWhen(), content, false, message.getTTL());
+      }
+    });
   }
 
   /**
@@ -233,25 +241,38 @@ public class SignalServiceMessageSender {
    * @throws IOException
    * @throws UntrustedIdentityException
    */
-  public void sendTyping(long messageID,
-                         SignalServiceAddress recipient,
-                         Optional<UnidentifiedAccessPair> unidentifiedAccess,
-                         SignalServiceTypingMessage message)
+  public void sendTyping(final long messageID,
+                         final SignalServiceAddress recipient,
+                         final Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                         final SignalServiceTypingMessage message)
       throws IOException, UntrustedIdentityException
   {
-    byte[] content = createTypingContent(message);
-
-    sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), message.getTimestamp(), content, true, message.getTTL());
+    schedule(OutboundMessageScheduler.Priority.TYPING, getTypingKey(Collections.singletonList(recipient), message), new Callable<SendMessageResult>() {
+      @Override
+      public SendMessageResult call() throws Exception {
+        byte[] content = createTypingContent(message);
+        return sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), message.getTimestamp(), content, true, message.getTTL());
+      }
+    });
   }
 
-  public void sendTyping(long                                   messageID,
-                         List<SignalServiceAddress>             recipients,
-                         List<Optional<UnidentifiedAccessPair>> unidentifiedAccess,
-                         SignalServiceTypingMessage             message)
+  public void sendTyping(final long                                   messageID,
+                         final List<SignalServiceAddress>             recipients,
+                         final List<Optional<UnidentifiedAccessPair>> unidentifiedAccess,
+                         final SignalServiceTypingMessage             message)
       throws IOException
   {
-    byte[] content = createTypingContent(message);
-    sendMessage(messageID, recipients, getTargetUnidentifiedAccess(unidentifiedAccess), message.getTimestamp(), content, true, message.getTTL());
+    try {
+      schedule(OutboundMessageScheduler.Priority.TYPING, getTypingKey(recipients, message), new Callable<List<SendMessageResult>>() {
+        @Override
+        public List<SendMessageResult> call() throws Exception {
+          byte[] content = createTypingContent(message);
+          return sendMessage(messageID, recipients, getTargetUnidentifiedAccess(unidentifiedAccess), message.getTimestamp(), content, true, message.getTTL());
+        }
+      });
+    } catch (UntrustedIdentityException e) {
+      throw new IOException(e);
+    }
   }
 
 
@@ -262,14 +283,19 @@ public class SignalServiceMessageSender {
    * @param message The call message.
    * @throws IOException
    */
-  public void sendCallMessage(long messageID,
-                              SignalServiceAddress recipient,
-                              Optional<UnidentifiedAccessPair> unidentifiedAccess,
-                              SignalServiceCallMessage message)
+  public void sendCallMessage(final long messageID,
+                              final SignalServiceAddress recipient,
+                              final Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                              final SignalServiceCallMessage message)
       throws IOException, UntrustedIdentityException
   {
-    byte[] content = createCallContent(message);
-    sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), System.currentTimeMillis(), content, false, message.getTTL());
+    schedule(OutboundMessageScheduler.Priority.MESSAGE, null, new Callable<SendMessageResult>() {
+      @Override
+      public SendMessageResult call() throws Exception {
+        byte[] content = createCallContent(message);
+        return sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), LokiNetworkClock.now(), content, false, message.getTTL());
+      }
+    });
   }
 
   public SendMessageResult sendMessage(long                             messageID,
@@ -289,11 +315,26 @@ public class SignalServiceMessageSender {
    * @throws UntrustedIdentityException
    * @throws IOException
    */
-  public SendMessageResult sendMessage(long                             messageID,
-                                       SignalServiceAddress             recipient,
-                                       Optional<UnidentifiedAccessPair> unidentifiedAccess,
-                                       SignalServiceDataMessage         message,
-                                       Optional<LokiSyncMessage>        lokiSyncMessage)
+  public SendMessageResult sendMessage(final long                             messageID,
+                                       final SignalServiceAddress             recipient,
+                                       final Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                                       final SignalServiceDataMessage         message,
+                                       final Optional<LokiSyncMessage>        lokiSyncMessage)
+      throws UntrustedIdentityException, IOException
+  {
+    return schedule(OutboundMessageScheduler.Priority.MESSAGE, null, new Callable<SendMessageResult>() {
+      @Override
+      public SendMessageResult call() throws Exception {
+        return sendDataMessage(messageID, recipient, unidentifiedAccess, message, lokiSyncMessage);
+      }
+    });
+  }
+
+  private SendMessageResult sendDataMessage(long                             messageID,
+                                            SignalServiceAddress             recipient,
+                                            Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                                            SignalServiceDataMessage         message,
+                                            Optional<LokiSyncMessage>        lokiSyncMessage)
       throws UntrustedIdentityException, IOException
   {
     byte[]            content                   = createMessageContent(message, recipient);
@@ -301,6 +342,86 @@ public class SignalServiceMessageSender {
     boolean           updateFriendRequestStatus = !message.isSessionRequest() && !message.isGroupMessage();
     SendMessageResult result                    = sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), timestamp, content, false, message.getTTL(), message.isFriendRequest(), updateFriendRequestStatus);
 
+    onDataMessageSent(recipient, unidentifiedAccess, message, lokiSyncMessage, content, result);
+
+    return result;
+  }
+
+  /**
+   * Send a message to a single recipient without waiting for it to be sent.
+   *
+   * @see #sendMessageAsync(long, SignalServiceAddress, Optional, SignalServiceDataMessage, Optional)
+   */
+  public ListenableFuture<SendMessageResult> sendMessageAsync(long                             messageID,
+                                                              SignalServiceAddress             recipient,
+                                                              Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                                                              SignalServiceDataMessage         message)
+  {
+    return sendMessageAsync(messageID, recipient, unidentifiedAccess, message, Optional.<LokiSyncMessage>absent());
+  }
+
+  /**
+   * Send a message to a single recipient without waiting for it to be sent, so that many sends
+   * can be in flight without a thread blocked on each.
+   *
+   * The message is encrypted on the outbound scheduler, like a message sent with
+   * {@link #sendMessage(long, SignalServiceAddress, Optional, SignalServiceDataMessage, Optional)},
+   * but its proof of work and delivery to the swarm don't hold up a thread. Its result is set as
+   * soon as the first snode accepts it, or once every snode has failed. Listeners for sync
+   * and session reset events may be notified on a network thread.
+   *
+   * @return A future for the result of the send. If it fails, the cause is usually an
+   *         {@link IOException} or {@link UntrustedIdentityException}.
+   */
+  public ListenableFuture<SendMessageResult> sendMessageAsync(final long                             messageID,
+                                                              final SignalServiceAddress             recipient,
+                                                              final Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                                                              final SignalServiceDataMessage         message,
+                                                              final Optional<LokiSyncMessage>        lokiSyncMessage)
+  {
+    ListenableFuture<ListenableFuture<SendMessageResult>> encrypted = outboundScheduler.schedule(OutboundMessageScheduler.Priority.MESSAGE, null, new Callable<ListenableFuture<SendMessageResult>>() {
+      @Override
+      public ListenableFuture<SendMessageResult> call() throws Exception {
+        final byte[]                            content                   = createMessageContent(message, recipient);
+        final SettableFuture<SendMessageResult> result                    = new SettableFuture<SendMessageResult>();
+        boolean                                 updateFriendRequestStatus = !message.isSessionRequest() && !message.isGroupMessage();
+
+        sendMessageAsync(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), message.getTimestamp(), content, false, message.getTTL(), message.isFriendRequest(), updateFriendRequestStatus)
+            .addListener(new ListenableFuture.Listener<SendMessageResult>() {
+              @Override
+              public void onSuccess(SendMessageResult sent) {
+                try {
+                  onDataMessageSent(recipient, unidentifiedAccess, message, lokiSyncMessage, content, sent);
+                  result.set(sent);
+                } catch (Throwable t) {
+                  // Including the app's sync and session listeners throwing, since the send's future would otherwise never be set
+                  result.setException(t);
+                }
+              }
+
+              @Override
+              public void onFailure(ExecutionException e) {
+                result.setException(e.getCause());
+              }
+            });
+
+        return result;
+      }
+    });
+
+    return flatten(encrypted);
+  }
+
+  private void onDataMessageSent(SignalServiceAddress             recipient,
+                                 Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                                 SignalServiceDataMessage         message,
+                                 Optional<LokiSyncMessage>        lokiSyncMessage,
+                                 byte[]                           content,
+                                 SendMessageResult                result)
+      throws IOException
+  {
+    long timestamp = message.getTimestamp();
+
     if (lokiSyncMessage.isPresent() && (result.getSuccess() != null && message.canSyncMessage() || (unidentifiedAccess.isPresent() && isMultiDevice.get()))) {
       byte[] syncMessage = createMultiDeviceSentTranscriptContent(content, Optional.of(lokiSyncMessage.get().getRecipient()), timestamp, Collections.singletonList(result));
       // Trigger an event to send a sync message
@@ -323,8 +444,6 @@ public class SignalServiceMessageSender {
         eventListener.get().onSecurityEvent(recipient);
       }
     }
-
-    return result;
   }
 
   /**
@@ -334,10 +453,24 @@ public class SignalServiceMessageSender {
    * @param message The group message.
    * @throws IOException
    */
-  public List<SendMessageResult> sendMessage(long                                   messageID,
-                                             List<SignalServiceAddress>             recipients,
-                                             List<Optional<UnidentifiedAccessPair>> unidentifiedAccess,
-                                             SignalServiceDataMessage               message)
+  public List<SendMessageResult> sendMessage(final long                                   messageID,
+                                             final List<SignalServiceAddress>             recipients,
+                                             final List<Optional<UnidentifiedAccessPair>> unidentifiedAccess,
+                                             final SignalServiceDataMessage               message)
+      throws IOException, UntrustedIdentityException
+  {
+    return schedule(OutboundMessageScheduler.Priority.MESSAGE, null, new Callable<List<SendMessageResult>>() {
+      @Override
+      public List<SendMessageResult> call() throws Exception {
+        return sendDataMessage(messageID, recipients, unidentifiedAccess, message);
+      }
+    });
+  }
+
+  private List<SendMessageResult> sendDataMessage(long                                   messageID,
+                                                  List<SignalServiceAddress>             recipients,
+                                                  List<Optional<UnidentifiedAccessPair>> unidentifiedAccess,
+                                                  SignalServiceDataMessage               message)
       throws IOException, UntrustedIdentityException
   {
     byte[]                  content            = createMessageContent(message, recipients.get(0));
@@ -372,11 +505,23 @@ public class SignalServiceMessageSender {
     sendMessage(messageID, message, unidentifiedAccess, Optional.<SignalServiceAddress>absent());
   }
 
-  public void sendMessage(long messageID, SignalServiceSyncMessage message, Optional<UnidentifiedAccessPair> unidentifiedAccess, Optional<SignalServiceAddress> recipient)
+  public void sendMessage(final long messageID, final SignalServiceSyncMessage message, final Optional<UnidentifiedAccessPair> unidentifiedAccess, final Optional<SignalServiceAddress> recipient)
+          throws IOException, UntrustedIdentityException
+  {
+    schedule(OutboundMessageScheduler.Priority.SYNC, null, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        sendSyncMessage(messageID, message, unidentifiedAccess, recipient);
+        return null;
+      }
+    });
+  }
+
+  private void sendSyncMessage(long messageID, SignalServiceSyncMessage message, Optional<UnidentifiedAccessPair> unidentifiedAccess, Optional<SignalServiceAddress> recipient)
           throws IOException, UntrustedIdentityException
   {
     byte[] content;
-    long timestamp = System.currentTimeMillis();
+    long timestamp = LokiNetworkClock.now();
 
     if (message.getContacts().isPresent()) {
       content = createMultiDeviceContactsContent(message.getContacts().get().getContactsStream().asStream(),
@@ -403,7 +548,7 @@ public class SignalServiceMessageSender {
 
     // Loki - Trigger an event to send sync message
     if (recipient.isPresent()) {
-      sendMessage(messageID, recipient.get(), getTargetUnidentifiedAccess(unidentifiedAccess), System.currentTimeMillis(), content, false, message.getTTL());
+      sendMessage(messageID, recipient.get(), getTargetUnidentifiedAccess(unidentifiedAccess), LokiNetworkClock.now(), content, false, message.getTTL());
     } else if (eventListener.isPresent()) {
       eventListener.get().onSyncEvent(messageID, timestamp, content, message.getTTL());
     }
@@ -426,7 +571,25 @@ public class SignalServiceMessageSender {
     this.isMultiDevice.set(isMultiDevice);
   }
 
+  public static AttachmentUploadManager getAttachmentUploadManager() {
+    return attachmentUploadManager;
+  }
+
+  public static OutboundMessageScheduler getOutboundScheduler() {
+    return outboundScheduler;
+  }
+
   public SignalServiceAttachmentPointer uploadAttachment(SignalServiceAttachmentStream attachment, boolean usePadding, @Nullable SignalServiceAddress recipient) throws IOException {
+    return getUploadedAttachment(uploadAttachmentAsync(attachment, usePadding, recipient));
+  }
+
+  /**
+   * Queue an attachment for upload alongside any others in progress.  An attachment
+   * that was already uploaded to the same server is reused rather than uploaded again.
+   *
+   * @see AttachmentUploadManager
+   */
+  public ListenableFuture<SignalServiceAttachmentPointer> uploadAttachmentAsync(final SignalServiceAttachmentStream attachment, boolean usePadding, @Nullable SignalServiceAddress recipient) {
     boolean shouldUseEncryption = true;
     String server = LokiFileServerAPI.shared.getServer();
 
@@ -440,26 +603,44 @@ public class SignalServiceMessageSender {
       }
     }
 
-    byte[]             attachmentKey    = Util.getSecretBytes(64);
-    long               paddedLength     = usePadding ? PaddingInputStream.getPaddedSize(attachment.getLength()) : attachment.getLength();
-    InputStream        dataStream       = usePadding ? new PaddingInputStream(attachment.getInputStream(), attachment.getLength()) : attachment.getInputStream();
-    long               ciphertextLength = shouldUseEncryption ? AttachmentCipherOutputStream.getCiphertextLength(paddedLength) : attachment.getLength();
-
-    OutputStreamFactory outputStreamFactory = shouldUseEncryption ? new AttachmentCipherOutputStreamFactory(attachmentKey) : new BasicOutputStreamFactory();
-    PushAttachmentData attachmentData   = new PushAttachmentData(attachment.getContentType(), dataStream, ciphertextLength, outputStreamFactory, attachment.getListener());
+    final SettableFuture<SignalServiceAttachmentPointer> future = new SettableFuture<SignalServiceAttachmentPointer>();
 
     // Loki - Upload attachment
-    LokiDotNetAPI.UploadResult result = LokiFileServerAPI.shared.uploadAttachment(server, attachmentData);
-    return new SignalServiceAttachmentPointer(result.getId(),
-                                              attachment.getContentType(),
-                                              attachmentKey,
-                                              Optional.of(Util.toIntExact(attachment.getLength())),
-                                              attachment.getPreview(),
-                                              attachment.getWidth(), attachment.getHeight(),
-                                              Optional.fromNullable(result.getDigest()),
-                                              attachment.getFileName(),
-                                              attachment.getVoiceNote(),
-                                              attachment.getCaption(), result.getUrl());
+    attachmentUploadManager.upload(server, shouldUseEncryption, usePadding, attachment).addListener(new ListenableFuture.Listener<AttachmentUploadManager.Upload>() {
+      @Override
+      public void onSuccess(AttachmentUploadManager.Upload upload) {
+        LokiDotNetAPI.UploadResult result = upload.getResult();
+        future.set(new SignalServiceAttachmentPointer(result.getId(),
+                                                      attachment.getContentType(),
+                                                      upload.getKey(),
+                                                      Optional.of(Util.toIntExact(attachment.getLength())),
+                                                      attachment.getPreview(),
+                                                      attachment.getWidth(), attachment.getHeight(),
+                                                      Optional.fromNullable(result.getDigest()),
+                                                      attachment.getFileName(),
+                                                      attachment.getVoiceNote(),
+                                                      attachment.getCaption(), result.getUrl()));
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        future.setException(e.getCause());
+      }
+    });
+
+    return future;
+  }
+
+  private static SignalServiceAttachmentPointer getUploadedAttachment(Future<SignalServiceAttachmentPointer> upload) throws IOException {
+    try {
+      return upload.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)      throw (IOException)e.getCause();
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      throw new IOException(e.getCause());
+    }
   }
 
   private void sendMessage(long messageID, VerifiedMessage message, Optional<UnidentifiedAccessPair> unidentifiedAccess)
@@ -1043,10 +1224,60 @@ public class SignalServiceMessageSender {
     return results;
   }
 
-  public SendMessageResult lokiSendSyncMessage(long messageID, SignalServiceAddress recipient, Optional<UnidentifiedAccessPair> unidentifiedAccess, long timestamp, byte[] content, int ttl)
+  public SendMessageResult lokiSendSyncMessage(final long messageID, final SignalServiceAddress recipient, final Optional<UnidentifiedAccessPair> unidentifiedAccess, final long timestamp, final byte[] content, final int ttl)
     throws IOException
   {
-    return sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), timestamp, content, false, ttl, false, true);
+    try {
+      return schedule(OutboundMessageScheduler.Priority.SYNC, null, new Callable<SendMessageResult>() {
+        @Override
+        public SendMessageResult call() throws Exception {
+          return sendMessage(messageID, recipient, getTargetUnidentifiedAccess(unidentifiedAccess), timestamp, content, false, ttl, false, true);
+        }
+      });
+    } catch (UntrustedIdentityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Sends through the shared scheduler, so that sends from every thread are made in order of
+   * priority, and waits for the send to finish.
+   */
+  private <T> T schedule(OutboundMessageScheduler.Priority priority, String coalescingKey, Callable<T> send)
+      throws IOException, UntrustedIdentityException
+  {
+    try {
+      return outboundScheduler.run(priority, coalescingKey, send);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if      (cause instanceof IOException)                throw (IOException) cause;
+      else if (cause instanceof UntrustedIdentityException) throw (UntrustedIdentityException) cause;
+      else if (cause instanceof RuntimeException)           throw (RuntimeException) cause;
+      else if (cause instanceof Error)                      throw (Error) cause;
+      else                                                  throw new IOException(cause);
+    }
+  }
+
+  // A typing indicator makes any earlier one to the same recipients in the same conversation that
+  // hasn't been sent yet obsolete. Group indicators can be sent to one member at a time, so the
+  // recipients are part of the key even when there's a group.
+  private String getTypingKey(List<SignalServiceAddress> recipients, SignalServiceTypingMessage message) {
+    StringBuilder key = new StringBuilder("typing:");
+
+    if (message.getGroupId().isPresent()) {
+      key.append(Hex.toStringCondensed(message.getGroupId().get()));
+    }
+
+    key.append(':');
+
+    for (SignalServiceAddress recipient : recipients) {
+      key.append(recipient.getNumber()).append(',');
+    }
+
+    return key.toString();
   }
 
   private SendMessageResult sendMessage(long                         messageID,
@@ -1060,8 +1291,8 @@ public class SignalServiceMessageSender {
     return sendMessage(messageID, recipient, unidentifiedAccess, timestamp, content, online, ttl, false, true);
   }
 
-  private SendMessageResult sendMessage(final long                   messageID,
-                                        final SignalServiceAddress   recipient,
+  private SendMessageResult sendMessage(long                         messageID,
+                                        SignalServiceAddress         recipient,
                                         Optional<UnidentifiedAccess> unidentifiedAccess,
                                         long                         timestamp,
                                         byte[]                       content,
@@ -1070,30 +1301,54 @@ public class SignalServiceMessageSender {
                                         boolean                      isFriendRequest,
                                         boolean                      updateFriendRequestStatus)
     throws IOException
+  {
+    ListenableFuture<SendMessageResult> result = sendMessageAsync(messageID, recipient, unidentifiedAccess, timestamp, content, online, ttl, isFriendRequest, updateFriendRequestStatus);
+
+    try {
+      return result.get(1, TimeUnit.MINUTES);
+    } catch (Exception exception) {
+      return SendMessageResult.networkFailure(recipient);
+    }
+  }
+
+  /**
+   * @return A future that's set once the message has been sent or has failed to send, and never
+   *         fails itself.
+   */
+  private ListenableFuture<SendMessageResult> sendMessageAsync(final long                   messageID,
+                                                               final SignalServiceAddress   recipient,
+                                                               Optional<UnidentifiedAccess> unidentifiedAccess,
+                                                               long                         timestamp,
+                                                               byte[]                       content,
+                                                               boolean                      online,
+                                                               int                          ttl,
+                                                               boolean                      isFriendRequest,
+                                                               boolean                      updateFriendRequestStatus)
+    throws IOException
   {
     long threadID = threadDatabase.getThreadID(recipient.getNumber());
     LokiPublicChat publicChat = threadDatabase.getPublicChat(threadID);
     try {
         if (recipient.equals(localAddress)) {
-            return SendMessageResult.success(recipient, false, false);
+            return completed(SendMessageResult.success(recipient, false, false));
         } else if (publicChat != null) {
             return sendMessageToPublicChat(messageID, recipient, timestamp, content, publicChat);
         } else {
             return sendMessageToPrivateChat(messageID, recipient, unidentifiedAccess, timestamp, content, online, ttl, isFriendRequest, updateFriendRequestStatus);
         }
     } catch (PushNetworkException e) {
-        return SendMessageResult.networkFailure(recipient);
+        return completed(SendMessageResult.networkFailure(recipient));
     } catch (UntrustedIdentityException e) {
-        return SendMessageResult.identityFailure(recipient, e.getIdentityKey());
+        return completed(SendMessageResult.identityFailure(recipient, e.getIdentityKey()));
     }
   }
 
-  private SendMessageResult sendMessageToPublicChat(final long                   messageID,
-                                                    final SignalServiceAddress   recipient,
-                                                    long                         timestamp,
-                                                    byte[]                       content,
-                                                    LokiPublicChat               publicChat) {
-    final SettableFuture<?>[] future = { new SettableFuture<Unit>() };
+  private ListenableFuture<SendMessageResult> sendMessageToPublicChat(final long                   messageID,
+                                                                     final SignalServiceAddress   recipient,
+                                                                     long                         timestamp,
+                                                                     byte[]                       content,
+                                                                     LokiPublicChat               publicChat) {
+    final SettableFuture<SendMessageResult> future = new SettableFuture<SendMessageResult>();
     try {
       SignalServiceProtos.DataMessage data = SignalServiceProtos.Content.parseFrom(content).getDataMessage();
       String body = (data.getBody() != null && data.getBody().length() > 0) ? data.getBody() : Long.toString(data.getTimestamp());
@@ -1149,45 +1404,36 @@ public class SignalServiceMessageSender {
 
         @Override
         public Unit invoke(LokiPublicChatMessage message) {
-          @SuppressWarnings("unchecked") SettableFuture<Unit> f = (SettableFuture<Unit>)future[0];
           messageDatabase.setServerID(messageID, message.getServerID());
-          f.set(Unit.INSTANCE);
+          future.set(SendMessageResult.success(recipient, false, false));
           return Unit.INSTANCE;
         }
       }).fail(new Function1<Exception, Unit>() {
 
         @Override
         public Unit invoke(Exception exception) {
-          @SuppressWarnings("unchecked") SettableFuture<Unit> f = (SettableFuture<Unit>)future[0];
-          f.setException(exception);
+          future.set(SendMessageResult.networkFailure(recipient));
           return Unit.INSTANCE;
         }
       });
     } catch (Exception exception) {
-      @SuppressWarnings("unchecked") SettableFuture<Unit> f = (SettableFuture<Unit>)future[0];
-      f.setException(exception);
-    }
-    @SuppressWarnings("unchecked") SettableFuture<Unit> f = (SettableFuture<Unit>)future[0];
-    try {
-      f.get(1, TimeUnit.MINUTES);
-      return SendMessageResult.success(recipient, false, false);
-    } catch (Exception exception) {
-      return SendMessageResult.networkFailure(recipient);
+      future.set(SendMessageResult.networkFailure(recipient));
     }
+    return future;
   }
 
-  private SendMessageResult sendMessageToPrivateChat(final long                   messageID,
-                                                     final SignalServiceAddress   recipient,
-                                                     Optional<UnidentifiedAccess> unidentifiedAccess,
-                                                     final long                   timestamp,
-                                                     byte[]                       content,
-                                                     boolean                      online,
-                                                     int                          ttl,
-                                                     boolean                      isFriendRequest,
-                                                     final boolean                updateFriendRequestStatus)
+  private ListenableFuture<SendMessageResult> sendMessageToPrivateChat(final long                   messageID,
+                                                                      final SignalServiceAddress   recipient,
+                                                                      Optional<UnidentifiedAccess> unidentifiedAccess,
+                                                                      final long                   timestamp,
+                                                                      byte[]                       content,
+                                                                      boolean                      online,
+                                                                      int                          ttl,
+                                                                      boolean                      isFriendRequest,
+                                                                      final boolean                updateFriendRequestStatus)
       throws IOException, UntrustedIdentityException
   {
-    final SettableFuture<?>[] future = { new SettableFuture<Unit>() };
+    final SettableFuture<SendMessageResult> future = new SettableFuture<SendMessageResult>();
     final long threadID = threadDatabase.getThreadID(recipient.getNumber());
     try {
       OutgoingPushMessageList messages = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, content, online, isFriendRequest);
@@ -1229,8 +1475,7 @@ public class SignalServiceMessageSender {
                 if (isFriendRequestMessage && updateFriendRequestStatus && eventListener.isPresent()) {
                     eventListener.get().onFriendRequestSent(messageID, threadID);
                 }
-                @SuppressWarnings("unchecked") SettableFuture<Unit> f = (SettableFuture<Unit>)future[0];
-                f.set(Unit.INSTANCE);
+                future.set(SendMessageResult.success(recipient, false, false));
                 return Unit.INSTANCE;
               }
             }).fail(new Function1<Exception, Unit>() {
@@ -1244,8 +1489,7 @@ public class SignalServiceMessageSender {
                 if (isFriendRequestMessage && updateFriendRequestStatus && eventListener.isPresent()) {
                     eventListener.get().onFriendRequestSendingFailed(messageID, threadID);
                 }
-                @SuppressWarnings("unchecked") SettableFuture<Unit> f = (SettableFuture<Unit>)future[0];
-                f.setException(exception);
+                future.set(SendMessageResult.networkFailure(recipient));
                 return Unit.INSTANCE;
               }
             });
@@ -1260,21 +1504,48 @@ public class SignalServiceMessageSender {
           if (isFriendRequestMessage && eventListener.isPresent()) {
               eventListener.get().onFriendRequestSendingFailed(messageID, threadID);
           }
-          @SuppressWarnings("unchecked") SettableFuture<Unit> f = (SettableFuture<Unit>)future[0];
-          f.setException(exception);
+          future.set(SendMessageResult.networkFailure(recipient));
           return Unit.INSTANCE;
         }
       });
     } catch (InvalidKeyException e) {
         throw new IOException(e);
     }
-    @SuppressWarnings("unchecked") SettableFuture<Unit> f = (SettableFuture<Unit>)future[0];
-    try {
-      f.get(1, TimeUnit.MINUTES);
-      return SendMessageResult.success(recipient, false, false);
-    } catch (Exception exception) {
-      return SendMessageResult.networkFailure(recipient);
-    }
+    return future;
+  }
+
+  private static <T> ListenableFuture<T> completed(T result) {
+    SettableFuture<T> future = new SettableFuture<T>();
+    future.set(result);
+    return future;
+  }
+
+  private static <T> ListenableFuture<T> flatten(ListenableFuture<ListenableFuture<T>> outer) {
+    final SettableFuture<T> result = new SettableFuture<T>();
+
+    outer.addListener(new ListenableFuture.Listener<ListenableFuture<T>>() {
+      @Override
+      public void onSuccess(ListenableFuture<T> inner) {
+        inner.addListener(new ListenableFuture.Listener<T>() {
+          @Override
+          public void onSuccess(T value) {
+            result.set(value);
+          }
+
+          @Override
+          public void onFailure(ExecutionException e) {
+            result.setException(e.getCause());
+          }
+        });
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        result.setException(e.getCause());
+      }
+    });
+
+    return result;
   }
 
   private List<AttachmentPointer> createAttachmentPointers(Optional<List<SignalServiceAttachment>> attachments, SignalServiceAddress recipient) throws IOException {
@@ -1285,16 +1556,25 @@ public class SignalServiceMessageSender {
       return pointers;
     }
 
+    List<ListenableFuture<SignalServiceAttachmentPointer>> uploads = new LinkedList<ListenableFuture<SignalServiceAttachmentPointer>>();
+
     for (SignalServiceAttachment attachment : attachments.get()) {
       if (attachment.isStream()) {
         Log.w(TAG, "Found attachment, creating pointer...");
-        pointers.add(createAttachmentPointer(attachment.asStream(), recipient));
+        uploads.add(uploadAttachmentAsync(attachment.asStream(), false, recipient));
       } else if (attachment.isPointer()) {
         Log.w(TAG, "Including existing attachment pointer...");
-        pointers.add(createAttachmentPointer(attachment.asPointer()));
+        SettableFuture<SignalServiceAttachmentPointer> existing = new SettableFuture<SignalServiceAttachmentPointer>();
+        existing.set(attachment.asPointer());
+        uploads.add(existing);
       }
     }
 
+    // The uploads run concurrently, so wait for them all in order
+    for (ListenableFuture<SignalServiceAttachmentPointer> upload : uploads) {
+      pointers.add(createAttachmentPointer(getUploadedAttachment(upload)));
+    }
+
     return pointers;
   }
 
@@ -9,6 +9,7 @@ package org.whispersystems.signalservice.api.crypto;
 import org.whispersystems.libsignal.InvalidMacException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.kdf.HKDFv3;
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
 import org.whispersystems.signalservice.internal.util.ContentLengthInputStream;
 import org.whispersystems.signalservice.internal.util.Util;
 
@@ -21,14 +22,12 @@ import java.io.InputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -56,7 +55,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   {
     try {
       byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
-      Mac      mac   = Mac.getInstance("HmacSHA256");
+      Mac      mac   = CryptoPrimitives.getHmacSha256();
       mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
 
       if (file.length() <= BLOCK_SIZE + mac.getMacLength()) {
@@ -77,8 +76,6 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       }
 
       return inputStream;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (InvalidMacException e) {
@@ -86,13 +83,40 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Decrypt an attachment whose ciphertext was already verified on its way to disk,
+   * skipping the separate MAC verification pass over the file.
+   *
+   * @param file The file the ciphertext was written to.
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   * @param verifiedCiphertext The stream that verified the ciphertext as it was written to {@code file}.
+   */
+  public static InputStream createForAttachment(File file, long plaintextLength, AttachmentVerifyingOutputStream verifiedCiphertext)
+      throws InvalidMessageException, IOException
+  {
+    verifiedCiphertext.verify();
+
+    if (file.length() != verifiedCiphertext.getCiphertextLength()) {
+      throw new InvalidMessageException("Attachment file doesn't match verified ciphertext!");
+    }
+
+    InputStream inputStream = new AttachmentCipherInputStream(new FileInputStream(file), verifiedCiphertext.getCipherKey(),
+                                                              file.length() - BLOCK_SIZE - verifiedCiphertext.getMacLength());
+
+    if (plaintextLength != 0) {
+      inputStream = new ContentLengthInputStream(inputStream, plaintextLength);
+    }
+
+    return inputStream;
+  }
+
   public static InputStream createForStickerData(byte[] data, byte[] packKey)
       throws InvalidMessageException, IOException
   {
     try {
       byte[]   combinedKeyMaterial = new HKDFv3().deriveSecrets(packKey, "Sticker Pack".getBytes(), 64);
       byte[][] parts               = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
-      Mac      mac                 = Mac.getInstance("HmacSHA256");
+      Mac      mac                 = CryptoPrimitives.getHmacSha256();
       mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
 
       if (data.length <= BLOCK_SIZE + mac.getMacLength()) {
@@ -103,8 +127,6 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       verifyMac(inputStream, data.length, mac, null);
 
       return new AttachmentCipherInputStream(new ByteArrayInputStream(data), parts[0], data.length - BLOCK_SIZE - mac.getMacLength());
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (InvalidMacException e) {
@@ -121,18 +143,14 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       byte[] iv = new byte[BLOCK_SIZE];
       readFully(iv);
 
-      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher = CryptoPrimitives.acquireAesCbc();
       this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
 
       this.done          = false;
       this.totalRead     = 0;
       this.totalDataSize = totalDataSize;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
     } catch (InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     }
@@ -155,6 +173,18 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     return false;
   }
 
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (cipher != null) {
+        CryptoPrimitives.release(cipher);
+        cipher = null;
+      }
+    }
+  }
+
   @Override
   public long skip(long byteCount) throws IOException {
     long skipped = 0L;
@@ -238,7 +268,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       throws InvalidMacException
   {
     try {
-      MessageDigest   digest        = MessageDigest.getInstance("SHA256");
+      MessageDigest   digest        = CryptoPrimitives.getSha256();
       int             remainingData = Util.toIntExact(length) - mac.getMacLength();
       byte[]          buffer        = new byte[4096];
 
@@ -267,8 +297,6 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       throw new InvalidMacException(e);
     } catch (ArithmeticException e) {
       throw new InvalidMacException(e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     }
   }
 
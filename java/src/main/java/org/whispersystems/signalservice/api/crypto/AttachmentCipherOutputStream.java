@@ -6,24 +6,23 @@
 
 package org.whispersystems.signalservice.api.crypto;
 
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 public class AttachmentCipherOutputStream extends DigestingOutputStream {
 
-  private final Cipher cipher;
-  private final Mac    mac;
+  private Cipher cipher;
+  private Mac    mac;
 
   public AttachmentCipherOutputStream(byte[] combinedKeyMaterial,
                                       OutputStream outputStream)
@@ -31,8 +30,8 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
   {
     super(outputStream);
     try {
-      this.cipher       = initializeCipher();
-      this.mac          = initializeMac();
+      this.cipher       = CryptoPrimitives.acquireAesCbc();
+      this.mac          = CryptoPrimitives.acquireHmacSha256();
       byte[][] keyParts = Util.split(combinedKeyMaterial, 32, 32);
 
       this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyParts[0], "AES"));
@@ -82,25 +81,19 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
     }
   }
 
-  public static long getCiphertextLength(long plaintextLength) {
-    return 16 + (((plaintextLength / 16) +1) * 16) + 32;
-  }
-
-  private Mac initializeMac() {
-    try {
-      return Mac.getInstance("HmacSHA256");
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
+  @Override
+  public void release() {
+    super.release();
+
+    if (cipher != null) {
+      CryptoPrimitives.release(cipher);
+      CryptoPrimitives.release(mac);
+      cipher = null;
+      mac    = null;
     }
   }
 
-  private Cipher initializeCipher() {
-    try {
-      return Cipher.getInstance("AES/CBC/PKCS5Padding");
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
-    }
+  public static long getCiphertextLength(long plaintextLength) {
+    return 16 + (((plaintextLength / 16) +1) * 16) + 32;
   }
 }
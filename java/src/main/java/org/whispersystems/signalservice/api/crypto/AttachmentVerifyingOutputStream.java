@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014-2017 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api.crypto;
+
+import org.whispersystems.libsignal.InvalidMacException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class for verifying an encrypted push attachment while it is being downloaded.
+ *
+ * The HMAC and SHA-256 digest are computed as the ciphertext is written, so once
+ * {@link #verify()} succeeds the attachment never has to be read back for a second
+ * verification pass.  The stream either passes the ciphertext through unchanged
+ * (see {@link #forCiphertext(OutputStream, byte[], byte[])}), or decrypts it on the
+ * fly (see {@link #forPlaintext(OutputStream, byte[], byte[], long)}).
+ */
+public class AttachmentVerifyingOutputStream extends FilterOutputStream {
+
+  private static final int BLOCK_SIZE      = 16;
+  private static final int CIPHER_KEY_SIZE = 32;
+  private static final int MAC_KEY_SIZE    = 32;
+
+  private final byte[]        cipherKey;
+  private final int           macLength;
+  private final byte[]        theirDigest;
+  private final boolean       decrypt;
+  private final byte[]        tail;
+  private final byte[]        iv;
+
+  private Mac           mac;
+  private MessageDigest digest;
+  private Cipher        cipher;
+  private int           tailLength;
+  private int           ivLength;
+  private long          totalWritten;
+  private long          plaintextRemaining;
+  private boolean       verified;
+
+  /**
+   * Verify an attachment while writing its ciphertext, unchanged, to {@code ciphertextOutput}.
+   * Pass the stream to {@link AttachmentCipherInputStream#createForAttachment(java.io.File, long, AttachmentVerifyingOutputStream)}
+   * to decrypt the stored ciphertext without verifying it again.
+   */
+  public static AttachmentVerifyingOutputStream forCiphertext(OutputStream ciphertextOutput, byte[] combinedKeyMaterial, byte[] digest) {
+    return new AttachmentVerifyingOutputStream(ciphertextOutput, combinedKeyMaterial, digest, false, 0);
+  }
+
+  /**
+   * Verify an attachment while decrypting it straight into {@code plaintextOutput}.
+   * Plaintext is written before the MAC has been checked, so if {@link #verify()}
+   * fails everything written to {@code plaintextOutput} must be discarded.
+   *
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   */
+  public static AttachmentVerifyingOutputStream forPlaintext(OutputStream plaintextOutput, byte[] combinedKeyMaterial, byte[] digest, long plaintextLength) {
+    return new AttachmentVerifyingOutputStream(plaintextOutput, combinedKeyMaterial, digest, true, plaintextLength);
+  }
+
+  private AttachmentVerifyingOutputStream(OutputStream outputStream, byte[] combinedKeyMaterial, byte[] theirDigest,
+                                          boolean decrypt, long plaintextLength)
+  {
+    super(outputStream);
+
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+
+      this.cipherKey          = parts[0];
+      this.mac                = CryptoPrimitives.acquireHmacSha256();
+      this.digest             = CryptoPrimitives.acquireSha256();
+      this.macLength          = mac.getMacLength();
+      this.theirDigest        = theirDigest;
+      this.decrypt            = decrypt;
+      this.tail               = new byte[macLength];
+      this.iv                 = new byte[BLOCK_SIZE];
+      this.plaintextRemaining = plaintextLength > 0 ? plaintextLength : Long.MAX_VALUE;
+
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (verified)    throw new IOException("Attachment already verified!");
+    if (mac == null) throw new IOException("Attachment failed verification!");
+
+    if (!decrypt) {
+      out.write(buffer, offset, length);
+    }
+
+    update(buffer, offset, length);
+  }
+
+  /**
+   * Resume verifying a partially downloaded attachment.  The ciphertext already stored
+   * is run through verification, but not written out again, so the underlying stream
+   * should be appending to it.
+   *
+   * @param storedCiphertext The ciphertext that was already downloaded.
+   */
+  public void resume(InputStream storedCiphertext) throws IOException {
+    if (decrypt)           throw new IllegalStateException("Only ciphertext streams can be resumed!");
+    if (totalWritten != 0) throw new IllegalStateException("Stream has already been written to!");
+
+    byte[] buffer = new byte[8192];
+    int    read;
+
+    while ((read = storedCiphertext.read(buffer)) != -1) {
+      update(buffer, 0, read);
+    }
+  }
+
+  private void update(byte[] buffer, int offset, int length) throws IOException {
+    digest.update(buffer, offset, length);
+    totalWritten += length;
+
+    // The last MAC-length bytes seen so far are held back, since they may turn out to be the MAC.
+    int pending = tailLength + length;
+
+    if (pending <= tail.length) {
+      System.arraycopy(buffer, offset, tail, tailLength, length);
+      tailLength = pending;
+      return;
+    }
+
+    int release   = pending - tail.length;
+    int fromTail  = Math.min(release, tailLength);
+    int fromInput = release - fromTail;
+
+    processBody(tail, 0, fromTail);
+    processBody(buffer, offset, fromInput);
+
+    System.arraycopy(tail, fromTail, tail, 0, tailLength - fromTail);
+    tailLength -= fromTail;
+
+    System.arraycopy(buffer, offset + fromInput, tail, tailLength, length - fromInput);
+    tailLength += length - fromInput;
+  }
+
+  /**
+   * Check the MAC and digest of everything written so far, which must be the
+   * complete attachment.  When decrypting, the final plaintext block is written
+   * out as well, so this must be called before the stream is closed.
+   *
+   * @throws InvalidMessageException if the attachment is truncated or fails verification.
+   */
+  public void verify() throws InvalidMessageException, IOException {
+    if (verified)    return;
+    if (mac == null) throw new InvalidMessageException("Attachment failed verification!");
+
+    try {
+      if (totalWritten <= BLOCK_SIZE + macLength) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      if (theirDigest == null) {
+        throw new InvalidMacException("Missing digest!");
+      }
+
+      byte[] ourMac = mac.doFinal();
+
+      if (!MessageDigest.isEqual(ourMac, tail)) {
+        throw new InvalidMacException("MAC doesn't match!");
+      }
+
+      if (!MessageDigest.isEqual(digest.digest(), theirDigest)) {
+        throw new InvalidMacException("Digest doesn't match!");
+      }
+
+      if (decrypt) {
+        writePlaintext(cipher.doFinal());
+        out.flush();
+      }
+
+      verified = true;
+    } catch (InvalidMacException e) {
+      throw new InvalidMessageException(e);
+    } catch (IllegalBlockSizeException e) {
+      throw new InvalidMessageException(e);
+    } catch (BadPaddingException e) {
+      throw new InvalidMessageException(e);
+    } finally {
+      releasePrimitives();
+    }
+  }
+
+  public boolean isVerified() {
+    return verified;
+  }
+
+  byte[] getCipherKey() {
+    return cipherKey;
+  }
+
+  long getCiphertextLength() {
+    return totalWritten;
+  }
+
+  int getMacLength() {
+    return macLength;
+  }
+
+  private void processBody(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return;
+
+    mac.update(buffer, offset, length);
+
+    if (!decrypt) return;
+
+    if (ivLength < BLOCK_SIZE) {
+      int ivRead = Math.min(BLOCK_SIZE - ivLength, length);
+
+      System.arraycopy(buffer, offset, iv, ivLength, ivRead);
+      ivLength += ivRead;
+      offset   += ivRead;
+      length   -= ivRead;
+
+      if (ivLength == BLOCK_SIZE) {
+        cipher = createCipher(cipherKey, iv);
+      }
+    }
+
+    if (length > 0) {
+      writePlaintext(cipher.update(buffer, offset, length));
+    }
+  }
+
+  private void writePlaintext(byte[] plaintext) throws IOException {
+    if (plaintext == null || plaintextRemaining <= 0) return;
+
+    int length = (int)Math.min(plaintext.length, plaintextRemaining);
+
+    out.write(plaintext, 0, length);
+    plaintextRemaining -= length;
+  }
+
+  // Nothing can be written once the attachment has been checked, so its primitives can be reused
+  private void releasePrimitives() {
+    CryptoPrimitives.release(mac);
+    CryptoPrimitives.release(digest);
+    if (cipher != null) CryptoPrimitives.release(cipher);
+
+    mac    = null;
+    digest = null;
+    cipher = null;
+  }
+
+  private static Cipher createCipher(byte[] cipherKey, byte[] iv) {
+    try {
+      Cipher cipher = CryptoPrimitives.acquireAesCbc();
+      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+
+      return cipher;
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -1,26 +1,21 @@
 package org.whispersystems.signalservice.api.crypto;
 
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
 
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 public abstract class DigestingOutputStream extends FilterOutputStream {
 
-  private final MessageDigest runningDigest;
-
-  private byte[] digest;
+  private MessageDigest runningDigest;
+  private byte[]        digest;
 
   public DigestingOutputStream(OutputStream outputStream) {
     super(outputStream);
 
-    try {
-      this.runningDigest = MessageDigest.getInstance("SHA256");
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    }
+    this.runningDigest = CryptoPrimitives.acquireSha256();
   }
 
   @Override
@@ -45,7 +40,22 @@ public abstract class DigestingOutputStream extends FilterOutputStream {
   }
 
   public void close() throws IOException {
-    out.close();
+    try {
+      out.close();
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Return the stream's crypto primitives for reuse once nothing more will be written to it,
+   * without closing the underlying stream.  Closing the stream also releases them.
+   */
+  public void release() {
+    if (runningDigest != null) {
+      CryptoPrimitives.release(runningDigest);
+      runningDigest = null;
+    }
   }
 
   public byte[] getTransmittedDigest() {
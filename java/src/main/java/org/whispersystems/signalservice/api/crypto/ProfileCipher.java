@@ -2,18 +2,17 @@ package org.whispersystems.signalservice.api.crypto;
 
 
 import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -39,18 +38,14 @@ public class ProfileCipher {
 
       byte[] nonce = Util.getSecretBytes(12);
 
-      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      Cipher cipher = CryptoPrimitives.getAesGcm();
       cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
 
       return ByteUtil.combine(nonce, cipher.doFinal(inputPadded));
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     } catch (BadPaddingException e) {
       throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
     } catch (IllegalBlockSizeException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
@@ -67,7 +62,7 @@ public class ProfileCipher {
       byte[] nonce = new byte[12];
       System.arraycopy(input, 0, nonce, 0, nonce.length);
 
-      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      Cipher cipher = CryptoPrimitives.getAesGcm();
       cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
 
       byte[] paddedPlaintext = cipher.doFinal(input, nonce.length, input.length - nonce.length);
@@ -84,12 +79,8 @@ public class ProfileCipher {
       System.arraycopy(paddedPlaintext, 0, plaintext, 0, plaintextLength);
 
       return plaintext;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
     } catch (IllegalBlockSizeException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
@@ -105,14 +96,12 @@ public class ProfileCipher {
 
       byte[] unidentifiedAccessKey = UnidentifiedAccess.deriveAccessKeyFrom(key);
 
-      Mac mac = Mac.getInstance("HmacSHA256");
+      Mac mac = CryptoPrimitives.getHmacSha256();
       mac.init(new SecretKeySpec(unidentifiedAccessKey, "HmacSHA256"));
 
       byte[] ourUnidentifiedAccessVerifier = mac.doFinal(new byte[32]);
 
       return MessageDigest.isEqual(theirUnidentifiedAccessVerifier, ourUnidentifiedAccessVerifier);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
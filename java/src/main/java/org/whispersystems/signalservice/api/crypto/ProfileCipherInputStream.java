@@ -1,6 +1,7 @@
 package org.whispersystems.signalservice.api.crypto;
 
 
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.FilterInputStream;
@@ -8,19 +9,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class ProfileCipherInputStream extends FilterInputStream {
 
-  private final Cipher cipher;
+  private Cipher cipher;
 
   private boolean finished = false;
 
@@ -28,16 +27,12 @@ public class ProfileCipherInputStream extends FilterInputStream {
     super(in);
 
     try {
-      this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      this.cipher = CryptoPrimitives.acquireAesGcm();
 
       byte[] nonce = new byte[12];
       Util.readFully(in, nonce);
 
       this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
     } catch (InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
@@ -86,4 +81,15 @@ public class ProfileCipherInputStream extends FilterInputStream {
     }
   }
 
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (cipher != null) {
+        CryptoPrimitives.release(cipher);
+        cipher = null;
+      }
+    }
+  }
 }
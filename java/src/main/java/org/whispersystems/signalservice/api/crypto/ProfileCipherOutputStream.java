@@ -1,36 +1,32 @@
 package org.whispersystems.signalservice.api.crypto;
 
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class ProfileCipherOutputStream extends DigestingOutputStream {
 
-  private final Cipher cipher;
+  private Cipher cipher;
 
   public ProfileCipherOutputStream(OutputStream out, byte[] key) throws IOException {
     super(out);
     try {
-      this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      this.cipher = CryptoPrimitives.acquireAesGcm();
 
       byte[] nonce  = generateNonce();
       this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(nonce));
 
       super.write(nonce, 0, nonce.length);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
     } catch (InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
@@ -72,6 +68,16 @@ public class ProfileCipherOutputStream extends DigestingOutputStream {
     }
   }
 
+  @Override
+  public void release() {
+    super.release();
+
+    if (cipher != null) {
+      CryptoPrimitives.release(cipher);
+      cipher = null;
+    }
+  }
+
   private byte[] generateNonce() {
     byte[] nonce = new byte[12];
     new SecureRandom().nextBytes(nonce);
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2014-2017 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api.crypto;
+
+import org.whispersystems.libsignal.InvalidMacException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class for random access to an encrypted push attachment on disk.
+ *
+ * The attachment is memory mapped and its MAC verified once up front.  Since the
+ * attachment is AES-CBC encrypted, any block can then be decrypted using the
+ * preceding ciphertext block as its IV, so {@link #seek(long)} and {@link #skip(long)}
+ * take constant time and each read only decrypts the blocks it returns.
+ */
+public class SeekableAttachmentCipherInputStream extends InputStream {
+
+  private static final int BLOCK_SIZE      = 16;
+  private static final int CIPHER_KEY_SIZE = 32;
+  private static final int MAC_KEY_SIZE    = 32;
+  private static final int MAC_SIZE        = 32;
+  private static final int MAX_READ_BLOCKS = 4096;
+
+  private final RandomAccessFile file;
+  private final MappedByteBuffer ciphertext;
+  private final SecretKeySpec    cipherKey;
+  private final byte[]           iv;
+
+  private byte[] scratch;
+  private long   length;
+  private long   position;
+
+  /**
+   * Verify and open an attachment for random access.
+   *
+   * @param file The attachment ciphertext.
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment key.
+   * @param digest The attachment digest.
+   */
+  public static SeekableAttachmentCipherInputStream createFor(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
+      throws InvalidMessageException, IOException
+  {
+    if (digest == null) {
+      throw new InvalidMessageException(new InvalidMacException("Missing digest!"));
+    }
+
+    byte[][]                            parts  = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+    SeekableAttachmentCipherInputStream stream = new SeekableAttachmentCipherInputStream(file, parts[0]);
+
+    try {
+      stream.verifyMac(parts[1], digest);
+      stream.initializeLength(plaintextLength);
+    } catch (InvalidMessageException e) {
+      stream.close();
+      throw e;
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+
+    return stream;
+  }
+
+  /**
+   * Open an attachment for random access, whose ciphertext was already verified
+   * on its way to disk.
+   *
+   * @param file The file the ciphertext was written to.
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   * @param verifiedCiphertext The stream that verified the ciphertext as it was written to {@code file}.
+   */
+  public static SeekableAttachmentCipherInputStream createFor(File file, long plaintextLength, AttachmentVerifyingOutputStream verifiedCiphertext)
+      throws InvalidMessageException, IOException
+  {
+    verifiedCiphertext.verify();
+
+    if (file.length() != verifiedCiphertext.getCiphertextLength()) {
+      throw new InvalidMessageException("Attachment file doesn't match verified ciphertext!");
+    }
+
+    SeekableAttachmentCipherInputStream stream = new SeekableAttachmentCipherInputStream(file, verifiedCiphertext.getCipherKey());
+
+    try {
+      stream.initializeLength(plaintextLength);
+    } catch (InvalidMessageException e) {
+      stream.close();
+      throw e;
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+
+    return stream;
+  }
+
+  /**
+   * Maps the ciphertext without decrypting any of it, since it hasn't been authenticated yet.
+   */
+  private SeekableAttachmentCipherInputStream(File file, byte[] cipherKey)
+      throws InvalidMessageException, IOException
+  {
+    long fileLength = file.length();
+
+    if (fileLength <= BLOCK_SIZE + MAC_SIZE || (fileLength - MAC_SIZE) % BLOCK_SIZE != 0) {
+      throw new InvalidMessageException("Invalid attachment length: " + fileLength);
+    }
+
+    if (fileLength > Integer.MAX_VALUE) {
+      throw new InvalidMessageException("Attachment too large to map: " + fileLength);
+    }
+
+    this.file = new RandomAccessFile(file, "r");
+
+    try {
+      this.ciphertext = this.file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+      this.cipherKey  = new SecretKeySpec(cipherKey, "AES");
+      this.iv         = new byte[BLOCK_SIZE];
+      this.scratch    = new byte[BLOCK_SIZE];
+    } catch (IOException e) {
+      this.file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the plaintext length of the attachment.
+   */
+  public long length() {
+    return length;
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Move to an arbitrary plaintext offset, without decrypting anything in between.
+   */
+  public void seek(long position) throws IOException {
+    if (position < 0) throw new IOException("Negative seek: " + position);
+    this.position = Math.min(position, length);
+  }
+
+  @Override
+  public long skip(long byteCount) throws IOException {
+    if (byteCount <= 0) return 0;
+
+    long skipped = Math.min(byteCount, length - position);
+    position += skipped;
+
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int)Math.min(Integer.MAX_VALUE, length - position);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int count) throws IOException {
+    if (count == 0)         return 0;
+    if (position >= length) return -1;
+
+    int  blockOffset = (int)(position % BLOCK_SIZE);
+    long blockIndex  = position / BLOCK_SIZE;
+
+    count = (int)Math.min(count, length - position);
+    count = Math.min(count, MAX_READ_BLOCKS * BLOCK_SIZE - blockOffset);
+
+    int blocks = (blockOffset + count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+    decryptBlocks(blockIndex, blocks);
+    System.arraycopy(scratch, blockOffset, buffer, offset, count);
+
+    position += count;
+    return count;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * Decrypts {@code blocks} blocks starting at {@code blockIndex} into the scratch buffer.
+   * Block n is preceded in the file by block n-1, or by the IV for block 0.
+   */
+  private void decryptBlocks(long blockIndex, int blocks) throws IOException {
+    int ivOffset  = (int)(blockIndex * BLOCK_SIZE);
+    int byteCount = blocks * BLOCK_SIZE;
+
+    if (scratch.length < byteCount) {
+      scratch = new byte[byteCount];
+    }
+
+    ByteBuffer source = ciphertext.duplicate();
+    source.position(ivOffset);
+    source.get(iv);
+
+    Cipher cipher = CryptoPrimitives.acquireAesCbcNoPadding();
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+
+      source.limit(ivOffset + BLOCK_SIZE + byteCount);
+      cipher.doFinal(source, ByteBuffer.wrap(scratch, 0, byteCount));
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    } catch (IllegalBlockSizeException e) {
+      throw new IOException(e);
+    } catch (BadPaddingException e) {
+      throw new IOException(e);
+    } finally {
+      CryptoPrimitives.release(cipher);
+    }
+  }
+
+  /**
+   * Reads the padding from the last block, which must only be decrypted once the ciphertext
+   * has been authenticated.
+   */
+  private void initializeLength(long plaintextLength) throws InvalidMessageException, IOException {
+    long paddedLength = getPaddedLength();
+    this.length = plaintextLength != 0 ? Math.min(plaintextLength, paddedLength) : paddedLength;
+  }
+
+  private long getPaddedLength() throws InvalidMessageException, IOException {
+    long blockCount = (ciphertext.capacity() - BLOCK_SIZE - MAC_SIZE) / BLOCK_SIZE;
+
+    decryptBlocks(blockCount - 1, 1);
+
+    int padding = scratch[BLOCK_SIZE - 1] & 0xff;
+
+    if (padding < 1 || padding > BLOCK_SIZE) {
+      throw new InvalidMessageException("Bad padding: " + padding);
+    }
+
+    for (int i=BLOCK_SIZE - padding;i<BLOCK_SIZE;i++) {
+      if ((scratch[i] & 0xff) != padding) {
+        throw new InvalidMessageException("Bad padding: " + padding);
+      }
+    }
+
+    return blockCount * BLOCK_SIZE - padding;
+  }
+
+  private void verifyMac(byte[] macKey, byte[] theirDigest) throws InvalidMessageException {
+    try {
+      Mac           mac      = CryptoPrimitives.getHmacSha256();
+      MessageDigest digest   = CryptoPrimitives.getSha256();
+      ByteBuffer    body     = ciphertext.duplicate();
+      ByteBuffer    tail     = ciphertext.duplicate();
+      byte[]        theirMac = new byte[MAC_SIZE];
+
+      mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+
+      body.limit(ciphertext.capacity() - MAC_SIZE);
+      mac.update(body);
+
+      body.rewind();
+      digest.update(body);
+
+      tail.position(ciphertext.capacity() - MAC_SIZE);
+      tail.get(theirMac);
+
+      if (!MessageDigest.isEqual(mac.doFinal(), theirMac)) {
+        throw new InvalidMessageException(new InvalidMacException("MAC doesn't match!"));
+      }
+
+      if (!MessageDigest.isEqual(digest.digest(theirMac), theirDigest)) {
+        throw new InvalidMessageException(new InvalidMacException("Digest doesn't match!"));
+      }
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -22,6 +22,7 @@ import org.signal.libsignal.metadata.ProtocolUntrustedIdentityException;
 import org.signal.libsignal.metadata.SealedSessionCipher;
 import org.signal.libsignal.metadata.SelfSendException;
 import org.signal.libsignal.metadata.certificate.CertificateValidator;
+import org.signal.libsignal.metadata.protocol.UnidentifiedSenderMessageContent;
 import org.whispersystems.libsignal.DuplicateMessageException;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.InvalidKeyException;
@@ -86,10 +87,18 @@ import org.whispersystems.signalservice.loki.messaging.LokiServiceMessage;
 import org.whispersystems.signalservice.loki.messaging.LokiServicePreKeyBundleMessage;
 
 import java.io.ByteArrayInputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static org.whispersystems.signalservice.internal.push.SignalServiceProtos.CallMessage;
 import static org.whispersystems.signalservice.internal.push.SignalServiceProtos.GroupContext.Type.DELIVER;
@@ -104,6 +113,8 @@ public class SignalServiceCipher {
   @SuppressWarnings("unused")
   private static final String TAG = SignalServiceCipher.class.getSimpleName();
 
+  private static ExecutorService batchExecutor;
+
   private final SignalProtocolStore  signalProtocolStore;
   private final LokiSessionResetProtocol lokiSessionResetProtocol;
   private final SignalServiceAddress localAddress;
@@ -168,9 +179,104 @@ public class SignalServiceCipher {
       ProtocolInvalidKeyException, ProtocolDuplicateMessageException,
       SelfSendException
 
+  {
+    return createContent(envelope, decrypt(envelope, envelope.getContent()));
+  }
+
+  /**
+   * Decrypt a batch of received {@link SignalServiceEnvelope}s, e.g. everything from one poll.
+   *
+   * Envelopes from different senders are decrypted concurrently, so the protocol store has to be
+   * safe to use from several threads. Envelopes from the same sender are decrypted one after
+   * another, in the order they're given.
+   *
+   * @param envelopes The received SignalServiceEnvelopes
+   *
+   * @return a result for each envelope, in the same order
+   */
+  public List<DecryptionResult> decryptAll(List<SignalServiceEnvelope> envelopes) {
+    return decryptAll(envelopes, getBatchExecutor());
+  }
+
+  public List<DecryptionResult> decryptAll(final List<SignalServiceEnvelope> envelopes, ExecutorService executor) {
+    final DecryptionResult[]                 results  = new DecryptionResult[envelopes.size()];
+    final UnidentifiedSenderMessageContent[] unsealed = new UnidentifiedSenderMessageContent[envelopes.size()];
+    final List<Future<?>>                    tasks    = new LinkedList<Future<?>>();
+
+    // Sealed envelopes only reveal their sender once unsealed, which doesn't touch any session state
+    for (int i = 0; i < envelopes.size(); i++) {
+      if (!envelopes.get(i).isUnidentifiedSender()) continue;
+
+      final int index = i;
+
+      tasks.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          SignalServiceEnvelope envelope = envelopes.get(index);
+
+          try {
+            unsealed[index] = createSealedSessionCipher().unseal(certificateValidator, envelope.getContent(), envelope.getServerTimestamp());
+          } catch (Exception e) {
+            results[index] = new DecryptionResult(envelope, e);
+          }
+        }
+      }));
+    }
+
+    awaitAll(tasks);
+
+    Map<String, List<Integer>> senders = new LinkedHashMap<String, List<Integer>>();
+
+    for (int i = 0; i < envelopes.size(); i++) {
+      if (results[i] != null) continue;
+
+      String        sender  = unsealed[i] != null ? unsealed[i].getSenderCertificate().getSender() + "." + unsealed[i].getSenderCertificate().getSenderDeviceId()
+                                                  : envelopes.get(i).getSource() + "." + envelopes.get(i).getSourceDevice();
+      List<Integer> indices = senders.get(sender);
+
+      if (indices == null) {
+        indices = new LinkedList<Integer>();
+        senders.put(sender, indices);
+      }
+
+      indices.add(i);
+    }
+
+    for (final List<Integer> indices : senders.values()) {
+      tasks.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (int index : indices) {
+            SignalServiceEnvelope envelope = envelopes.get(index);
+
+            try {
+              // Only envelopes that were unsealed above skip the overridable decrypt
+              Plaintext plaintext = unsealed[index] != null ? decrypt(envelope, envelope.getContent(), Optional.of(unsealed[index]))
+                                                            : decrypt(envelope, envelope.getContent());
+              results[index] = new DecryptionResult(envelope, createContent(envelope, plaintext));
+            } catch (Exception e) {
+              results[index] = new DecryptionResult(envelope, e);
+            }
+          }
+        }
+      }));
+    }
+
+    awaitAll(tasks);
+
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] == null) {
+        results[i] = new DecryptionResult(envelopes.get(i), new InterruptedException());
+      }
+    }
+
+    return Arrays.asList(results);
+  }
+
+  private SignalServiceContent createContent(SignalServiceEnvelope envelope, Plaintext plaintext)
+      throws InvalidMetadataMessageException, ProtocolInvalidMessageException, ProtocolInvalidKeyException
   {
     try {
-        Plaintext plaintext = decrypt(envelope, envelope.getContent());
         Content   message   = Content.parseFrom(plaintext.getData());
 
         LokiServicePreKeyBundleMessage lokiPreKeyBundleMessage = null;
@@ -295,11 +401,22 @@ public class SignalServiceCipher {
       ProtocolInvalidVersionException, ProtocolInvalidMessageException,
       ProtocolInvalidKeyIdException, ProtocolNoSessionException,
       SelfSendException
+  {
+    return decrypt(envelope, ciphertext, Optional.<UnidentifiedSenderMessageContent>absent());
+  }
+
+  private Plaintext decrypt(SignalServiceEnvelope envelope, byte[] ciphertext, Optional<UnidentifiedSenderMessageContent> unsealed)
+      throws InvalidMetadataMessageException, InvalidMetadataVersionException,
+      ProtocolDuplicateMessageException, ProtocolUntrustedIdentityException,
+      ProtocolLegacyMessageException, ProtocolInvalidKeyException,
+      ProtocolInvalidVersionException, ProtocolInvalidMessageException,
+      ProtocolInvalidKeyIdException, ProtocolNoSessionException,
+      SelfSendException
   {
     try {
       SignalProtocolAddress sourceAddress       = new SignalProtocolAddress(envelope.getSource(), envelope.getSourceDevice());
       SessionCipher         sessionCipher       = new LokiSessionCipher(signalProtocolStore, lokiSessionResetProtocol, sourceAddress);
-      SealedSessionCipher   sealedSessionCipher = new SealedSessionCipher(signalProtocolStore, lokiSessionResetProtocol, new SignalProtocolAddress(localAddress.getNumber(), 1));
+      SealedSessionCipher   sealedSessionCipher = createSealedSessionCipher();
 
       byte[] paddedMessage;
       Metadata metadata;
@@ -314,7 +431,8 @@ public class SignalServiceCipher {
         metadata       = new Metadata(envelope.getSource(), envelope.getSourceDevice(), envelope.getTimestamp(), false, false);
         sessionVersion = sessionCipher.getSessionVersion();
       } else if (envelope.isUnidentifiedSender()) {
-        Pair<SignalProtocolAddress, Pair<Integer, byte[]>> results = sealedSessionCipher.decrypt(certificateValidator, ciphertext, envelope.getServerTimestamp());
+        Pair<SignalProtocolAddress, Pair<Integer, byte[]>> results = unsealed.isPresent() ? sealedSessionCipher.decryptContent(unsealed.get())
+                                                                                          : sealedSessionCipher.decrypt(certificateValidator, ciphertext, envelope.getServerTimestamp());
         Pair<Integer, byte[]> data = results.second();
         paddedMessage  = data.second();
         metadata       = new Metadata(results.first().getName(), results.first().getDeviceId(), envelope.getTimestamp(), false, data.first().equals(CiphertextMessage.LOKI_FRIEND_REQUEST_TYPE));
@@ -346,6 +464,40 @@ public class SignalServiceCipher {
     }
   }
 
+  private SealedSessionCipher createSealedSessionCipher() {
+    return new SealedSessionCipher(signalProtocolStore, lokiSessionResetProtocol, new SignalProtocolAddress(localAddress.getNumber(), 1));
+  }
+
+  private static void awaitAll(List<Future<?>> tasks) {
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      for (Future<?> task : tasks) {
+        task.cancel(true);
+      }
+
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new AssertionError(e);
+    } finally {
+      tasks.clear();
+    }
+  }
+
+  private static synchronized ExecutorService getBatchExecutor() {
+    if (batchExecutor == null) {
+      int                threads  = Math.max(2, Runtime.getRuntime().availableProcessors());
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+      executor.allowCoreThreadTimeOut(true);
+
+      batchExecutor = executor;
+    }
+
+    return batchExecutor;
+  }
+
   private SignalServiceDataMessage createSignalServiceMessage(Metadata metadata, DataMessage content, boolean isFriendRequest) throws ProtocolInvalidMessageException {
     SignalServiceGroup             groupInfo                   = createGroupInfo(content);
     List<SignalServiceAttachment>  attachments                 = new LinkedList<SignalServiceAttachment>();
@@ -765,6 +917,51 @@ public class SignalServiceCipher {
     return new SignalServiceGroup(content.getGroup().getId().toByteArray(), SignalServiceGroup.GroupType.SIGNAL);
   }
 
+  /**
+   * The outcome of decrypting one envelope of a batch.
+   */
+  public static class DecryptionResult {
+    private final SignalServiceEnvelope envelope;
+    private final SignalServiceContent  content;
+    private final Exception             exception;
+
+    private DecryptionResult(SignalServiceEnvelope envelope, SignalServiceContent content) {
+      this.envelope  = envelope;
+      this.content   = content;
+      this.exception = null;
+    }
+
+    private DecryptionResult(SignalServiceEnvelope envelope, Exception exception) {
+      this.envelope  = envelope;
+      this.content   = null;
+      this.exception = exception;
+    }
+
+    public SignalServiceEnvelope getEnvelope() {
+      return envelope;
+    }
+
+    public boolean isSuccess() {
+      return exception == null;
+    }
+
+    /**
+     * @return the decrypted content, which like {@link SignalServiceCipher#decrypt(SignalServiceEnvelope)} is null if
+     *         the envelope had none
+     */
+    public SignalServiceContent getContent() {
+      return content;
+    }
+
+    /**
+     * @return why the envelope couldn't be decrypted, which is one of the exceptions thrown by
+     *         {@link SignalServiceCipher#decrypt(SignalServiceEnvelope)}
+     */
+    public Exception getException() {
+      return exception;
+    }
+  }
+
   protected static class Metadata {
     private final String  sender;
     private final int     senderDevice;
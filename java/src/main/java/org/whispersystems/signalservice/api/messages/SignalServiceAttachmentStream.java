@@ -24,22 +24,32 @@ public class SignalServiceAttachmentStream extends SignalServiceAttachment {
   private final int              width;
   private final int              height;
   private final Optional<String> caption;
+  private final Optional<byte[]> plaintextHash;
 
   public SignalServiceAttachmentStream(InputStream inputStream, String contentType, long length, Optional<String> fileName, boolean voiceNote, ProgressListener listener) {
     this(inputStream, contentType, length, fileName, voiceNote, Optional.<byte[]>absent(), 0, 0, Optional.<String>absent(), listener);
   }
 
   public SignalServiceAttachmentStream(InputStream inputStream, String contentType, long length, Optional<String> fileName, boolean voiceNote, Optional<byte[]> preview, int width, int height, Optional<String> caption, ProgressListener listener) {
+    this(inputStream, contentType, length, fileName, voiceNote, preview, width, height, caption, Optional.<byte[]>absent(), listener);
+  }
+
+  /**
+   * @param plaintextHash The SHA-256 hash of the attachment's contents, if known, which lets an
+   *                      identical attachment that was already uploaded be reused.
+   */
+  public SignalServiceAttachmentStream(InputStream inputStream, String contentType, long length, Optional<String> fileName, boolean voiceNote, Optional<byte[]> preview, int width, int height, Optional<String> caption, Optional<byte[]> plaintextHash, ProgressListener listener) {
     super(contentType);
-    this.inputStream = inputStream;
-    this.length      = length;
-    this.fileName    = fileName;
-    this.listener    = listener;
-    this.voiceNote   = voiceNote;
-    this.preview     = preview;
-    this.width       = width;
-    this.height      = height;
-    this.caption     = caption;
+    this.inputStream   = inputStream;
+    this.length        = length;
+    this.fileName      = fileName;
+    this.listener      = listener;
+    this.voiceNote     = voiceNote;
+    this.preview       = preview;
+    this.width         = width;
+    this.height        = height;
+    this.caption       = caption;
+    this.plaintextHash = plaintextHash;
   }
 
   @Override
@@ -87,4 +97,8 @@ public class SignalServiceAttachmentStream extends SignalServiceAttachment {
   public Optional<String> getCaption() {
     return caption;
   }
+
+  public Optional<byte[]> getPlaintextHash() {
+    return plaintextHash;
+  }
 }
@@ -11,6 +11,7 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.messages.shared.SharedContact;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.loki.api.DeviceLink;
+import org.whispersystems.signalservice.loki.api.LokiNetworkClock;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -453,7 +454,7 @@ public class SignalServiceDataMessage {
     }
 
     public SignalServiceDataMessage build() {
-      if (timestamp == 0) timestamp = System.currentTimeMillis();
+      if (timestamp == 0) timestamp = LokiNetworkClock.now();
       return new SignalServiceDataMessage(timestamp, group, attachments, body, endSession,
                                           expiresInSeconds, expirationUpdate, profileKey,
                                           profileKeyUpdate, quote, sharedContacts, previews,
@@ -1,17 +1,63 @@
 package org.whispersystems.signalservice.api.messages.multidevice;
 
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentStream;
 import org.whispersystems.signalservice.internal.util.Util;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 public class ChunkedInputStream {
 
+  private static final int BUFFER_SIZE = 8192;
+
   protected final InputStream in;
 
+  private final AvatarMode avatarMode;
+  private final File       spoolDirectory;
+
+  private LimitedInputStream currentAvatar;
+
   public ChunkedInputStream(InputStream in) {
-    this.in = in;
+    this(in, AvatarMode.STREAM, null);
+  }
+
+  /**
+   * @param avatarMode How to handle the avatars embedded in the stream.
+   * @param spoolDirectory Where to spool avatars to, for {@link AvatarMode#SPOOL}.
+   */
+  public ChunkedInputStream(InputStream in, AvatarMode avatarMode, File spoolDirectory) {
+    if (avatarMode == AvatarMode.SPOOL && spoolDirectory == null) {
+      throw new IllegalArgumentException("No spool directory specified!");
+    }
+
+    this.in             = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, BUFFER_SIZE);
+    this.avatarMode     = avatarMode;
+    this.spoolDirectory = spoolDirectory;
+  }
+
+  public enum AvatarMode {
+    /**
+     * Avatars are read straight from the stream, so an avatar can only be read until the next record is.
+     */
+    STREAM,
+
+    /**
+     * Avatars are skipped.
+     */
+    SKIP,
+
+    /**
+     * Avatars are copied to temporary files, which are deleted once their streams are closed.
+     */
+    SPOOL
   }
 
   protected int readInt32() throws IOException {
@@ -25,39 +71,108 @@ public class ChunkedInputStream {
   }
 
   protected int readRawVarint32() throws IOException {
-    byte tmp = (byte)in.read();
-    if (tmp >= 0) {
-      return tmp;
-    }
-    int result = tmp & 0x7f;
-    if ((tmp = (byte)in.read()) >= 0) {
-      result |= tmp << 7;
-    } else {
-      result |= (tmp & 0x7f) << 7;
-      if ((tmp = (byte)in.read()) >= 0) {
-        result |= tmp << 14;
-      } else {
-        result |= (tmp & 0x7f) << 14;
-        if ((tmp = (byte)in.read()) >= 0) {
-          result |= tmp << 21;
-        } else {
-          result |= (tmp & 0x7f) << 21;
-          result |= (tmp = (byte)in.read()) << 28;
-          if (tmp < 0) {
-            // Discard upper 32 bits.
-            for (int i = 0; i < 5; i++) {
-              if ((byte)in.read() >= 0) {
-                return result;
-              }
-            }
-
-            throw new IOException("Malformed varint!");
-          }
+    int result = 0;
+
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = readRawByte();
+      result |= (b & 0x7f) << shift;
+
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+
+    // Discard upper 32 bits.
+    for (int i = 0; i < 5; i++) {
+      if ((readRawByte() & 0x80) == 0) {
+        return result;
+      }
+    }
+
+    throw new IOException("Malformed varint!");
+  }
+
+  /**
+   * Skips whatever is left of the previous record's avatar, so that the next record can be read.
+   */
+  protected void skipCurrentAvatar() throws IOException {
+    if (currentAvatar != null) {
+      currentAvatar.skipRemaining();
+      currentAvatar = null;
+    }
+  }
+
+  protected Optional<SignalServiceAttachmentStream> readAvatar(long length, String contentType) throws IOException {
+    LimitedInputStream avatarStream = new LimitedInputStream(in, length);
+
+    switch (avatarMode) {
+      case SKIP:
+        avatarStream.skipRemaining();
+        return Optional.absent();
+      case SPOOL:
+        return Optional.of(new SignalServiceAttachmentStream(spool(avatarStream, length), contentType, length, Optional.<String>absent(), false, null));
+      default:
+        currentAvatar = avatarStream;
+        return Optional.of(new SignalServiceAttachmentStream(avatarStream, contentType, length, Optional.<String>absent(), false, null));
+    }
+  }
+
+  private InputStream spool(InputStream avatarStream, long length) throws IOException {
+    File file = File.createTempFile("avatar", ".tmp", spoolDirectory);
+
+    try {
+      OutputStream out = new FileOutputStream(file);
+
+      try {
+        byte[] buffer  = new byte[BUFFER_SIZE];
+        long   written = 0;
+        int    read;
+
+        while ((read = avatarStream.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          written += read;
+        }
+
+        if (written < length) {
+          throw new EOFException("Avatar ended after " + written + " of " + length + " bytes");
         }
+      } finally {
+        out.close();
       }
+
+      return new SpooledInputStream(file);
+    } catch (IOException e) {
+      file.delete();
+      throw e;
+    }
+  }
+
+  private int readRawByte() throws IOException {
+    int b = in.read();
+
+    if (b == -1) {
+      throw new EOFException();
+    }
+
+    return b;
+  }
+
+  private static final class SpooledInputStream extends FilterInputStream {
+
+    private final File file;
+
+    SpooledInputStream(File file) throws IOException {
+      super(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      this.file = file;
     }
 
-    return result;
+    @Override public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        file.delete();
+      }
+    }
   }
 
   protected static final class LimitedInputStream extends FilterInputStream {
@@ -123,6 +238,19 @@ public class ChunkedInputStream {
       left -= skipped;
       return skipped;
     }
+
+    // the underlying stream holds the records that follow, so closing only skips this one
+    @Override public void close() throws IOException {
+      skipRemaining();
+    }
+
+    void skipRemaining() throws IOException {
+      while (left > 0) {
+        if (skip(left) <= 0 && read() == -1) {
+          throw new EOFException();
+        }
+      }
+    }
   }
 
 }
@@ -1,15 +1,26 @@
 package org.whispersystems.signalservice.api.messages.multidevice;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 public class ChunkedOutputStream {
 
+  private static final int BUFFER_SIZE = 8192;
+
   protected final OutputStream out;
 
+  /**
+   * Writes to {@code out} are buffered, so {@link #flush()} has to be called (or close(), where
+   * a subclass has one) before what's been written can be read from it.
+   */
   public ChunkedOutputStream(OutputStream out) {
-    this.out = out;
+    this.out = out instanceof BufferedOutputStream ? out : new BufferedOutputStream(out, BUFFER_SIZE);
+  }
+
+  public void flush() throws IOException {
+    out.flush();
   }
 
   protected void writeVarint32(int value) throws IOException {
@@ -25,7 +36,7 @@ public class ChunkedOutputStream {
   }
 
   protected void writeStream(InputStream in) throws IOException {
-    byte[] buffer = new byte[4096];
+    byte[] buffer = new byte[BUFFER_SIZE];
     int read;
 
     while ((read = in.read(buffer)) != -1) {
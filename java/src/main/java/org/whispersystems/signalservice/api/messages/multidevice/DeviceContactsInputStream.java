@@ -15,6 +15,7 @@ import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentStre
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
 import org.whispersystems.signalservice.internal.util.Util;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -28,8 +29,14 @@ public class DeviceContactsInputStream extends ChunkedInputStream {
     super(in);
   }
 
+  public DeviceContactsInputStream(InputStream in, AvatarMode avatarMode, File spoolDirectory) {
+    super(in, avatarMode, spoolDirectory);
+  }
+
   public DeviceContact read() throws Exception {
     try {
+      skipCurrentAvatar();
+
       long detailsLength = readInt32();
       byte[] detailsSerialized = new byte[(int) detailsLength];
       Util.readFully(in, detailsSerialized);
@@ -45,11 +52,7 @@ public class DeviceContactsInputStream extends ChunkedInputStream {
       Optional<Integer> expireTimer = Optional.absent();
 
       if (details.hasAvatar()) {
-        long avatarLength = details.getAvatar().getLength();
-        InputStream avatarStream = new LimitedInputStream(in, avatarLength);
-        String avatarContentType = details.getAvatar().getContentType();
-
-        avatar = Optional.of(new SignalServiceAttachmentStream(avatarStream, avatarContentType, avatarLength, Optional.<String>absent(), false, null));
+        avatar = readAvatar(details.getAvatar().getLength(), details.getAvatar().getContentType());
       }
 
       if (details.hasVerified()) {
@@ -100,7 +103,33 @@ public class DeviceContactsInputStream extends ChunkedInputStream {
   }
 
   /**
-   * Read all device contacts.
+   * Read all device contacts, one at a time, without holding on to them.  Each
+   * contact's avatar can be read until the listener returns.
+   *
+   * This will also close the input stream upon reading.
+   *
+   * @return the number of contacts read.
+   */
+  public int readAll(Listener listener) throws Exception {
+    int count = 0;
+
+    try {
+      DeviceContact deviceContact;
+
+      while ((deviceContact = read()) != null) {
+        listener.onContact(deviceContact);
+        count++;
+      }
+
+      return count;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Read all device contacts.  Unless avatars are spooled, they can't be read
+   * from the contacts this returns.
    *
    * This will also close the input stream upon reading.
    */
@@ -118,4 +147,8 @@ public class DeviceContactsInputStream extends ChunkedInputStream {
       in.close();
     }
   }
+
+  public interface Listener {
+    public void onContact(DeviceContact contact) throws Exception;
+  }
 }
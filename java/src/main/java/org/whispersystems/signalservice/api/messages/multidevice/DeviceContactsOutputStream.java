@@ -15,6 +15,10 @@ import java.io.OutputStream;
 
 public class DeviceContactsOutputStream extends ChunkedOutputStream {
 
+  /**
+   * The contacts are buffered on their way to {@code out}, so {@link #close()} has to be called
+   * before reading them from it.
+   */
   public DeviceContactsOutputStream(OutputStream out) {
     super(out);
   }
@@ -11,6 +11,7 @@ import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentStre
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
 import org.whispersystems.signalservice.internal.util.Util;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -22,8 +23,14 @@ public class DeviceGroupsInputStream extends ChunkedInputStream{
     super(in);
   }
 
+  public DeviceGroupsInputStream(InputStream in, AvatarMode avatarMode, File spoolDirectory) {
+    super(in, avatarMode, spoolDirectory);
+  }
+
   public DeviceGroup read() throws IOException {
       try {
+          skipCurrentAvatar();
+
           long detailsLength = readInt32();
           byte[] detailsSerialized = new byte[(int) detailsLength];
           Util.readFully(in, detailsSerialized);
@@ -45,11 +52,7 @@ public class DeviceGroupsInputStream extends ChunkedInputStream{
           boolean blocked = details.getBlocked();
 
           if (details.hasAvatar()) {
-              long avatarLength = details.getAvatar().getLength();
-              InputStream avatarStream = new ChunkedInputStream.LimitedInputStream(in, avatarLength);
-              String avatarContentType = details.getAvatar().getContentType();
-
-              avatar = Optional.of(new SignalServiceAttachmentStream(avatarStream, avatarContentType, avatarLength, Optional.<String>absent(), false, null));
+              avatar = readAvatar(details.getAvatar().getLength(), details.getAvatar().getContentType());
           }
 
           if (details.hasExpireTimer() && details.getExpireTimer() > 0) {
@@ -63,7 +66,33 @@ public class DeviceGroupsInputStream extends ChunkedInputStream{
   }
 
     /**
-     * Read all device contacts.
+     * Read all device groups, one at a time, without holding on to them.  Each
+     * group's avatar can be read until the listener returns.
+     *
+     * This will also close the input stream upon reading.
+     *
+     * @return the number of groups read.
+     */
+    public int readAll(Listener listener) throws Exception {
+        int count = 0;
+
+        try {
+            DeviceGroup deviceGroup;
+
+            while ((deviceGroup = read()) != null) {
+                listener.onGroup(deviceGroup);
+                count++;
+            }
+
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read all device groups.  Unless avatars are spooled, they can't be read
+     * from the groups this returns.
      *
      * This will also close the input stream upon reading.
      */
@@ -81,4 +110,8 @@ public class DeviceGroupsInputStream extends ChunkedInputStream{
             in.close();
         }
     }
+
+    public interface Listener {
+        public void onGroup(DeviceGroup group) throws Exception;
+    }
 }
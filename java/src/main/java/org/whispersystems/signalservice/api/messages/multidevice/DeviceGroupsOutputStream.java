@@ -15,6 +15,10 @@ import java.io.OutputStream;
 
 public class DeviceGroupsOutputStream extends ChunkedOutputStream {
 
+  /**
+   * The groups are buffered on their way to {@code out}, so {@link #close()} has to be called
+   * before reading them from it.
+   */
   public DeviceGroupsOutputStream(OutputStream out) {
     super(out);
   }
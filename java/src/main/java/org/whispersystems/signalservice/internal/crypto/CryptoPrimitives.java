@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Hands out the cipher, MAC and digest instances used throughout the service, since looking
+ * them up through the security providers is expensive.
+ *
+ * The get methods return an instance owned by the calling thread, which is shared by every
+ * caller on that thread. It must be initialized before each use, and can't be held on to past
+ * the call that asked for it. Objects that keep a primitive for longer, like streams, should
+ * acquire an instance from the pool instead, and release it once they're done with it.
+ */
+public final class CryptoPrimitives {
+
+  public static final String AES_CBC            = "AES/CBC/PKCS5Padding";
+  public static final String AES_CBC_NO_PADDING = "AES/CBC/NoPadding";
+  public static final String AES_CTR            = "AES/CTR/NoPadding";
+  public static final String AES_GCM            = "AES/GCM/NoPadding";
+  public static final String HMAC_SHA256        = "HmacSHA256";
+  public static final String SHA256             = "SHA-256";
+  public static final String SHA512             = "SHA-512";
+
+  private static final int MAX_POOLED_INSTANCES = 8;
+
+  private static final ConcurrentHashMap<String, AtomicLong>          instantiations = new ConcurrentHashMap<String, AtomicLong>();
+  private static final ConcurrentHashMap<String, Pool<Cipher>>        cipherPools    = new ConcurrentHashMap<String, Pool<Cipher>>();
+  private static final ConcurrentHashMap<String, Pool<Mac>>           macPools       = new ConcurrentHashMap<String, Pool<Mac>>();
+  private static final ConcurrentHashMap<String, Pool<MessageDigest>> digestPools    = new ConcurrentHashMap<String, Pool<MessageDigest>>();
+
+  private static final ThreadLocal<Cipher> aesCbc = new ThreadLocal<Cipher>() {
+    @Override protected Cipher initialValue() { return newCipher(AES_CBC); }
+  };
+
+  private static final ThreadLocal<Cipher> aesCtr = new ThreadLocal<Cipher>() {
+    @Override protected Cipher initialValue() { return newCipher(AES_CTR); }
+  };
+
+  private static final ThreadLocal<Cipher> aesGcm = new ThreadLocal<Cipher>() {
+    @Override protected Cipher initialValue() { return newCipher(AES_GCM); }
+  };
+
+  private static final ThreadLocal<Mac> hmacSha256 = new ThreadLocal<Mac>() {
+    @Override protected Mac initialValue() { return newMac(HMAC_SHA256); }
+  };
+
+  private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+    @Override protected MessageDigest initialValue() { return newDigest(SHA256); }
+  };
+
+  private static final ThreadLocal<MessageDigest> sha512 = new ThreadLocal<MessageDigest>() {
+    @Override protected MessageDigest initialValue() { return newDigest(SHA512); }
+  };
+
+  private CryptoPrimitives() {}
+
+  /**
+   * @return This thread's AES/CBC/PKCS5Padding cipher. Re-initializing it anywhere else on the
+   *         thread, including in a method called while it's in use, corrupts the caller's state.
+   */
+  public static Cipher getAesCbc() {
+    return aesCbc.get();
+  }
+
+  /**
+   * @return This thread's AES/CTR cipher. Nothing else on the thread may use it until the
+   *         caller is done with it, or the caller's state is silently corrupted.
+   */
+  public static Cipher getAesCtr() {
+    return aesCtr.get();
+  }
+
+  /**
+   * @return This thread's AES/GCM cipher. Nothing else on the thread may use it until the
+   *         caller is done with it, or the caller's state is silently corrupted.
+   */
+  public static Cipher getAesGcm() {
+    return aesGcm.get();
+  }
+
+  /**
+   * @return This thread's HmacSHA256 instance. Initializing it anywhere else on the thread,
+   *         including in a method called between updates, corrupts the caller's MAC.
+   */
+  public static Mac getHmacSha256() {
+    return hmacSha256.get();
+  }
+
+  /**
+   * @return This thread's SHA-256 digest, reset. Any other use on the thread before the caller
+   *         has finished its digest resets or extends it, so it can't span calls that might hash.
+   */
+  public static MessageDigest getSha256() {
+    MessageDigest digest = sha256.get();
+    digest.reset();
+    return digest;
+  }
+
+  /**
+   * @return This thread's SHA-512 digest, reset. Any other use on the thread before the caller
+   *         has finished its digest resets or extends it, so it can't span calls that might hash.
+   */
+  public static MessageDigest getSha512() {
+    MessageDigest digest = sha512.get();
+    digest.reset();
+    return digest;
+  }
+
+  public static Cipher acquireAesCbc() {
+    return acquireCipher(AES_CBC);
+  }
+
+  public static Cipher acquireAesCbcNoPadding() {
+    return acquireCipher(AES_CBC_NO_PADDING);
+  }
+
+  public static Cipher acquireAesGcm() {
+    return acquireCipher(AES_GCM);
+  }
+
+  public static Mac acquireHmacSha256() {
+    Mac mac = getPool(macPools, HMAC_SHA256).poll();
+    return mac != null ? mac : newMac(HMAC_SHA256);
+  }
+
+  public static MessageDigest acquireSha256() {
+    MessageDigest digest = getPool(digestPools, SHA256).poll();
+    return digest != null ? digest : newDigest(SHA256);
+  }
+
+  /**
+   * Return an acquired cipher to the pool. The caller must not use it afterwards, since it may
+   * already have been handed to someone else.
+   */
+  public static void release(Cipher cipher) {
+    getPool(cipherPools, cipher.getAlgorithm()).offer(cipher);
+  }
+
+  /**
+   * Return an acquired MAC to the pool. The caller must not use it afterwards.
+   */
+  public static void release(Mac mac) {
+    mac.reset();
+    getPool(macPools, mac.getAlgorithm()).offer(mac);
+  }
+
+  /**
+   * Return an acquired digest to the pool. The caller must not use it afterwards.
+   */
+  public static void release(MessageDigest digest) {
+    digest.reset();
+    getPool(digestPools, digest.getAlgorithm()).offer(digest);
+  }
+
+  /**
+   * @return The number of times each algorithm has been looked up through the security providers.
+   */
+  public static Map<String, Long> getInstantiationCounts() {
+    Map<String, Long> counts = new HashMap<String, Long>();
+
+    for (Map.Entry<String, AtomicLong> entry : instantiations.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+
+    return counts;
+  }
+
+  public static long getInstantiationCount(String algorithm) {
+    AtomicLong count = instantiations.get(algorithm);
+    return count != null ? count.get() : 0;
+  }
+
+  private static Cipher acquireCipher(String transformation) {
+    Cipher cipher = getPool(cipherPools, transformation).poll();
+    return cipher != null ? cipher : newCipher(transformation);
+  }
+
+  private static <T> Pool<T> getPool(ConcurrentHashMap<String, Pool<T>> pools, String algorithm) {
+    Pool<T> pool = pools.get(algorithm);
+
+    if (pool == null) {
+      Pool<T> created = new Pool<T>();
+      pool = pools.putIfAbsent(algorithm, created);
+      if (pool == null) pool = created;
+    }
+
+    return pool;
+  }
+
+  private static Cipher newCipher(String transformation) {
+    try {
+      Cipher cipher = Cipher.getInstance(transformation);
+      countInstantiation(transformation);
+      return cipher;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Mac newMac(String algorithm) {
+    try {
+      Mac mac = Mac.getInstance(algorithm);
+      countInstantiation(algorithm);
+      return mac;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static MessageDigest newDigest(String algorithm) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance(algorithm);
+      countInstantiation(algorithm);
+      return digest;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void countInstantiation(String algorithm) {
+    AtomicLong count = instantiations.get(algorithm);
+
+    if (count == null) {
+      AtomicLong created = new AtomicLong();
+      count = instantiations.putIfAbsent(algorithm, created);
+      if (count == null) count = created;
+    }
+
+    count.incrementAndGet();
+  }
+
+  private static class Pool<T> {
+
+    private final ConcurrentLinkedQueue<T> instances = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger            size      = new AtomicInteger();
+
+    T poll() {
+      T instance = instances.poll();
+      if (instance != null) size.decrementAndGet();
+      return instance;
+    }
+
+    void offer(T instance) {
+      if (size.incrementAndGet() > MAX_POOLED_INSTANCES) size.decrementAndGet();
+      else                                               instances.offer(instance);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how well requests to one endpoint have been going, so that requests can be steered
+ * towards the endpoints that are responding.
+ */
+class EndpointHealth {
+
+  private static final double SMOOTHING              = 0.2;
+  private static final long   BASE_EJECTION_MILLIS   = TimeUnit.SECONDS.toMillis(30);
+  private static final long   MAX_EJECTION_MILLIS    = TimeUnit.MINUTES.toMillis(5);
+  private static final long   DEFAULT_LATENCY_MILLIS = 100;
+
+  private final String url;
+
+  private long   successes;
+  private long   failures;
+  private double successRate = 1;
+  private double latencyMillis;
+  private int    consecutiveServerErrors;
+  private long   ejectedUntil;
+
+  EndpointHealth(String url) {
+    this.url = url;
+  }
+
+  synchronized void recordSuccess(long latencyMillis) {
+    this.successes++;
+    this.successRate             = smooth(successRate, 1);
+    this.latencyMillis           = this.latencyMillis == 0 ? latencyMillis : smooth(this.latencyMillis, latencyMillis);
+    this.consecutiveServerErrors = 0;
+  }
+
+  synchronized void recordFailure() {
+    this.failures++;
+    this.successRate = smooth(successRate, 0);
+  }
+
+  /**
+   * Records a failure and takes the endpoint out of rotation for a while, for longer each time
+   * it happens in a row.
+   */
+  synchronized long recordServerError() {
+    recordFailure();
+
+    long ejectionMillis = Math.min(BASE_EJECTION_MILLIS << Math.min(consecutiveServerErrors, 10), MAX_EJECTION_MILLIS);
+
+    this.consecutiveServerErrors++;
+    this.ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+
+    return ejectionMillis;
+  }
+
+  synchronized boolean isEjected(long now) {
+    return ejectedUntil > now;
+  }
+
+  /**
+   * @return How strongly to prefer this endpoint, which favors endpoints that succeed more and
+   *         respond faster.
+   */
+  synchronized double getWeight() {
+    double latency = latencyMillis == 0 ? DEFAULT_LATENCY_MILLIS : latencyMillis;
+    return (0.01 + successRate * successRate) / (latency + DEFAULT_LATENCY_MILLIS);
+  }
+
+  synchronized EndpointMetrics getMetrics() {
+    return new EndpointMetrics(url, successes, failures, successRate, Math.round(latencyMillis), ejectedUntil);
+  }
+
+  private static double smooth(double average, double sample) {
+    return average + SMOOTHING * (sample - average);
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+/**
+ * A snapshot of how requests to one endpoint have been going.
+ */
+public class EndpointMetrics {
+
+  private final String url;
+  private final long   successCount;
+  private final long   failureCount;
+  private final double successRate;
+  private final long   averageLatencyMillis;
+  private final long   ejectedUntil;
+
+  EndpointMetrics(String url, long successCount, long failureCount, double successRate, long averageLatencyMillis, long ejectedUntil) {
+    this.url                  = url;
+    this.successCount         = successCount;
+    this.failureCount         = failureCount;
+    this.successRate          = successRate;
+    this.averageLatencyMillis = averageLatencyMillis;
+    this.ejectedUntil         = ejectedUntil;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public long getSuccessCount() {
+    return successCount;
+  }
+
+  public long getFailureCount() {
+    return failureCount;
+  }
+
+  /**
+   * @return The recent success rate, between 0 and 1, which favors the latest requests.
+   */
+  public double getSuccessRate() {
+    return successRate;
+  }
+
+  /**
+   * @return The recent time taken to respond, or 0 if there hasn't been a response yet.
+   */
+  public long getAverageLatencyMillis() {
+    return averageLatencyMillis;
+  }
+
+  public boolean isEjected() {
+    return ejectedUntil > System.currentTimeMillis();
+  }
+
+  /**
+   * @return When the endpoint is put back into rotation, if it's been taken out.
+   */
+  public long getEjectedUntil() {
+    return ejectedUntil;
+  }
+
+  @Override
+  public String toString() {
+    return url + " successes: " + successCount + ", failures: " + failureCount +
+           ", success rate: " + successRate + ", latency: " + averageLatencyMillis + "ms" +
+           (isEjected() ? ", ejected" : "");
+  }
+}
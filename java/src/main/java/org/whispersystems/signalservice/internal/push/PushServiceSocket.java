@@ -35,7 +35,6 @@ import org.whispersystems.signalservice.api.push.exceptions.RateLimitException;
 import org.whispersystems.signalservice.api.push.exceptions.RemoteAttestationResponseExpiredException;
 import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
-import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
 import org.whispersystems.signalservice.internal.configuration.SignalUrl;
 import org.whispersystems.signalservice.internal.contacts.entities.DiscoveryRequest;
@@ -45,11 +44,12 @@ import org.whispersystems.signalservice.internal.contacts.entities.RemoteAttesta
 import org.whispersystems.signalservice.internal.push.exceptions.MismatchedDevicesException;
 import org.whispersystems.signalservice.internal.push.exceptions.StaleDevicesException;
 import org.whispersystems.signalservice.internal.push.http.DigestingRequestBody;
+import org.whispersystems.signalservice.internal.push.http.JsonRequestBody;
 import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
 import org.whispersystems.signalservice.internal.util.Base64;
-import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
 import org.whispersystems.signalservice.internal.util.Hex;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
+import org.whispersystems.signalservice.internal.util.OkHttpClients;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.ByteArrayOutputStream;
@@ -59,12 +59,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
 import java.net.URLEncoder;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -74,10 +75,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import okhttp3.Call;
 import okhttp3.ConnectionSpec;
@@ -133,8 +130,10 @@ public class PushServiceSocket {
   private static final String STICKER_MANIFEST_PATH     = "stickers/%s/manifest.proto";
   private static final String STICKER_PATH              = "stickers/%s/full/%d";
 
-  private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
-  private static final ResponseCodeHandler NO_HANDLER = new EmptyResponseCodeHandler();
+  private static final Map<String, String>   NO_HEADERS         = Collections.emptyMap();
+  private static final Set<ConnectionHolder> NO_ENDPOINTS       = Collections.emptySet();
+  private static final Set<String>           IDEMPOTENT_METHODS = new HashSet<String>(Arrays.asList("GET", "HEAD", "PUT", "DELETE"));
+  private static final ResponseCodeHandler   NO_HANDLER         = new EmptyResponseCodeHandler();
 
   private       long      soTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
   private final Set<Call> connections     = new HashSet<Call>();
@@ -285,7 +284,7 @@ public class PushServiceSocket {
                               List<PreKeyRecord> records)
       throws IOException
   {
-    List<PreKeyEntity> entities = new LinkedList<PreKeyEntity>();
+    List<PreKeyEntity> entities = new ArrayList<PreKeyEntity>(records.size());
 
     for (PreKeyRecord record : records) {
       PreKeyEntity entity = new PreKeyEntity(record.getId(),
@@ -299,7 +298,8 @@ public class PushServiceSocket {
                                                                    signedPreKey.getSignature());
 
     makeServiceRequest(String.format(PREKEY_PATH, ""), "PUT",
-                       JsonUtil.toJson(new PreKeyState(entities, signedPreKeyEntity, identityKey)));
+                       new JsonRequestBody(new PreKeyState(entities, signedPreKeyEntity, identityKey)),
+                       NO_HEADERS, NO_HANDLER, Optional.<UnidentifiedAccess>absent());
   }
 
   public int getAvailablePreKeys() throws IOException {
@@ -632,12 +632,8 @@ public class PushServiceSocket {
   private void downloadFromCdn(OutputStream outputStream, String path, int maxSizeBytes, ProgressListener listener)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    ConnectionHolder connectionHolder = getRandom(cdnClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    ConnectionHolder connectionHolder = selectEndpoint(cdnClients, NO_ENDPOINTS);
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).get();
 
@@ -654,7 +650,7 @@ public class PushServiceSocket {
     Response response;
 
     try {
-      response = call.execute();
+      response = execute(connectionHolder, call);
 
       if (response.isSuccessful()) {
         ResponseBody body = response.body();
@@ -695,12 +691,8 @@ public class PushServiceSocket {
                              OutputStreamFactory outputStreamFactory, ProgressListener progressListener)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    ConnectionHolder connectionHolder = getRandom(cdnClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    ConnectionHolder connectionHolder = selectEndpoint(cdnClients, NO_ENDPOINTS);
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     DigestingRequestBody file = new DigestingRequestBody(data, outputStreamFactory, contentType, length, progressListener);
 
@@ -735,7 +727,7 @@ public class PushServiceSocket {
       Response response;
 
       try {
-        response = call.execute();
+        response = execute(connectionHolder, call);
       } catch (IOException e) {
         throw new PushNetworkException(e);
       }
@@ -775,6 +767,13 @@ public class PushServiceSocket {
 
   private String makeServiceRequest(String urlFragment, String method, String body, Map<String, String> headers, ResponseCodeHandler responseCodeHandler, Optional<UnidentifiedAccess> unidentifiedAccessKey)
       throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    RequestBody requestBody = body != null ? RequestBody.create(MediaType.parse("application/json"), body) : null;
+    return makeServiceRequest(urlFragment, method, requestBody, headers, responseCodeHandler, unidentifiedAccessKey);
+  }
+
+  private String makeServiceRequest(String urlFragment, String method, RequestBody body, Map<String, String> headers, ResponseCodeHandler responseCodeHandler, Optional<UnidentifiedAccess> unidentifiedAccessKey)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
   {
     Response response = getServiceConnection(urlFragment, method, body, headers, unidentifiedAccessKey);
 
@@ -862,114 +861,124 @@ public class PushServiceSocket {
     return responseBody;
   }
 
-  private Response getServiceConnection(String urlFragment, String method, String body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccess)
+  private Response getServiceConnection(String urlFragment, String method, RequestBody body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccess)
       throws PushNetworkException
   {
-    try {
-      ServiceConnectionHolder connectionHolder = (ServiceConnectionHolder) getRandom(serviceClients, random);
-      OkHttpClient            baseClient       = unidentifiedAccess.isPresent() ? connectionHolder.getUnidentifiedClient() : connectionHolder.getClient();
-      OkHttpClient            okHttpClient     = baseClient.newBuilder()
-                                                           .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                           .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                           .build();
+    Set<ConnectionHolder> attempted = new HashSet<ConnectionHolder>();
 
-      Log.w(TAG, "Push service URL: " + connectionHolder.getUrl());
-      Log.w(TAG, "Opening URL: " + String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+    while (true) {
+      ServiceConnectionHolder connectionHolder = selectEndpoint(serviceClients, attempted);
 
-      Request.Builder request = new Request.Builder();
-      request.url(String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+      try {
+        OkHttpClient okHttpClient = unidentifiedAccess.isPresent() ? connectionHolder.getUnidentifiedClient(soTimeoutMillis) : connectionHolder.getClient(soTimeoutMillis);
 
-      if (body != null) {
-        request.method(method, RequestBody.create(MediaType.parse("application/json"), body));
-      } else {
-        request.method(method, null);
-      }
+        Log.w(TAG, "Push service URL: " + connectionHolder.getUrl());
+        Log.w(TAG, "Opening URL: " + String.format("%s%s", connectionHolder.getUrl(), urlFragment));
 
-      for (Map.Entry<String, String> header : headers.entrySet()) {
-        request.addHeader(header.getKey(), header.getValue());
-      }
+        Request.Builder request = new Request.Builder();
+        request.url(String.format("%s%s", connectionHolder.getUrl(), urlFragment));
 
-      if (unidentifiedAccess.isPresent()) {
-        request.addHeader("Unidentified-Access-Key", Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
-      } else if (credentialsProvider.getPassword() != null) {
-        request.addHeader("Authorization", getAuthorizationHeader(credentialsProvider));
-      }
+        request.method(method, body);
 
-      if (userAgent != null) {
-        request.addHeader("X-Signal-Agent", userAgent);
-      }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+          request.addHeader(header.getKey(), header.getValue());
+        }
 
-      if (connectionHolder.getHostHeader().isPresent()) {
-        request.addHeader("Host", connectionHolder.getHostHeader().get());
-      }
+        if (unidentifiedAccess.isPresent()) {
+          request.addHeader("Unidentified-Access-Key", Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+        } else if (credentialsProvider.getPassword() != null) {
+          request.addHeader("Authorization", getAuthorizationHeader(credentialsProvider));
+        }
 
-      Call call = okHttpClient.newCall(request.build());
+        if (userAgent != null) {
+          request.addHeader("X-Signal-Agent", userAgent);
+        }
 
-      synchronized (connections) {
-        connections.add(call);
-      }
+        if (connectionHolder.getHostHeader().isPresent()) {
+          request.addHeader("Host", connectionHolder.getHostHeader().get());
+        }
+
+        Call call = okHttpClient.newCall(request.build());
 
-      try {
-        return call.execute();
-      } finally {
         synchronized (connections) {
-          connections.remove(call);
+          connections.add(call);
         }
+
+        try {
+          return execute(connectionHolder, call);
+        } finally {
+          synchronized (connections) {
+            connections.remove(call);
+          }
+        }
+      } catch (IOException e) {
+        attempted.add(connectionHolder);
+
+        if (!isRetryable(method, e, attempted, serviceClients)) {
+          throw new PushNetworkException(e);
+        }
+
+        Log.w(TAG, "Couldn't connect to " + connectionHolder.getUrl() + ", trying another endpoint", e);
       }
-    } catch (IOException e) {
-      throw new PushNetworkException(e);
     }
   }
 
   private Response makeContactDiscoveryRequest(String authorization, List<String> cookies, String path, String method, String body)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    ConnectionHolder connectionHolder = getRandom(contactDiscoveryClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    Set<ConnectionHolder> attempted = new HashSet<ConnectionHolder>();
+    Response              response;
 
-    Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + path);
+    while (true) {
+      ConnectionHolder connectionHolder = selectEndpoint(contactDiscoveryClients, attempted);
+      OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
-    if (body != null) {
-      request.method(method, RequestBody.create(MediaType.parse("application/json"), body));
-    } else {
-      request.method(method, null);
-    }
+      Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + path);
 
-    if (connectionHolder.getHostHeader().isPresent()) {
-      request.addHeader("Host", connectionHolder.getHostHeader().get());
-    }
+      if (body != null) {
+        request.method(method, RequestBody.create(MediaType.parse("application/json"), body));
+      } else {
+        request.method(method, null);
+      }
 
-    if (authorization != null) {
-      request.addHeader("Authorization", authorization);
-    }
+      if (connectionHolder.getHostHeader().isPresent()) {
+        request.addHeader("Host", connectionHolder.getHostHeader().get());
+      }
 
-    if (cookies != null && !cookies.isEmpty()) {
-      request.addHeader("Cookie", Util.join(cookies, "; "));
-    }
+      if (authorization != null) {
+        request.addHeader("Authorization", authorization);
+      }
 
-    Call call = okHttpClient.newCall(request.build());
+      if (cookies != null && !cookies.isEmpty()) {
+        request.addHeader("Cookie", Util.join(cookies, "; "));
+      }
 
-    synchronized (connections) {
-      connections.add(call);
-    }
+      Call call = okHttpClient.newCall(request.build());
 
-    Response response;
+      synchronized (connections) {
+        connections.add(call);
+      }
 
-    try {
-      response = call.execute();
+      try {
+        response = execute(connectionHolder, call);
 
-      if (response.isSuccessful()) {
-        return response;
-      }
-    } catch (IOException e) {
-      throw new PushNetworkException(e);
-    } finally {
-      synchronized (connections) {
-        connections.remove(call);
+        if (response.isSuccessful()) {
+          return response;
+        }
+
+        break;
+      } catch (IOException e) {
+        attempted.add(connectionHolder);
+
+        if (!isRetryable(method, e, attempted, contactDiscoveryClients)) {
+          throw new PushNetworkException(e);
+        }
+
+        Log.w(TAG, "Couldn't connect to " + connectionHolder.getUrl() + ", trying another endpoint", e);
+      } finally {
+        synchronized (connections) {
+          connections.remove(call);
+        }
       }
     }
 
@@ -991,7 +1000,7 @@ public class PushServiceSocket {
 
     for (SignalUrl url : urls) {
       serviceConnectionHolders.add(new ServiceConnectionHolder(createConnectionClient(url),
-                                                               createConnectionClient(url),
+                                                               createUnidentifiedConnectionClient(url),
                                                                url.getUrl(), url.getHostHeader()));
     }
 
@@ -1009,43 +1018,20 @@ public class PushServiceSocket {
   }
 
   private OkHttpClient createConnectionClient(SignalUrl url) {
-    try {
-      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
-
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, trustManagers, null);
+    return OkHttpClients.newBuilder(url.getTrustStore(), url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
+                        .build();
+  }
 
-      return new OkHttpClient.Builder()
-                             .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
-                             .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
-                             .build();
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (KeyManagementException e) {
-      throw new AssertionError(e);
-    }
+  // Unidentified requests mustn't go out over a connection an identified one has used
+  private OkHttpClient createUnidentifiedConnectionClient(SignalUrl url) {
+    return OkHttpClients.newBuilder(url.getTrustStore(), url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
+                        .connectionPool(OkHttpClients.getUnidentifiedConnectionPool())
+                        .build();
   }
 
   private OkHttpClient createAttachmentClient() {
-    try {
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, null, null);
-
-      TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-      trustManagerFactory.init((KeyStore)null);
-
-      return new OkHttpClient.Builder()
-                             .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()),
-                                               (X509TrustManager)trustManagerFactory.getTrustManagers()[0])
-                             .connectionSpecs(Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
-                             .build();
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (KeyManagementException e) {
-      throw new AssertionError(e);
-    } catch (KeyStoreException e) {
-      throw new AssertionError(e);
-    }
+    return OkHttpClients.newSystemTrustBuilder(Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
+                        .build();
   }
 
   private String getAuthorizationHeader(CredentialsProvider credentialsProvider) {
@@ -1056,8 +1042,91 @@ public class PushServiceSocket {
     }
   }
 
-  private ConnectionHolder getRandom(ConnectionHolder[] connections, SecureRandom random) {
-    return connections[random.nextInt(connections.length)];
+  /**
+   * Picks an endpoint at random, weighted towards those that have been succeeding and responding
+   * quickly. Endpoints that have recently returned server errors are left out, unless there are
+   * no others left to try.
+   */
+  private <T extends ConnectionHolder> T selectEndpoint(T[] endpoints, Set<ConnectionHolder> excluded) {
+    long     now         = System.currentTimeMillis();
+    List<T>  candidates  = new ArrayList<T>(endpoints.length);
+    double[] weights     = new double[endpoints.length];
+    double   totalWeight = 0;
+
+    for (T endpoint : endpoints) {
+      if (!excluded.contains(endpoint) && !endpoint.getHealth().isEjected(now)) {
+        candidates.add(endpoint);
+      }
+    }
+
+    if (candidates.isEmpty()) {
+      for (T endpoint : endpoints) {
+        if (!excluded.contains(endpoint)) candidates.add(endpoint);
+      }
+    }
+
+    if (candidates.isEmpty()) {
+      candidates.addAll(Arrays.asList(endpoints));
+    }
+
+    for (int i = 0; i < candidates.size(); i++) {
+      weights[i]   = candidates.get(i).getHealth().getWeight();
+      totalWeight += weights[i];
+    }
+
+    double selection = random.nextDouble() * totalWeight;
+
+    for (int i = 0; i < candidates.size(); i++) {
+      selection -= weights[i];
+      if (selection < 0) return candidates.get(i);
+    }
+
+    return candidates.get(candidates.size() - 1);
+  }
+
+  private Response execute(ConnectionHolder connectionHolder, Call call) throws IOException {
+    long startTime = System.nanoTime();
+
+    try {
+      Response response = call.execute();
+
+      if (response.code() >= 500) {
+        long ejectionMillis = connectionHolder.getHealth().recordServerError();
+        Log.w(TAG, "Server error from " + connectionHolder.getUrl() + ", ejecting it for " + ejectionMillis + "ms");
+      } else {
+        connectionHolder.getHealth().recordSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+      }
+
+      return response;
+    } catch (IOException e) {
+      if (!call.isCanceled()) {
+        connectionHolder.getHealth().recordFailure();
+      }
+
+      throw e;
+    }
+  }
+
+  // A request that never reached the server can be sent to another endpoint
+  private boolean isRetryable(String method, IOException exception, Set<ConnectionHolder> attempted, ConnectionHolder[] endpoints) {
+    return attempted.size() < endpoints.length &&
+           IDEMPOTENT_METHODS.contains(method) &&
+           (exception instanceof ConnectException        ||
+            exception instanceof NoRouteToHostException ||
+            exception instanceof UnknownHostException);
+  }
+
+  /**
+   * @return How requests to each of the service, CDN and contact discovery endpoints have been going.
+   */
+  public List<EndpointMetrics> getEndpointMetrics() {
+    List<EndpointMetrics> metrics = new LinkedList<EndpointMetrics>();
+
+    for (ConnectionHolder endpoint : serviceClients)          metrics.add(endpoint.getHealth().getMetrics());
+    for (ConnectionHolder endpoint : cdnClients)              metrics.add(endpoint.getHealth().getMetrics());
+    for (ConnectionHolder endpoint : contactDiscoveryClients) metrics.add(endpoint.getHealth().getMetrics());
+
+    return metrics;
   }
 
   private static class GcmRegistrationId {
@@ -1112,22 +1181,39 @@ public class PushServiceSocket {
   }
 
 
+  // Holds on to the copy of a client with the current timeout, so it isn't rebuilt for every request
+  private static OkHttpClient getTimeoutClient(OkHttpClient client, OkHttpClient timeoutClient, long timeoutMillis) {
+    if (timeoutClient != null && timeoutClient.readTimeoutMillis() == timeoutMillis) {
+      return timeoutClient;
+    }
+
+    return OkHttpClients.withTimeout(client, timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
   private static class ConnectionHolder {
 
     private final OkHttpClient     client;
     private final String           url;
     private final Optional<String> hostHeader;
+    private final EndpointHealth   health;
+
+    private volatile OkHttpClient timeoutClient;
 
     private ConnectionHolder(OkHttpClient client, String url, Optional<String> hostHeader) {
       this.client     = client;
       this.url        = url;
       this.hostHeader = hostHeader;
+      this.health     = new EndpointHealth(url);
     }
 
     OkHttpClient getClient() {
       return client;
     }
 
+    OkHttpClient getClient(long timeoutMillis) {
+      return timeoutClient = getTimeoutClient(client, timeoutClient, timeoutMillis);
+    }
+
     public String getUrl() {
       return url;
     }
@@ -1135,12 +1221,18 @@ public class PushServiceSocket {
     Optional<String> getHostHeader() {
       return hostHeader;
     }
+
+    EndpointHealth getHealth() {
+      return health;
+    }
   }
 
   private static class ServiceConnectionHolder extends ConnectionHolder {
 
     private final OkHttpClient unidentifiedClient;
 
+    private volatile OkHttpClient unidentifiedTimeoutClient;
+
     private ServiceConnectionHolder(OkHttpClient identifiedClient, OkHttpClient unidentifiedClient, String url, Optional<String> hostHeader) {
       super(identifiedClient, url, hostHeader);
       this.unidentifiedClient = unidentifiedClient;
@@ -1149,6 +1241,10 @@ public class PushServiceSocket {
     OkHttpClient getUnidentifiedClient() {
       return unidentifiedClient;
     }
+
+    OkHttpClient getUnidentifiedClient(long timeoutMillis) {
+      return unidentifiedTimeoutClient = getTimeoutClient(unidentifiedClient, unidentifiedTimeoutClient, timeoutMillis);
+    }
   }
 
   private interface ResponseCodeHandler {
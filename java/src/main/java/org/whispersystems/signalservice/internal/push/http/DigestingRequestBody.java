@@ -46,17 +46,21 @@ public class DigestingRequestBody extends RequestBody {
     int read;
     long total = 0;
 
-    while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
-      outputStream.write(buffer, 0, read);
-      total += read;
-
-      if (progressListener != null) {
-        progressListener.onAttachmentProgress(contentLength, total);
+    try {
+      while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
+        outputStream.write(buffer, 0, read);
+        total += read;
+
+        if (progressListener != null) {
+          progressListener.onAttachmentProgress(contentLength, total);
+        }
       }
-    }
 
-    outputStream.flush();
-    digest = outputStream.getTransmittedDigest();
+      outputStream.flush();
+      digest = outputStream.getTransmittedDigest();
+    } finally {
+      outputStream.release();
+    }
   }
 
   @Override
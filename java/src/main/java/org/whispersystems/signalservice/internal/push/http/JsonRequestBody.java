@@ -0,0 +1,36 @@
+package org.whispersystems.signalservice.internal.push.http;
+
+
+import org.whispersystems.signalservice.internal.util.JsonUtil;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A request body that serializes its entity straight into the request sink, rather
+ * than building the whole JSON document in memory first.
+ */
+public class JsonRequestBody extends RequestBody {
+
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private final Object entity;
+
+  public JsonRequestBody(Object entity) {
+    this.entity = entity;
+  }
+
+  @Override
+  public MediaType contentType() {
+    return JSON;
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    JsonUtil.toJson(entity, sink.outputStream());
+    sink.flush();
+  }
+}
@@ -24,6 +24,7 @@ import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.logging.Log;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class JsonUtil {
 
@@ -44,6 +45,16 @@ public class JsonUtil {
     }
   }
 
+  /**
+   * Stream the JSON encoding of {@code object} into {@code outputStream}, without
+   * materializing it as a String first.  The stream is left open.
+   */
+  public static void toJson(Object object, OutputStream outputStream) throws IOException {
+    objectMapper.writer()
+                .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .writeValue(outputStream, object);
+  }
+
   public static <T> T fromJson(String json, Class<T> clazz)
       throws IOException
   {
@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.util;
+
+import org.whispersystems.signalservice.api.push.TrustStore;
+import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
+
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+/**
+ * Hands out the HTTP clients used by every transport in the service.
+ *
+ * All clients are derived from a single base client, so they share its connection pool and
+ * dispatcher. Clients for the same trust store also share their TLS socket factory, which lets
+ * pooled connections and TLS sessions be reused between them, and across reconnects.
+ */
+public final class OkHttpClients {
+
+  private static final int  MAX_IDLE_CONNECTIONS  = 10;
+  private static final long KEEP_ALIVE_MINUTES    = 5;
+  private static final int  MAX_REQUESTS          = 64;
+  private static final int  MAX_REQUESTS_PER_HOST = 16;
+
+  private static final OkHttpClient   baseClient;
+  private static final ConnectionPool unidentifiedConnectionPool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+
+  static {
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(MAX_REQUESTS);
+    // A websocket holds on to its slot for as long as it's open
+    dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+    baseClient = new OkHttpClient.Builder()
+                                 .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                                 .dispatcher(dispatcher)
+                                 .build();
+  }
+
+  private static final Map<TrustStore, TlsConfiguration> trustStoreConfigurations = new IdentityHashMap<TrustStore, TlsConfiguration>();
+
+  private static TlsConfiguration systemConfiguration;
+
+  private OkHttpClients() {}
+
+  /**
+   * @return The client every other client is derived from, with the default timeouts and trust.
+   */
+  public static OkHttpClient getBaseClient() {
+    return baseClient;
+  }
+
+  /**
+   * @return A pool kept apart from the shared one, for connections that mustn't be linkable
+   *         to the requests sent over the shared pool.
+   */
+  public static ConnectionPool getUnidentifiedConnectionPool() {
+    return unidentifiedConnectionPool;
+  }
+
+  /**
+   * @return A builder for a client that only trusts the certificates in the trust store, over TLS 1.2 and up.
+   */
+  public static OkHttpClient.Builder newBuilder(TrustStore trustStore, List<ConnectionSpec> connectionSpecs) {
+    TlsConfiguration configuration = getConfiguration(trustStore);
+
+    return baseClient.newBuilder()
+                     .sslSocketFactory(configuration.socketFactory, configuration.trustManager)
+                     .connectionSpecs(connectionSpecs);
+  }
+
+  /**
+   * @return A builder for a client that trusts the system's certificate authorities, over TLS 1.2 and up.
+   */
+  public static OkHttpClient.Builder newSystemTrustBuilder(List<ConnectionSpec> connectionSpecs) {
+    TlsConfiguration configuration = getSystemConfiguration();
+
+    return baseClient.newBuilder()
+                     .sslSocketFactory(configuration.socketFactory, configuration.trustManager)
+                     .connectionSpecs(connectionSpecs);
+  }
+
+  /**
+   * @return A copy of the client with the given connect and read timeouts, which still shares
+   *         its connections with the original.
+   */
+  public static OkHttpClient withTimeout(OkHttpClient client, long timeout, TimeUnit unit) {
+    if (client.connectTimeoutMillis() == unit.toMillis(timeout) &&
+        client.readTimeoutMillis()    == unit.toMillis(timeout))
+    {
+      return client;
+    }
+
+    return client.newBuilder()
+                 .connectTimeout(timeout, unit)
+                 .readTimeout(timeout, unit)
+                 .build();
+  }
+
+  private static synchronized TlsConfiguration getConfiguration(TrustStore trustStore) {
+    TlsConfiguration configuration = trustStoreConfigurations.get(trustStore);
+
+    if (configuration == null) {
+      configuration = createConfiguration(BlacklistingTrustManager.createFor(trustStore));
+      trustStoreConfigurations.put(trustStore, configuration);
+    }
+
+    return configuration;
+  }
+
+  private static synchronized TlsConfiguration getSystemConfiguration() {
+    if (systemConfiguration == null) {
+      try {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init((KeyStore)null);
+
+        systemConfiguration = createConfiguration(trustManagerFactory.getTrustManagers());
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      } catch (KeyStoreException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    return systemConfiguration;
+  }
+
+  private static TlsConfiguration createConfiguration(TrustManager[] trustManagers) {
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, trustManagers, null);
+
+      return new TlsConfiguration(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0]);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (KeyManagementException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static class TlsConfiguration {
+    private final SSLSocketFactory socketFactory;
+    private final X509TrustManager trustManager;
+
+    private TlsConfiguration(SSLSocketFactory socketFactory, X509TrustManager trustManager) {
+      this.socketFactory = socketFactory;
+      this.trustManager  = trustManager;
+    }
+  }
+}
@@ -7,6 +7,7 @@
 package org.whispersystems.signalservice.internal.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -107,8 +108,9 @@ public class Util {
     for (;;) {
       int read = in.read(buffer, offset, buffer.length - offset);
 
-      if (read + offset < buffer.length) offset += read;
-      else                		           return;
+      if      (read == -1)                    throw new EOFException("Stream ended after " + offset + " of " + buffer.length + " bytes");
+      else if (read + offset < buffer.length) offset += read;
+      else                                    return;
     }
   }
 
@@ -8,29 +8,28 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.push.TrustStore;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
 import org.whispersystems.signalservice.api.util.SleepTimer;
-import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
 import org.whispersystems.signalservice.api.websocket.ConnectivityListener;
-import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
+import org.whispersystems.signalservice.internal.util.OkHttpClients;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
 import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 
 import java.io.IOException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-
 import okhttp3.ConnectionSpec;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -47,9 +46,16 @@ public class WebSocketConnection extends WebSocketListener {
 
   private static final String TAG                       = WebSocketConnection.class.getSimpleName();
   private static final int    KEEPALIVE_TIMEOUT_SECONDS = 55;
+  private static final int    MAX_INCOMING_REQUESTS     = 1000;
+
+  // Queued when the connection is shut down, to wake up anyone waiting for a request
+  private static final WebSocketRequestMessage CLOSED = WebSocketRequestMessage.newBuilder().setPath("closed").build();
+
+  private static ScheduledExecutorService timeoutTimer;
 
-  private final LinkedList<WebSocketRequestMessage>              incomingRequests = new LinkedList<WebSocketRequestMessage>();
-  private final Map<Long, SettableFuture<Pair<Integer, String>>> outgoingRequests = new HashMap<Long, SettableFuture<Pair<Integer, String>>>();
+  private final BlockingDeque<WebSocketRequestMessage>                        incomingRequests = new LinkedBlockingDeque<WebSocketRequestMessage>();
+  private final Semaphore                                                     incomingCapacity = new Semaphore(MAX_INCOMING_REQUESTS);
+  private final ConcurrentHashMap<Long, SettableFuture<Pair<Integer, String>>> outgoingRequests = new ConcurrentHashMap<Long, SettableFuture<Pair<Integer, String>>>();
 
   private final String                        wsUri;
   private final TrustStore                    trustStore;
@@ -58,10 +64,13 @@ public class WebSocketConnection extends WebSocketListener {
   private final ConnectivityListener          listener;
   private final SleepTimer                    sleepTimer;
 
-  private WebSocket           client;
-  private KeepAliveSender     keepAliveSender;
-  private int                 attempts;
-  private boolean             connected;
+  private OkHttpClient             okHttpClient;
+  private volatile WebSocket       client;
+  private KeepAliveSender          keepAliveSender;
+  private RequestDispatcher        requestDispatcher;
+  private int                      attempts;
+  private volatile boolean         connected;
+  private volatile RequestListener requestListener;
 
   public WebSocketConnection(String httpUri,
                              TrustStore trustStore,
@@ -96,14 +105,12 @@ public class WebSocketConnection extends WebSocketListener {
         filledUri = wsUri;
       }
 
-      Pair<SSLSocketFactory, X509TrustManager> socketFactory = createTlsSocketFactory(trustStore);
-
-      OkHttpClient okHttpClient = new OkHttpClient.Builder()
-                                                  .sslSocketFactory(new Tls12SocketFactory(socketFactory.first()), socketFactory.second())
-                                                  .connectionSpecs(Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
-                                                  .readTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
-                                                  .connectTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
-                                                  .build();
+      if (okHttpClient == null) {
+        okHttpClient = OkHttpClients.newBuilder(trustStore, Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
+                                    .readTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
+                                    .connectTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
+                                    .build();
+      }
 
       Request.Builder requestBuilder = new Request.Builder().url(filledUri);
 
@@ -115,6 +122,8 @@ public class WebSocketConnection extends WebSocketListener {
         listener.onConnecting();
       }
 
+      removeClosed();
+
       this.connected = false;
       this.client    = okHttpClient.newWebSocket(requestBuilder.build(), this);
     }
@@ -133,27 +142,63 @@ public class WebSocketConnection extends WebSocketListener {
       keepAliveSender.shutdown();
       keepAliveSender = null;
     }
+
+    // Unacknowledged requests will be delivered again
+    discardIncomingRequests();
+    incomingRequests.offer(CLOSED);
   }
 
-  public synchronized WebSocketRequestMessage readRequest(long timeoutMillis)
+  /**
+   * Deliver incoming requests to a listener as they arrive, instead of them being read
+   * with {@link #readRequest(long)}. Requests are delivered one at a time and in order, on
+   * a thread of their own, so a slow listener doesn't hold up the connection. Pass null
+   * to stop delivering them.
+   */
+  public synchronized void setRequestListener(RequestListener listener) {
+    this.requestListener = listener;
+
+    if (listener == null && requestDispatcher != null) {
+      requestDispatcher.shutdown();
+      requestDispatcher = null;
+    } else if (listener != null && requestDispatcher == null) {
+      requestDispatcher = new RequestDispatcher();
+      requestDispatcher.start();
+    }
+  }
+
+  public WebSocketRequestMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
+    if (requestListener != null) {
+      throw new IllegalStateException("Requests are being delivered to a listener!");
+    }
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
 
-    long startTime = System.currentTimeMillis();
+    try {
+      WebSocketRequestMessage request = incomingRequests.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+
+      if (request == null) {
+        throw new TimeoutException("Timeout exceeded");
+      }
 
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
-    }
+      if (request == CLOSED) {
+        incomingRequests.offer(CLOSED);
+        throw new IOException("Connection closed!");
+      }
 
-    if      (incomingRequests.isEmpty() && client == null) throw new IOException("Connection closed!");
-    else if (incomingRequests.isEmpty())                   throw new TimeoutException("Timeout exceeded");
-    else                                                   return incomingRequests.removeFirst();
+      incomingCapacity.release();
+      return request;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
   }
 
-  public synchronized Future<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request) throws IOException {
+  public ListenableFuture<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null || !connected) throw new IOException("No connection!");
 
     WebSocketMessage message = WebSocketMessage.newBuilder()
@@ -165,13 +210,48 @@ public class WebSocketConnection extends WebSocketListener {
     outgoingRequests.put(request.getId(), future);
 
     if (!client.send(ByteString.of(message.toByteArray()))) {
+      outgoingRequests.remove(request.getId());
       throw new IOException("Write failed!");
     }
 
     return future;
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+  /**
+   * Like {@link #sendRequest(WebSocketRequestMessage)}, but the request fails with a
+   * {@link TimeoutException} if it hasn't been responded to within the timeout.
+   */
+  public ListenableFuture<Pair<Integer, String>> sendRequest(final WebSocketRequestMessage request, long timeoutMillis) throws IOException {
+    final ListenableFuture<Pair<Integer, String>> future  = sendRequest(request);
+    final ScheduledFuture<?>                      timeout = getTimeoutTimer().schedule(new Runnable() {
+      @Override
+      public void run() {
+        SettableFuture<Pair<Integer, String>> expired = outgoingRequests.get(request.getId());
+
+        if (expired == future && outgoingRequests.remove(request.getId(), expired)) {
+          expired.setException(new TimeoutException("No response to " + request.getPath()));
+        }
+      }
+    }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+    future.addListener(new ListenableFuture.Listener<Pair<Integer, String>>() {
+      @Override
+      public void onSuccess(Pair<Integer, String> result) {
+        timeout.cancel(false);
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        timeout.cancel(false);
+      }
+    });
+
+    return future;
+  }
+
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
@@ -186,8 +266,29 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
-  private synchronized void sendKeepAlive() throws IOException {
-    if (keepAliveSender != null && client != null) {
+  // One thread times out the requests of every connection
+  private static synchronized ScheduledExecutorService getTimeoutTimer() {
+    if (timeoutTimer == null) {
+      ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "WebSocketRequestTimer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+      timer.setRemoveOnCancelPolicy(true);
+      timeoutTimer = timer;
+    }
+
+    return timeoutTimer;
+  }
+
+  private void sendKeepAlive() throws IOException {
+    WebSocket client = this.client;
+
+    if (client != null) {
       byte[] message = WebSocketMessage.newBuilder()
                                        .setType(WebSocketMessage.Type.REQUEST)
                                        .setRequest(WebSocketRequestMessage.newBuilder()
@@ -217,7 +318,7 @@ public class WebSocketConnection extends WebSocketListener {
   }
 
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     Log.w(TAG, "WSC onMessage()");
     try {
       WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
@@ -225,16 +326,23 @@ public class WebSocketConnection extends WebSocketListener {
       Log.w(TAG, "Message Type: " + message.getType().getNumber());
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE)  {
-        incomingRequests.add(message.getRequest());
+        // While the queue is full the socket isn't read, so the server holds back further requests
+        if (incomingCapacity.tryAcquire(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          incomingRequests.offer(message.getRequest());
+        } else {
+          Log.w(TAG, "Incoming requests aren't being handled, reconnecting so they're delivered again.");
+          webSocket.cancel();
+        }
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
-        SettableFuture<Pair<Integer, String>> listener = outgoingRequests.get(message.getResponse().getId());
+        SettableFuture<Pair<Integer, String>> listener = outgoingRequests.remove(message.getResponse().getId());
         if (listener != null) listener.set(new Pair<Integer, String>(message.getResponse().getStatus(),
                                                       new String(message.getResponse().getBody().toByteArray())));
       }
-
-      notifyAll();
     } catch (InvalidProtocolBufferException e) {
       Log.w(TAG, e);
+    } catch (InterruptedException e) {
+      Log.w(TAG, e);
+      webSocket.cancel();
     }
   }
 
@@ -268,8 +376,6 @@ public class WebSocketConnection extends WebSocketListener {
       connected = false;
       connect();
     }
-
-    notifyAll();
   }
 
   @Override
@@ -297,21 +403,19 @@ public class WebSocketConnection extends WebSocketListener {
     webSocket.close(1000, "OK");
   }
 
-  private long elapsedTime(long startTime) {
-    return System.currentTimeMillis() - startTime;
+  private void discardIncomingRequests() {
+    WebSocketRequestMessage request;
+
+    while ((request = incomingRequests.poll()) != null) {
+      if (request != CLOSED) incomingCapacity.release();
+    }
   }
 
-  private Pair<SSLSocketFactory, X509TrustManager> createTlsSocketFactory(TrustStore trustStore) {
-    try {
-      SSLContext     context       = SSLContext.getInstance("TLS");
-      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(trustStore);
-      context.init(null, trustManagers, null);
-
-      return new Pair<SSLSocketFactory, X509TrustManager>(context.getSocketFactory(), (X509TrustManager)trustManagers[0]);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (KeyManagementException e) {
-      throw new AssertionError(e);
+  private void removeClosed() {
+    Iterator<WebSocketRequestMessage> iterator = incomingRequests.iterator();
+
+    while (iterator.hasNext()) {
+      if (iterator.next() == CLOSED) iterator.remove();
     }
   }
 
@@ -337,4 +441,43 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
+  private class RequestDispatcher extends Thread {
+
+    private AtomicBoolean stop = new AtomicBoolean(false);
+
+    public void run() {
+      while (!stop.get()) {
+        try {
+          WebSocketRequestMessage request  = incomingRequests.poll(1, TimeUnit.SECONDS);
+          RequestListener         listener = requestListener;
+
+          if (request == null) {
+            continue;
+          }
+
+          if (stop.get() || listener == null) {
+            // Leave it at the head of the queue for whoever reads next, so requests stay in order
+            incomingRequests.offerFirst(request);
+            return;
+          }
+
+          if (request != CLOSED) {
+            incomingCapacity.release();
+            listener.onRequest(request);
+          }
+        } catch (Throwable e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+
+    public void shutdown() {
+      stop.set(true);
+    }
+  }
+
+  public interface RequestListener {
+    public void onRequest(WebSocketRequestMessage request);
+  }
+
 }
@@ -21,6 +21,7 @@ import org.whispersystems.signalservice.loki.utilities.prettifiedDescription
 import org.whispersystems.signalservice.loki.utilities.retryIfNeeded
 import java.net.ConnectException
 import java.net.SocketTimeoutException
+import java.util.concurrent.CancellationException
 
 class LokiAPI(private val userHexEncodedPublicKey: String, private val database: LokiAPIDatabaseProtocol, private val broadcaster: Broadcaster) {
 
@@ -40,6 +41,19 @@ class LokiAPI(private val userHexEncodedPublicKey: String, private val database:
         private val longPollingTimeout: Long = 40
         internal val defaultMessageTTL = 24 * 60 * 60 * 1000
         internal var powDifficulty = 4
+        /**
+         * How messages are delivered to the snodes of their recipient's swarm.
+         */
+        @JvmStatic var deliveryStrategy: LokiDeliveryStrategy = LokiDeliveryStrategy.FirstSuccess
+        // endregion
+
+        // region Delivery Metrics
+        /**
+         * Returns how deliveries have been going, by the name of the strategy they were made with.
+         */
+        @JvmStatic fun getDeliveryMetrics(): Map<String, LokiDeliveryMetrics> {
+            return LokiSwarmDelivery.getMetrics()
+        }
         // endregion
 
         // region User ID Caching
@@ -107,7 +121,7 @@ class LokiAPI(private val userHexEncodedPublicKey: String, private val database:
      * `hexEncodedPublicKey` is the hex encoded public key of the user the call is associated with. This is needed for swarm cache maintenance.
      */
     internal fun invoke(method: LokiAPITarget.Method, target: LokiAPITarget, hexEncodedPublicKey: String,
-        parameters: Map<String, String>, headers: Headers? = null, timeout: Long? = null): RawResponsePromise {
+        parameters: Map<String, String>, headers: Headers? = null, timeout: Long? = null, cancellation: LokiHTTPClient.Cancellation? = null): RawResponsePromise {
         val url = "${target.address}:${target.port}/storage_rpc/$apiVersion"
         val body = RequestBody.create(MediaType.get("application/json"), "{ \"method\" : \"${method.rawValue}\", \"params\" : ${JsonUtil.toJson(parameters)} }")
         val request = Request.Builder().url(url).post(body)
@@ -126,10 +140,10 @@ class LokiAPI(private val userHexEncodedPublicKey: String, private val database:
                 LokiSwarmAPI.failureCount[target] = 0
             }
         }
-        return LokiSnodeProxy(target, timeout ?: defaultTimeout).execute(request.build()).fail { exception ->
+        return LokiSnodeProxy(target, timeout ?: defaultTimeout, cancellation).execute(request.build()).fail { exception ->
             if (exception is ConnectException || exception is SocketTimeoutException) {
                 dropSnodeIfNeeded()
-            } else {
+            } else if (exception !is CancellationException) {
                 Log.d("Loki", "Unhandled exception: $exception.")
             }
         }.map { response ->
@@ -143,7 +157,7 @@ class LokiAPI(private val userHexEncodedPublicKey: String, private val database:
                         throw Error.HTTPRequestFailed(response.statusCode)
                     }
                     406 -> {
-                        Log.d("Loki", "The user's clock is out of sync with the service node network.")
+                        Log.d("Loki", "The user's clock is out of sync with the service node network (network clock offset: ${LokiNetworkClock.getOffset()}ms).")
                         broadcaster.broadcast("clockOutOfSync")
                         throw Error.ClockOutOfSync
                     }
@@ -195,21 +209,54 @@ class LokiAPI(private val userHexEncodedPublicKey: String, private val database:
 
     @kotlin.ExperimentalUnsignedTypes
     fun sendSignalMessage(message: SignalMessageInfo, onP2PSuccess: () -> Unit): Promise<Set<RawResponsePromise>, Exception> {
-        val lokiMessage = LokiMessage.from(message) ?: return task { throw Error.MessageConversionFailed }
+        val lokiMessage = LokiMessage.forSending(message) ?: return task { throw Error.MessageConversionFailed }
         val destination = lokiMessage.destination
-        fun sendLokiMessage(lokiMessage: LokiMessage, target: LokiAPITarget): RawResponsePromise {
+        val clockOffset = LokiNetworkClock.getOffset()
+        var correctedLokiMessageWithPoW: Promise<LokiMessage, Exception>? = null
+        fun sendLokiMessage(lokiMessage: LokiMessage, target: LokiAPITarget, cancellation: LokiHTTPClient.Cancellation? = null): RawResponsePromise {
             val parameters = lokiMessage.toJSON()
-            return invoke(LokiAPITarget.Method.SendMessage, target, destination, parameters)
+            return invoke(LokiAPITarget.Method.SendMessage, target, destination, parameters, cancellation = cancellation)
+        }
+        fun sendLokiMessageWithPoW(lokiMessageWithPoW: LokiMessage, target: LokiAPITarget, cancellation: LokiHTTPClient.Cancellation, isRetry: Boolean = false): RawResponsePromise {
+            val deferred = deferred<RawResponse, Exception>()
+            sendLokiMessage(lokiMessageWithPoW, target, cancellation).success {
+                deferred.resolve(it)
+            }.fail { exception ->
+                // The network clock may have learned a new offset from the responses since the proof of work was calculated
+                val isTimestampCorrectable = exception is Error.ClockOutOfSync && LokiNetworkClock.getOffset() != clockOffset
+                if ((exception is Error.InsufficientProofOfWork || isTimestampCorrectable) && !isRetry) {
+                    // If the difficulty went up after the proof of work was calculated, resume the calculation with the same timestamp
+                    val newLokiMessageWithPoW = if (isTimestampCorrectable) {
+                        // Every target will reject the skewed timestamp, so share one recalculation between them
+                        synchronized(lokiMessage) {
+                            correctedLokiMessageWithPoW ?: lokiMessage.calculatePoW().also { correctedLokiMessageWithPoW = it }
+                        }
+                    } else {
+                        lokiMessage.calculatePoW(lokiMessageWithPoW.timestamp)
+                    }
+                    newLokiMessageWithPoW.bind {
+                        sendLokiMessageWithPoW(it, target, cancellation, true)
+                    }.success {
+                        deferred.resolve(it)
+                    }.fail {
+                        deferred.reject(it)
+                    }
+                } else {
+                    deferred.reject(exception)
+                }
+            }
+            return deferred.promise
         }
         fun sendLokiMessageUsingSwarmAPI(): Promise<Set<RawResponsePromise>, Exception> {
             broadcaster.broadcast("calculatingPoW", message.timestamp)
-            return lokiMessage.calculatePoW().bind { lokiMessageWithPoW ->
+            return lokiMessage.calculatePoW(lokiMessage.timestamp).bind { lokiMessageWithPoW ->
                 broadcaster.broadcast("contactingNetwork", message.timestamp)
                 retryIfNeeded(maxRetryCount) {
                     swarmAPI.getTargetSnodes(destination).map { swarm ->
-                        swarm.map { target ->
+                        val byteCount = JsonUtil.toJson(lokiMessageWithPoW.toJSON()).length
+                        LokiSwarmDelivery(deliveryStrategy, swarm, byteCount) { target, cancellation ->
                             broadcaster.broadcast("sendingMessage", message.timestamp)
-                            sendLokiMessage(lokiMessageWithPoW, target).map { rawResponse ->
+                            sendLokiMessageWithPoW(lokiMessageWithPoW, target, cancellation).map { rawResponse ->
                                 val json = rawResponse as? Map<*, *>
                                 val powDifficulty = json?.get("difficulty") as? Int
                                 if (powDifficulty != null) {
@@ -222,7 +269,7 @@ class LokiAPI(private val userHexEncodedPublicKey: String, private val database:
                                 }
                                 rawResponse
                             }
-                        }.toSet()
+                        }.start().toSet()
                     }
                 }
             }
@@ -249,6 +296,17 @@ class LokiAPI(private val userHexEncodedPublicKey: String, private val database:
             return sendLokiMessageUsingSwarmAPI()
         }
     }
+
+    /**
+     * Calculates the proof of work for `message` ahead of time, e.g. while it's waiting to be sent, so that sending it within the next
+     * minute doesn't have to wait for the calculation.
+     */
+    @kotlin.ExperimentalUnsignedTypes
+    fun precalculateProofOfWork(message: SignalMessageInfo) {
+        val peer = LokiP2PAPI.shared.peerInfo[message.recipientID]
+        if (peer != null && (message.isPing || peer.isOnline)) { return } // P2P messages don't require proof of work
+        LokiMessage.precalculatePoW(message)
+    }
     // endregion
 
     // region Parsing
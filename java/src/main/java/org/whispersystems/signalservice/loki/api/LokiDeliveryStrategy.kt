@@ -0,0 +1,165 @@
+package org.whispersystems.signalservice.loki.api
+
+import nl.komponents.kovenant.deferred
+import org.whispersystems.libsignal.logging.Log
+import java.util.*
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * How a message is delivered to the snodes of its recipient's swarm. Any snode in the swarm that accepts the message is enough for it
+ * to be delivered, so the strategies trade the bandwidth spent on the other snodes against how quickly a message gets through when
+ * a snode is slow or unreachable.
+ */
+sealed class LokiDeliveryStrategy(val name: String) {
+
+    /**
+     * Sends the message to every target snode and lets every request run to completion.
+     */
+    object FanOut : LokiDeliveryStrategy("fanOut")
+
+    /**
+     * Sends the message to every target snode and abandons the other requests as soon as one of them succeeds.
+     */
+    object FirstSuccess : LokiDeliveryStrategy("firstSuccess")
+
+    /**
+     * Sends the message to one target snode, and to another each time `delay` milliseconds pass or a request fails without one having
+     * succeeded. Once a request succeeds, the rest are abandoned.
+     */
+    class Hedged(val delay: Long) : LokiDeliveryStrategy("hedged")
+
+    override fun toString(): String { return name }
+}
+
+/**
+ * How deliveries made with a strategy have been going.
+ */
+class LokiDeliveryMetrics {
+    internal val messageCount = AtomicLong()
+    internal val deliveredMessageCount = AtomicLong()
+    internal val requestCount = AtomicLong()
+    internal val cancelledRequestCount = AtomicLong()
+    internal val skippedRequestCount = AtomicLong()
+    internal val byteCount = AtomicLong()
+    internal val totalLatency = AtomicLong()
+
+    fun getMessageCount(): Long { return messageCount.get() }
+
+    fun getDeliveredMessageCount(): Long { return deliveredMessageCount.get() }
+
+    /**
+     * The number of requests that were made to snodes, including the ones that were abandoned while in flight.
+     */
+    fun getRequestCount(): Long { return requestCount.get() }
+
+    fun getCancelledRequestCount(): Long { return cancelledRequestCount.get() }
+
+    /**
+     * The number of requests that were never made because the message had already been delivered.
+     */
+    fun getSkippedRequestCount(): Long { return skippedRequestCount.get() }
+
+    /**
+     * The size of the message bodies that were sent, before they're encrypted for the proxy.
+     */
+    fun getByteCount(): Long { return byteCount.get() }
+
+    /**
+     * The average time from when a message started being delivered to when the first snode accepted it.
+     */
+    fun getAverageLatency(): Long {
+        val deliveredMessageCount = deliveredMessageCount.get()
+        return if (deliveredMessageCount == 0L) 0 else totalLatency.get() / deliveredMessageCount
+    }
+
+    override fun toString(): String {
+        return "messages: ${getMessageCount()}, delivered: ${getDeliveredMessageCount()}, requests: ${getRequestCount()}, " +
+            "cancelled: ${getCancelledRequestCount()}, skipped: ${getSkippedRequestCount()}, bytes: ${getByteCount()}, latency: ${getAverageLatency()}ms"
+    }
+}
+
+/**
+ * Delivers one message to `targets` using `strategy`.
+ */
+internal class LokiSwarmDelivery(private val strategy: LokiDeliveryStrategy, private val targets: List<LokiAPITarget>, private val byteCount: Int,
+    private val send: (LokiAPITarget, LokiHTTPClient.Cancellation) -> RawResponsePromise) {
+
+    private val deferreds = targets.map { deferred<RawResponse, Exception>() }
+    private val cancellations = targets.map { LokiHTTPClient.Cancellation() }
+    private val metrics = getMetrics(strategy)
+    private val startTime = System.currentTimeMillis()
+    private var startedRequestCount = 0
+    private var isDelivered = false
+
+    companion object {
+        private val metricsByStrategy = ConcurrentHashMap<String, LokiDeliveryMetrics>()
+        private val hedgingTimer by lazy { Timer("LokiHedgingTimer", true) }
+
+        internal fun getMetrics(strategy: LokiDeliveryStrategy): LokiDeliveryMetrics {
+            val newMetrics = LokiDeliveryMetrics()
+            return metricsByStrategy.putIfAbsent(strategy.name, newMetrics) ?: newMetrics
+        }
+
+        internal fun getMetrics(): Map<String, LokiDeliveryMetrics> {
+            return metricsByStrategy.toMap()
+        }
+    }
+
+    /**
+     * Returns a promise for each target, which fails with a `CancellationException` if its request was abandoned or never made.
+     */
+    fun start(): List<RawResponsePromise> {
+        metrics.messageCount.incrementAndGet()
+        when (strategy) {
+            is LokiDeliveryStrategy.Hedged -> startNextRequest()
+            else -> targets.forEach { _ -> startNextRequest() }
+        }
+        return deferreds.map { it.promise }
+    }
+
+    private fun startNextRequest() {
+        val index = synchronized(this) {
+            if ((isDelivered && strategy !is LokiDeliveryStrategy.FanOut) || startedRequestCount == targets.count()) { return }
+            startedRequestCount++
+        }
+        metrics.requestCount.incrementAndGet()
+        metrics.byteCount.addAndGet(byteCount.toLong())
+        if (strategy is LokiDeliveryStrategy.Hedged && index + 1 < targets.count()) {
+            hedgingTimer.schedule(object : TimerTask() {
+
+                override fun run() {
+                    if (synchronized(this@LokiSwarmDelivery) { startedRequestCount } == index + 1) { startNextRequest() }
+                }
+            }, strategy.delay)
+        }
+        send(targets[index], cancellations[index]).success {
+            deferreds[index].resolve(it)
+            onRequestSucceeded()
+        }.fail {
+            if (it is CancellationException) { metrics.cancelledRequestCount.incrementAndGet() }
+            deferreds[index].reject(it)
+            if (strategy is LokiDeliveryStrategy.Hedged) { startNextRequest() }
+        }
+    }
+
+    private fun onRequestSucceeded() {
+        val unstartedRequestCount = synchronized(this) {
+            if (isDelivered) { return }
+            isDelivered = true
+            targets.count() - startedRequestCount
+        }
+        metrics.deliveredMessageCount.incrementAndGet()
+        metrics.totalLatency.addAndGet(System.currentTimeMillis() - startTime)
+        if (strategy is LokiDeliveryStrategy.FanOut) { return }
+        if (unstartedRequestCount > 0) {
+            Log.d("Loki", "Skipping $unstartedRequestCount unneeded deliveries.")
+            metrics.skippedRequestCount.addAndGet(unstartedRequestCount.toLong())
+        }
+        for (index in targets.indices) {
+            cancellations[index].cancel()
+            if (index >= targets.count() - unstartedRequestCount) { deferreds[index].reject(CancellationException()) }
+        }
+    }
+}
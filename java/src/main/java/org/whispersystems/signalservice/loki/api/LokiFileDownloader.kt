@@ -0,0 +1,200 @@
+package org.whispersystems.signalservice.loki.api
+
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import org.whispersystems.libsignal.logging.Log
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
+import org.whispersystems.signalservice.internal.util.OkHttpClients
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Downloads files over a single shared connection pool.
+ *
+ * Downloads run on a bounded pool of threads, with queued avatars taking precedence over
+ * queued media. Callers block until their download is done. Downloads into a [DownloadTarget]
+ * can resume a partial file using an HTTP range request.
+ */
+object LokiFileDownloader {
+
+    // region Settings
+    private val maxConcurrentDownloads = 4
+    private val timeout: Long = 30
+    private val progressInterval: Long = 100 // Milliseconds
+    // endregion
+
+    private val connection = OkHttpClients.getBaseClient().newBuilder()
+        .connectTimeout(timeout, TimeUnit.SECONDS)
+        .readTimeout(timeout, TimeUnit.SECONDS)
+        .build()
+    private val sequence = AtomicLong()
+    private val executor by lazy {
+        val executor = ThreadPoolExecutor(maxConcurrentDownloads, maxConcurrentDownloads, 30, TimeUnit.SECONDS, PriorityBlockingQueue<Runnable>())
+        executor.allowCoreThreadTimeOut(true)
+        executor
+    }
+
+    // region Types
+    /**
+     * Queued downloads are started in the order of their priority, then in the order they were queued.
+     */
+    enum class Priority { AVATAR, MEDIA }
+
+    /**
+     * Somewhere to write a download that can be resumed.
+     */
+    interface DownloadTarget {
+
+        /**
+         * The number of bytes already downloaded, which are requested to be skipped.
+         */
+        fun getResumeOffset(): Long
+
+        /**
+         * Called once the server has responded, with the offset its response starts at. This is
+         * either the resume offset, or 0 if the server sent the whole file.
+         */
+        @Throws(IOException::class)
+        fun open(offset: Long): OutputStream
+    }
+
+    private class DownloadTask(private val priority: Priority, private val sequence: Long, callable: Callable<Unit>) : FutureTask<Unit>(callable), Comparable<DownloadTask> {
+
+        override fun compareTo(other: DownloadTask): Int {
+            val result = priority.compareTo(other.priority)
+            return if (result != 0) result else sequence.compareTo(other.sequence)
+        }
+    }
+    // endregion
+
+    // region Public API
+    @Throws(PushNetworkException::class, NonSuccessfulResponseCodeException::class)
+    fun downloadFile(destination: File, url: String, maxSize: Int, priority: Priority, listener: SignalServiceAttachment.ProgressListener?) {
+        val outputStream = FileOutputStream(destination) // Throws
+        try {
+            downloadFile(outputStream, url, maxSize, priority, listener)
+        } finally {
+            outputStream.close()
+        }
+    }
+
+    @Throws(PushNetworkException::class, NonSuccessfulResponseCodeException::class)
+    fun downloadFile(outputStream: OutputStream, url: String, maxSize: Int, priority: Priority, listener: SignalServiceAttachment.ProgressListener?) {
+        downloadFile(object : DownloadTarget {
+
+            override fun getResumeOffset(): Long { return 0 }
+            override fun open(offset: Long): OutputStream { return outputStream }
+        }, url, maxSize, priority, listener)
+    }
+
+    /**
+     * Downloads into [target], resuming from [DownloadTarget.getResumeOffset] if the server supports it. The
+     * target's streams aren't closed.
+     */
+    @Throws(PushNetworkException::class, NonSuccessfulResponseCodeException::class)
+    fun downloadFile(target: DownloadTarget, url: String, maxSize: Int, priority: Priority, listener: SignalServiceAttachment.ProgressListener?) {
+        val task = DownloadTask(priority, sequence.getAndIncrement(), Callable<Unit> { download(target, url, maxSize, listener) })
+        executor.execute(task)
+        try {
+            task.get()
+        } catch (e: InterruptedException) {
+            task.cancel(true)
+            throw PushNetworkException(e)
+        } catch (e: ExecutionException) {
+            val cause = e.cause
+            when (cause) {
+                is NonSuccessfulResponseCodeException -> throw cause
+                is PushNetworkException -> throw cause
+                is IOException -> throw PushNetworkException(cause)
+                is RuntimeException -> throw cause
+                else -> throw AssertionError(cause)
+            }
+        }
+    }
+    // endregion
+
+    // region Convenience
+    private fun download(target: DownloadTarget, url: String, maxSize: Int, listener: SignalServiceAttachment.ProgressListener?) {
+        // We need to throw a PushNetworkException or NonSuccessfulResponseCodeException
+        // because the underlying Signal logic requires these to work correctly
+        var resumeOffset = target.getResumeOffset()
+        try {
+            var response = execute(url, resumeOffset)
+            if (resumeOffset > 0 && response.code() == 416) {
+                // The partial file is complete or stale, so start over
+                Log.d("Loki", "Couldn't resume download; restarting.")
+                response.close()
+                resumeOffset = 0
+                response = execute(url, resumeOffset)
+            }
+            response.use {
+                if (!response.isSuccessful) {
+                    Log.d("Loki", "Couldn't download file due to error: ${response.code()}.")
+                    throw NonSuccessfulResponseCodeException("Response: $response")
+                }
+                val body = response.body()
+                if (body == null) {
+                    Log.d("Loki", "Couldn't download file.")
+                    throw PushNetworkException("Missing response body.")
+                }
+                val offset = if (response.code() == 206) getRangeStart(response) else 0
+                if (offset != resumeOffset && offset != 0L) {
+                    throw PushNetworkException("Unexpected content range: ${response.header("Content-Range")}.")
+                }
+                val contentLength = body.contentLength()
+                val totalLength = if (contentLength >= 0) offset + contentLength else contentLength
+                if (totalLength > maxSize) {
+                    Log.d("Loki", "File size limit exceeded.")
+                    throw PushNetworkException("Max response size exceeded.")
+                }
+                val outputStream = target.open(offset)
+                val input = body.byteStream()
+                val buffer = ByteArray(32768)
+                var count = offset
+                var lastProgress: Long = 0
+                var bytes = input.read(buffer)
+                while (bytes >= 0) {
+                    outputStream.write(buffer, 0, bytes)
+                    count += bytes
+                    if (count > maxSize) {
+                        Log.d("Loki", "File size limit exceeded.")
+                        throw PushNetworkException("Max response size exceeded.")
+                    }
+                    val now = System.currentTimeMillis()
+                    if (listener != null && now - lastProgress >= progressInterval) {
+                        listener.onAttachmentProgress(totalLength, count)
+                        lastProgress = now
+                    }
+                    bytes = input.read(buffer)
+                }
+                outputStream.flush()
+                listener?.onAttachmentProgress(totalLength, count)
+            }
+        } catch (e: IOException) {
+            Log.d("Loki", "Couldn't download file.")
+            throw if (e is NonSuccessfulResponseCodeException || e is PushNetworkException) e else PushNetworkException(e)
+        }
+    }
+
+    private fun execute(url: String, offset: Long): Response {
+        val request = Request.Builder().url(url).get()
+        if (offset > 0) {
+            request.header("Range", "bytes=$offset-")
+        }
+        return connection.newCall(request.build()).execute()
+    }
+
+    private fun getRangeStart(response: Response): Long {
+        // Content-Range: bytes <start>-<end>/<size>
+        val contentRange = response.header("Content-Range") ?: return -1
+        return contentRange.removePrefix("bytes").trim().substringBefore('-').toLongOrNull() ?: -1
+    }
+    // endregion
+}
@@ -8,13 +8,23 @@ import okhttp3.MediaType
 import okhttp3.MultipartBody
 import okhttp3.Request
 import okhttp3.RequestBody
+import okhttp3.internal.http.UnrepeatableRequestBody
+import okio.BufferedSink
+import okio.Okio
 import org.whispersystems.curve25519.Curve25519
 import org.whispersystems.libsignal.logging.Log
 import org.whispersystems.libsignal.loki.DiffieHellman
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives
 import org.whispersystems.signalservice.internal.util.Base64
 import org.whispersystems.signalservice.internal.util.Hex
 import org.whispersystems.signalservice.internal.util.JsonUtil
+import org.whispersystems.signalservice.internal.util.Util
 import org.whispersystems.signalservice.loki.utilities.removing05PrefixIfNeeded
+import java.io.BufferedOutputStream
+import java.io.OutputStream
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
 
 internal class LokiFileServerProxy(val server: String) : LokiHTTPClient(60) {
     private val keyPair = curve.generateKeyPair()
@@ -28,7 +38,8 @@ internal class LokiFileServerProxy(val server: String) : LokiHTTPClient(60) {
     override fun execute(request: Request): Promise<Response, Exception> {
         if (server != LokiFileServerAPI.shared.server) { return super.execute(request) }
         val keyPair = this.keyPair
-        val body = getRequestBody(request)
+        val multipartBody = request.body() as? MultipartBody
+        val body = if (multipartBody == null) getRequestBody(request) else null
         val canonicalHeaders = getCanonicalHeaders(request)
         val deferred = deferred<Response, Exception>()
         Thread {
@@ -37,13 +48,20 @@ internal class LokiFileServerProxy(val server: String) : LokiHTTPClient(60) {
                 val url = "${proxy.address}:${proxy.port}/file_proxy"
                 Log.d("Loki", "Proxying file server request through $proxy.")
                 val endpoint = request.url().toString().removePrefix(server).removePrefix("/")
-                val unencryptedProxyRequestBody = mapOf("body" to body, "endpoint" to endpoint, "method" to request.method(), "headers" to canonicalHeaders)
-                val ivAndCipherText = DiffieHellman.encrypt(JsonUtil.toJson(unencryptedProxyRequestBody).toByteArray(Charsets.UTF_8), symmetricKey)
-                val proxyRequestBody = mapOf("cipherText64" to Base64.encodeBytes(ivAndCipherText))
+                val proxyRequestBody: RequestBody
+                if (multipartBody != null) {
+                    // File uploads are encrypted and encoded as they're sent, rather than buffered in memory
+                    val unencryptedProxyRequestBody = mapOf("endpoint" to endpoint, "method" to request.method(), "headers" to canonicalHeaders)
+                    proxyRequestBody = EncryptedFileUploadRequestBody(multipartBody, JsonUtil.toJson(unencryptedProxyRequestBody), symmetricKey)
+                } else {
+                    val unencryptedProxyRequestBody = mapOf("body" to body, "endpoint" to endpoint, "method" to request.method(), "headers" to canonicalHeaders)
+                    val ivAndCipherText = DiffieHellman.encrypt(JsonUtil.toJson(unencryptedProxyRequestBody).toByteArray(Charsets.UTF_8), symmetricKey)
+                    proxyRequestBody = RequestBody.create(MediaType.get("application/json"), JsonUtil.toJson(mapOf("cipherText64" to Base64.encodeBytes(ivAndCipherText))))
+                }
                 val headers = mapOf("X-Loki-File-Server-Ephemeral-Key" to getBase64EncodedPublicKey(keyPair.publicKey))
                 val proxyRequest = Request.Builder()
                     .url(url)
-                    .post(RequestBody.create(MediaType.get("application/json"), JsonUtil.toJson(proxyRequestBody)))
+                    .post(proxyRequestBody)
                     .header("X-Loki-File-Server-Target", "/loki/v1/secure_rpc")
                     .header("X-Loki-File-Server-Verb", "POST")
                     .header("X-Loki-File-Server-Headers", JsonUtil.toJson(headers))
@@ -103,10 +121,122 @@ internal class LokiFileServerProxy(val server: String) : LokiHTTPClient(60) {
     private fun getRequestBody(request: Request): Any? {
         val requestBody = request.body()
         val body = super.getBody(request)
-        if (requestBody is MultipartBody && body != null) {
-            return mapOf( "fileUpload" to Base64.encodeBytes(body) )
-        }
         val charset = requestBody?.contentType()?.charset() ?: Charsets.UTF_8
         return body?.toString(charset)
     }
 }
+
+/**
+ * Writes `{ "cipherText64" : base64(iv + encrypt({ "body" : { "fileUpload" : base64(multipart) }, ... })) }`, encrypting and
+ * encoding the file as it goes, so that memory use doesn't depend on the size of the file.
+ *
+ * The file part of the multipart body is read from a stream that can only be read once, so the body can only be written once too.
+ * It's marked as unrepeatable so that OkHttp fails the request rather than silently retrying it with an empty file.
+ */
+internal class EncryptedFileUploadRequestBody(private val multipartBody: MultipartBody, otherParametersAsJSON: String, private val symmetricKey: ByteArray)
+    : RequestBody(), UnrepeatableRequestBody {
+    private val ivLength = 16
+    private val prefix = "{\"cipherText64\":\"".toByteArray(Charsets.UTF_8)
+    private val suffix = "\"}".toByteArray(Charsets.UTF_8)
+    private val plaintextPrefix = "{\"body\":{\"fileUpload\":\"".toByteArray(Charsets.UTF_8)
+    private val plaintextSuffix = ("\"}," + otherParametersAsJSON.removePrefix("{")).toByteArray(Charsets.UTF_8)
+
+    override fun contentType(): MediaType? {
+        return MediaType.get("application/json")
+    }
+
+    override fun contentLength(): Long {
+        val multipartLength = multipartBody.contentLength()
+        if (multipartLength < 0) { return -1 }
+        val plaintextLength = plaintextPrefix.size + getBase64Length(multipartLength) + plaintextSuffix.size
+        val cipherTextLength = (plaintextLength / 16 + 1) * 16 // PKCS5 always pads
+        return prefix.size + getBase64Length(ivLength + cipherTextLength) + suffix.size
+    }
+
+    override fun writeTo(sink: BufferedSink) {
+        val cipher = CryptoPrimitives.acquireAesCbc()
+        try {
+            write(sink, cipher)
+        } finally {
+            CryptoPrimitives.release(cipher)
+        }
+    }
+
+    private fun write(sink: BufferedSink, cipher: Cipher) {
+        val iv = Util.getSecretBytes(ivLength)
+        cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(symmetricKey, "AES"), IvParameterSpec(iv))
+        sink.write(prefix)
+        val cipherText64 = Base64EncodingOutputStream(sink.outputStream())
+        cipherText64.write(iv)
+        val plaintext = BufferedOutputStream(object : OutputStream() {
+
+            override fun write(byte: Int) {
+                write(byteArrayOf(byte.toByte()), 0, 1)
+            }
+
+            override fun write(buffer: ByteArray, offset: Int, length: Int) {
+                val cipherText = cipher.update(buffer, offset, length)
+                if (cipherText != null) { cipherText64.write(cipherText) }
+            }
+        }, 8192)
+        plaintext.write(plaintextPrefix)
+        val fileUpload64 = Base64EncodingOutputStream(plaintext)
+        val multipart = Okio.buffer(Okio.sink(fileUpload64))
+        multipartBody.writeTo(multipart)
+        multipart.flush()
+        fileUpload64.finish()
+        plaintext.write(plaintextSuffix)
+        plaintext.flush()
+        cipherText64.write(cipher.doFinal())
+        cipherText64.finish()
+        sink.write(suffix)
+    }
+
+    private fun getBase64Length(length: Long): Long {
+        return (length + 2) / 3 * 4
+    }
+}
+
+/**
+ * Base64 encodes whatever is written to it in whole chunks, rather than a byte at a time. The
+ * underlying stream isn't closed.
+ */
+private class Base64EncodingOutputStream(private val outputStream: OutputStream) : OutputStream() {
+    private val remainder = ByteArray(3)
+    private var remainderLength = 0
+
+    override fun write(byte: Int) {
+        write(byteArrayOf(byte.toByte()), 0, 1)
+    }
+
+    override fun write(buffer: ByteArray, offset: Int, length: Int) {
+        @Suppress("NAME_SHADOWING") var offset = offset
+        @Suppress("NAME_SHADOWING") var length = length
+        while (remainderLength > 0 && remainderLength < 3 && length > 0) {
+            remainder[remainderLength++] = buffer[offset++]
+            length--
+        }
+        if (remainderLength == 3) {
+            outputStream.write(Base64.encodeBytesToBytes(remainder, 0, 3, Base64.NO_OPTIONS))
+            remainderLength = 0
+        }
+        val wholeLength = length - length % 3
+        if (wholeLength > 0) {
+            outputStream.write(Base64.encodeBytesToBytes(buffer, offset, wholeLength, Base64.NO_OPTIONS))
+        }
+        for (i in wholeLength until length) {
+            remainder[remainderLength++] = buffer[offset + i]
+        }
+    }
+
+    /**
+     * Writes out whatever is left over, with padding.
+     */
+    fun finish() {
+        if (remainderLength > 0) {
+            outputStream.write(Base64.encodeBytesToBytes(remainder, 0, remainderLength, Base64.NO_OPTIONS))
+            remainderLength = 0
+        }
+        outputStream.flush()
+    }
+}
@@ -3,57 +3,103 @@ package org.whispersystems.signalservice.loki.api
 import nl.komponents.kovenant.Promise
 import nl.komponents.kovenant.deferred
 import nl.komponents.kovenant.functional.map
+import okhttp3.Call
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okio.Buffer
+import org.whispersystems.signalservice.internal.util.OkHttpClients
 import java.io.IOException
 import java.security.SecureRandom
 import java.security.cert.X509Certificate
 import java.util.*
+import java.util.concurrent.CancellationException
 import java.util.concurrent.TimeUnit
 import javax.net.ssl.SSLContext
 import javax.net.ssl.X509TrustManager
 
-internal open class LokiHTTPClient(private val timeout: Long) {
+internal open class LokiHTTPClient(private val timeout: Long, protected val cancellation: Cancellation? = null) {
 
     internal data class Response(val isSuccess: Boolean, val statusCode: Int, val body: String?)
 
+    /**
+     * Abandons requests that are no longer needed, including any that are in flight. Abandoned requests fail with a `CancellationException`.
+     */
+    internal class Cancellation {
+        private val calls = mutableSetOf<Call>()
+        @Volatile var isCancelled = false
+            private set
+
+        fun cancel() {
+            val calls = synchronized(this) {
+                isCancelled = true
+                this.calls.toList()
+            }
+            calls.forEach { it.cancel() }
+        }
+
+        internal fun register(call: Call): Boolean {
+            synchronized(this) {
+                if (isCancelled) { return false }
+                calls.add(call)
+                return true
+            }
+        }
+
+        internal fun unregister(call: Call) {
+            synchronized(this) { calls.remove(call) }
+        }
+    }
+
     companion object {
         internal val okHTTPCache = hashMapOf<Long, OkHttpClient>()
-    }
 
-    internal fun getClearnetConnection(): OkHttpClient {
-        var connection = okHTTPCache[timeout]
-        if (connection == null) {
-            val trustManager = object : X509TrustManager {
-                override fun checkClientTrusted(chain: Array<out X509Certificate>?, authorizationType: String?) { }
-                override fun checkServerTrusted(chain: Array<out X509Certificate>?, authorizationType: String?) { }
-                override fun getAcceptedIssuers(): Array<X509Certificate> {
-                    return arrayOf()
-                }
+        private val trustManager = object : X509TrustManager {
+            override fun checkClientTrusted(chain: Array<out X509Certificate>?, authorizationType: String?) { }
+            override fun checkServerTrusted(chain: Array<out X509Certificate>?, authorizationType: String?) { }
+            override fun getAcceptedIssuers(): Array<X509Certificate> {
+                return arrayOf()
             }
+        }
+
+        // Shared by every timeout, so that connections to a snode are reused whatever the timeout
+        private val clearnetConnection by lazy {
             val sslContext = SSLContext.getInstance("SSL")
             sslContext.init(null, arrayOf( trustManager ), SecureRandom())
-            connection = OkHttpClient().newBuilder()
+            OkHttpClients.getBaseClient().newBuilder()
                 .sslSocketFactory(sslContext.socketFactory, trustManager)
                 .hostnameVerifier { _, _ -> true }
-                .connectTimeout(timeout, TimeUnit.SECONDS)
-                .readTimeout(timeout, TimeUnit.SECONDS)
-                .writeTimeout(timeout, TimeUnit.SECONDS)
                 .build()
-            okHTTPCache[timeout] = connection
         }
-        return connection!!
+    }
+
+    internal fun getClearnetConnection(): OkHttpClient {
+        synchronized(okHTTPCache) {
+            var connection = okHTTPCache[timeout]
+            if (connection == null) {
+                connection = clearnetConnection.newBuilder()
+                    .connectTimeout(timeout, TimeUnit.SECONDS)
+                    .readTimeout(timeout, TimeUnit.SECONDS)
+                    .writeTimeout(timeout, TimeUnit.SECONDS)
+                    .build()
+                okHTTPCache[timeout] = connection
+            }
+            return connection!!
+        }
     }
 
     internal fun execute(request: Request, client: OkHttpClient): Promise<okhttp3.Response, Exception> {
         val deferred = deferred<okhttp3.Response, Exception>()
         Thread {
+            val call = client.newCall(request)
             try {
-                val response = client.newCall(request).execute()
+                if (cancellation != null && !cancellation.register(call)) { throw CancellationException() }
+                val response = call.execute()
+                LokiNetworkClock.record(response)
                 deferred.resolve(response)
             } catch (e: Exception) {
-                deferred.reject(e)
+                deferred.reject(if (cancellation?.isCancelled == true) CancellationException() else e)
+            } finally {
+                cancellation?.unregister(call)
             }
         }.start()
         return deferred.promise
@@ -39,6 +39,18 @@ internal data class LokiMessage(
 ) {
 
     internal companion object {
+        /**
+         * How long a precalculated proof of work can be used for before the snodes would consider its timestamp out of date.
+         */
+        private val maxPrecalculatedPoWAge = 60 * 1000
+        private val maxPrecalculatedPoWCount = 64
+        // Wrapping a message isn't deterministic, so the wrapped message its proof of work was precalculated for is kept and sent as is
+        private val precalculatedMessages = object : LinkedHashMap<SignalMessageInfo, LokiMessage>(16, 0.75f, true) {
+
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<SignalMessageInfo, LokiMessage>?): Boolean {
+                return size > maxPrecalculatedPoWCount
+            }
+        }
 
         internal fun from(message: SignalMessageInfo): LokiMessage? {
             try {
@@ -55,21 +67,52 @@ internal data class LokiMessage(
                 return null
             }
         }
+
+        /**
+         * Returns the message that `precalculatePoW(message)` was recently called for, with the timestamp its proof of work was calculated
+         * with, or otherwise converts `message`.
+         */
+        internal fun forSending(message: SignalMessageInfo): LokiMessage? {
+            val precalculatedMessage = synchronized(precalculatedMessages) { precalculatedMessages.remove(message) }
+            val timestamp = precalculatedMessage?.timestamp
+            if (precalculatedMessage != null && timestamp != null && LokiNetworkClock.now() - timestamp < maxPrecalculatedPoWAge) {
+                return precalculatedMessage
+            }
+            return from(message)
+        }
+
+        /**
+         * Calculates the proof of work for `message` ahead of time on a low priority thread, so that sending it soon after with the
+         * message returned by `forSending(message)` doesn't have to wait for the calculation.
+         */
+        @kotlin.ExperimentalUnsignedTypes
+        internal fun precalculatePoW(message: SignalMessageInfo): Promise<LokiMessage, Exception> {
+            val now = LokiNetworkClock.now()
+            val lokiMessage = from(message)?.copy(timestamp = now) ?: return Promise.ofFail(LokiAPI.Error.MessageConversionFailed)
+            synchronized(precalculatedMessages) { precalculatedMessages[message] = lokiMessage }
+            return lokiMessage.calculatePoW(now, Thread.MIN_PRIORITY)
+        }
     }
 
+    /**
+     * Calculates the proof of work with `timestamp`, or with the network's current time if not specified. The calculation is free if
+     * it's already been done for the same timestamp, and resumed rather than started over if the difficulty has gone up since.
+     */
     @kotlin.ExperimentalUnsignedTypes
-    internal fun calculatePoW(): Promise<LokiMessage, Exception> {
+    internal fun calculatePoW(timestamp: Long? = null, priority: Int = Thread.NORM_PRIORITY): Promise<LokiMessage, Exception> {
         val deferred = deferred<LokiMessage, Exception>()
         // Run PoW in a background thread and not on the promise thread
-        Thread {
-            val now = System.currentTimeMillis()
-            val nonce = ProofOfWork.calculate(data, destination, now, ttl)
+        val thread = Thread {
+            val powTimestamp = timestamp ?: LokiNetworkClock.now()
+            val nonce = ProofOfWork.calculate(data, destination, powTimestamp, ttl)
             if (nonce != null ) {
-                deferred.resolve(copy(nonce = nonce, timestamp = now))
+                deferred.resolve(copy(nonce = nonce, timestamp = powTimestamp))
             } else {
                 deferred.reject(LokiAPI.Error.ProofOfWorkCalculationFailed)
             }
-        }.start()
+        }
+        thread.priority = priority
+        thread.start()
         return deferred.promise
     }
 
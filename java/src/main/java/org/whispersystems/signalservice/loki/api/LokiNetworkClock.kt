@@ -0,0 +1,61 @@
+package org.whispersystems.signalservice.loki.api
+
+import okhttp3.Response
+import org.whispersystems.libsignal.logging.Log
+import java.util.*
+
+/**
+ * Estimates how far the device's clock is from the service node network's, from the `Date` headers of the responses it gets, so that
+ * timestamps the network checks can be corrected before a skewed clock gets them rejected.
+ */
+object LokiNetworkClock {
+
+    // region Settings
+    private val maxSampleCount = 15
+    private val minSampleCount = 3
+    /**
+     * `Date` headers only have a resolution of a second, so smaller offsets are indistinguishable from noise.
+     */
+    private val minOffset: Long = 1000
+    // endregion
+
+    private val samples = LinkedList<Long>()
+    @Volatile private var offset: Long = 0
+
+    // region Implementation
+    /**
+     * The current time according to the network, in milliseconds since 00:00:00 UTC on 1 January 1970.
+     */
+    @JvmStatic fun now(): Long {
+        return System.currentTimeMillis() + offset
+    }
+
+    /**
+     * How far ahead of the device's clock the network's clock is, or 0 if that isn't known or the difference is too small to matter.
+     */
+    @JvmStatic fun getOffset(): Long {
+        return offset
+    }
+
+    internal fun record(response: Response) {
+        val date = response.headers().getDate("Date") ?: return
+        val sentTime = response.sentRequestAtMillis()
+        val receivedTime = response.receivedResponseAtMillis()
+        if (sentTime <= 0 || receivedTime < sentTime) { return }
+        // The header's date is truncated to the second, so on average it's half a second behind when the response was made
+        val sample = date.time + 500 - (sentTime + receivedTime) / 2
+        synchronized(samples) {
+            samples.add(sample)
+            if (samples.size > maxSampleCount) { samples.removeFirst() }
+            if (samples.size < minSampleCount) { return }
+            // The median ignores the odd snode with a badly set clock
+            val median = samples.sorted()[samples.size / 2]
+            val newOffset = if (Math.abs(median) < minOffset) 0 else median
+            if (Math.abs(newOffset - offset) >= minOffset) {
+                Log.d("Loki", "Setting network clock offset to ${newOffset}ms.")
+            }
+            offset = newOffset
+        }
+    }
+    // endregion
+}
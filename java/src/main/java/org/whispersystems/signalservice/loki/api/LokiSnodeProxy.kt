@@ -13,8 +13,9 @@ import org.whispersystems.libsignal.loki.DiffieHellman
 import org.whispersystems.signalservice.internal.util.Base64
 import org.whispersystems.signalservice.internal.util.Hex
 import org.whispersystems.signalservice.internal.util.JsonUtil
+import java.util.concurrent.CancellationException
 
-internal class LokiSnodeProxy(private val target: LokiAPITarget, timeout: Long) : LokiHTTPClient(timeout) {
+internal class LokiSnodeProxy(private val target: LokiAPITarget, timeout: Long, cancellation: Cancellation? = null) : LokiHTTPClient(timeout, cancellation) {
 
     private val keyPair by lazy { curve.generateKeyPair() }
 
@@ -38,6 +39,10 @@ internal class LokiSnodeProxy(private val target: LokiAPITarget, timeout: Long)
         val canonicalRequestHeaders = getCanonicalHeaders(request)
         val deferred = deferred<Response, Exception>()
         Thread {
+            if (cancellation?.isCancelled == true) {
+                deferred.reject(CancellationException())
+                return@Thread
+            }
             val symmetricKey = curve.calculateAgreement(Hex.fromStringCondensed(targetHexEncodedPublicKeySet.encryptionKey), keyPair.privateKey)
             lateinit var proxy: LokiAPITarget
             LokiSwarmAPI.getRandomSnode().bind(LokiAPI.sharedWorkContext) { p ->
@@ -8,6 +8,7 @@ import nl.komponents.kovenant.task
 import okhttp3.*
 import org.whispersystems.libsignal.logging.Log
 import org.whispersystems.signalservice.internal.util.JsonUtil
+import org.whispersystems.signalservice.internal.util.OkHttpClients
 import org.whispersystems.signalservice.loki.utilities.Broadcaster
 import org.whispersystems.signalservice.loki.utilities.prettifiedDescription
 import java.io.IOException
@@ -17,7 +18,7 @@ internal class LokiSwarmAPI(private val database: LokiAPIDatabaseProtocol, priva
 
     companion object {
         internal var failureCount: MutableMap<LokiAPITarget, Int> = mutableMapOf()
-        private val connection = OkHttpClient()
+        private val connection = OkHttpClients.getBaseClient()
 
         // region Settings
         private val minimumSnodeCount = 2
@@ -52,6 +53,7 @@ internal class LokiSwarmAPI(private val database: LokiAPIDatabaseProtocol, priva
                     connection.newCall(request.build()).enqueue(object : Callback {
 
                         override fun onResponse(call: Call, response: Response) {
+                            LokiNetworkClock.record(response)
                             when (response.code()) {
                                 200 -> {
                                     val bodyAsString = response.body()!!.string()
@@ -1,40 +1,94 @@
 package org.whispersystems.signalservice.loki.crypto
 
 import org.whispersystems.libsignal.logging.Log
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives
 import org.whispersystems.signalservice.internal.util.Base64
+import org.whispersystems.signalservice.internal.util.Hex
 import org.whispersystems.signalservice.loki.api.LokiAPI
 import java.math.BigInteger
 import java.nio.ByteBuffer
-import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Based on the desktop messenger's proof of work implementation. For more information, see libloki/proof-of-work.js.
+ *
+ * Results are cached by payload (which includes the timestamp and TTL), so that calculating the proof of work for a payload again is
+ * free, or resumes from where the last calculation left off if the difficulty has gone up since.
  */
 object ProofOfWork {
 
     // region Settings
     private val nonceSize = 8
+    private val maxCacheSize = 256
     // endregion
 
+    /**
+     * The nonce found for a payload, and the trial value it produced.
+     */
+    private class Result(val nonce: Long, val trialValue: Long)
+
+    private val cache = object : LinkedHashMap<String, Result>(16, 0.75f, true) {
+
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Result>?): Boolean {
+            return size > maxCacheSize
+        }
+    }
+    /**
+     * Held while a payload's proof of work is calculated, so that calculations for the same payload wait for each other rather than
+     * repeat each other's work.
+     */
+    private class Lock {
+        var holderCount = 0
+    }
+
+    private val locks = mutableMapOf<String, Lock>()
+    private val searchCount = AtomicLong()
+
+    /**
+     * The number of times a nonce had to be searched for, rather than being found in the cache.
+     */
+    fun getSearchCount(): Long {
+        return searchCount.get()
+    }
+
     // region Implementation
     @kotlin.ExperimentalUnsignedTypes
     fun calculate(data: String, hexEncodedPublicKey: String, timestamp: Long, ttl: Int): String? {
         try {
-            val sha512 = MessageDigest.getInstance("SHA-512")
+            val sha512 = CryptoPrimitives.getSha512()
             val payloadAsString = timestamp.toString() + ttl.toString() + hexEncodedPublicKey + data
             val payload = payloadAsString.toByteArray()
-            val target = determineTarget(ttl, payload.size)
-            var currentTrialValue = ULong.MAX_VALUE
-            var nonce: Long = 0
             val initialHash = sha512.digest(payload)
-            while (currentTrialValue > target) {
-                nonce += 1
-                // This is different from bitmessage's PoW implementation
-                // newHash = hash(nonce + hash(data)) → hash(nonce + initialHash)
-                val newHash = sha512.digest(nonce.toByteArray() + initialHash)
-                currentTrialValue = newHash.sliceArray(0 until nonceSize).toULong()
+            val key = Hex.toStringCondensed(initialHash)
+            val lock = synchronized(locks) { locks.getOrPut(key) { Lock() }.also { it.holderCount += 1 } }
+            try {
+                synchronized(lock) {
+                    val target = determineTarget(ttl, payload.size)
+                    val cachedResult = synchronized(cache) { cache[key] }
+                    if (cachedResult != null && cachedResult.trialValue.toULong() <= target) {
+                        return Base64.encodeBytes(cachedResult.nonce.toByteArray())
+                    }
+                    searchCount.incrementAndGet()
+                    var currentTrialValue = ULong.MAX_VALUE
+                    // Every nonce up to the cached one fell short of an easier target, so they'd fall short of this one too
+                    var nonce: Long = cachedResult?.nonce ?: 0
+                    if (cachedResult != null) { Log.d("Loki", "Resuming proof of work calculation from nonce: $nonce.") }
+                    while (currentTrialValue > target) {
+                        nonce += 1
+                        // This is different from bitmessage's PoW implementation
+                        // newHash = hash(nonce + hash(data)) → hash(nonce + initialHash)
+                        val newHash = sha512.digest(nonce.toByteArray() + initialHash)
+                        currentTrialValue = newHash.sliceArray(0 until nonceSize).toULong()
+                    }
+                    synchronized(cache) { cache[key] = Result(nonce, currentTrialValue.toLong()) }
+                    return Base64.encodeBytes(nonce.toByteArray())
+                }
+            } finally {
+                synchronized(locks) {
+                    lock.holderCount -= 1
+                    if (lock.holderCount == 0) { locks.remove(key) }
+                }
             }
-            return Base64.encodeBytes(nonce.toByteArray())
         } catch (e: Exception) {
             Log.d("Loki", "Couldn't calculate proof of work due to error: $e.")
             return null
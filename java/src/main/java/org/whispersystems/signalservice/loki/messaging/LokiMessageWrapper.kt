@@ -1,11 +1,11 @@
 package org.whispersystems.signalservice.loki.messaging
 
-import com.google.protobuf.ByteString
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.WireFormat
 import org.whispersystems.libsignal.logging.Log
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope
 import org.whispersystems.signalservice.internal.util.Base64
 import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketMessage
-import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage
 import java.security.SecureRandom
 
 object LokiMessageWrapper {
@@ -14,55 +14,80 @@ object LokiMessageWrapper {
     sealed class Error(val description: String) : Exception() {
         object FailedToWrapData : Error("Failed to wrap data.")
         object FailedToWrapMessageInEnvelope : Error("Failed to wrap message in envelope.")
-        object FailedToWrapEnvelopeInWebSocketMessage : Error("Failed to wrap envelope in web socket message.")
         object FailedToUnwrapData : Error("Failed to unwrap data.")
     }
     // endregion
 
+    private val verb = "PUT".toByteArray(Charsets.UTF_8)
+    private val path = "/api/v1/message".toByteArray(Charsets.UTF_8)
+    private val random = SecureRandom()
+
     // region Wrapping
     /**
      * Wraps `message` in a `SignalServiceProtos.Envelope` and then a `WebSocketProtos.WebSocketMessage` to match the desktop application.
+     *
+     * The nested messages are written straight into a single buffer of the final size, rather than being built and serialized one by one.
      */
     fun wrap(message: SignalMessageInfo): ByteArray {
         try {
-            val envelope = createEnvelope(message)
-            val webSocketMessage = createWebSocketMessage(envelope)
-            return webSocketMessage.toByteArray()
+            val content = decodeContent(message)
+            val source = message.senderID.toByteArray(Charsets.UTF_8)
+            val id = random.nextLong()
+            val envelopeSize = CodedOutputStream.computeEnumSize(1, message.type.number) +
+                computeBytesSize(2, source.size) +
+                CodedOutputStream.computeUInt64Size(5, message.timestamp) +
+                CodedOutputStream.computeUInt32Size(7, message.senderDeviceID) +
+                computeBytesSize(8, content.size)
+            val requestSize = computeBytesSize(1, verb.size) +
+                computeBytesSize(2, path.size) +
+                computeBytesSize(3, envelopeSize) +
+                CodedOutputStream.computeUInt64Size(4, id)
+            val size = CodedOutputStream.computeEnumSize(1, WebSocketMessage.Type.REQUEST_VALUE) + computeBytesSize(2, requestSize)
+            val result = ByteArray(size)
+            val output = CodedOutputStream.newInstance(result)
+            // WebSocketMessage
+            output.writeEnum(1, WebSocketMessage.Type.REQUEST_VALUE)
+            writeLength(output, 2, requestSize)
+            // WebSocketRequestMessage
+            writeBytes(output, 1, verb)
+            writeBytes(output, 2, path)
+            writeLength(output, 3, envelopeSize)
+            // Envelope
+            output.writeEnum(1, message.type.number)
+            writeBytes(output, 2, source)
+            output.writeUInt64(5, message.timestamp)
+            output.writeUInt32(7, message.senderDeviceID)
+            writeBytes(output, 8, content)
+            // WebSocketRequestMessage
+            output.writeUInt64(4, id)
+            output.checkNoSpaceLeft()
+            return result
         } catch (e: Exception) {
             throw if (e is Error) { e } else { Error.FailedToWrapData }
         }
     }
 
-    private fun createEnvelope(message: SignalMessageInfo): Envelope {
+    private fun decodeContent(message: SignalMessageInfo): ByteArray {
         try {
-            val builder = Envelope.newBuilder()
-            builder.type = message.type
-            builder.timestamp = message.timestamp
-            builder.source = message.senderID
-            builder.sourceDevice = message.senderDeviceID
-            builder.content = ByteString.copyFrom(Base64.decode(message.content))
-            return builder.build()
+            return Base64.decode(message.content)
         } catch (e: Exception) {
             Log.d("Loki", "Failed to wrap message in envelope: ${e.message}.")
             throw Error.FailedToWrapMessageInEnvelope
         }
     }
 
-    private fun createWebSocketMessage(envelope: Envelope): WebSocketMessage {
-        try {
-            val requestBuilder = WebSocketRequestMessage.newBuilder()
-            requestBuilder.verb = "PUT"
-            requestBuilder.path = "/api/v1/message"
-            requestBuilder.id = SecureRandom.getInstance("SHA1PRNG").nextLong()
-            requestBuilder.body = envelope.toByteString()
-            val messageBuilder = WebSocketMessage.newBuilder()
-            messageBuilder.request = requestBuilder.build()
-            messageBuilder.type = WebSocketMessage.Type.REQUEST
-            return messageBuilder.build()
-        } catch (e: Exception) {
-            Log.d("Loki", "Failed to wrap envelope in web socket message: ${e.message}.")
-            throw Error.FailedToWrapEnvelopeInWebSocketMessage
-        }
+    private fun computeBytesSize(field: Int, length: Int): Int {
+        return CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeRawVarint32Size(length) + length
+    }
+
+    private fun writeLength(output: CodedOutputStream, field: Int, length: Int) {
+        output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED)
+        output.writeRawVarint32(length)
+    }
+
+    private fun writeBytes(output: CodedOutputStream, field: Int, bytes: ByteArray) {
+        writeLength(output, field, bytes.size)
+        output.writeRawBytes(bytes)
     }
     // endregion
 
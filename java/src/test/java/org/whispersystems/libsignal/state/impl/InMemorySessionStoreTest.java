@@ -0,0 +1,54 @@
+package org.whispersystems.libsignal.state.impl;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.UntrustedIdentityException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+public class InMemorySessionStoreTest extends TestCase {
+
+  private static final SignalProtocolAddress BOB_ADDRESS = new SignalProtocolAddress("+14151231234", 1);
+
+  public void testLoadedSessionIsNotFresh() throws InvalidKeyException, UntrustedIdentityException {
+    InMemorySignalProtocolStore aliceStore = new InMemorySignalProtocolStore(KeyHelper.generateIdentityKeyPair(), 1);
+    IdentityKeyPair             bobIdentity = KeyHelper.generateIdentityKeyPair();
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(createBundle(bobIdentity, 1));
+
+    SessionRecord loaded = aliceStore.loadSession(BOB_ADDRESS);
+    assertFalse(loaded.isFresh());
+    assertTrue(aliceStore.loadSession(new SignalProtocolAddress("+14159999999", 1)).isFresh());
+  }
+
+  public void testReprocessingArchivesStoredSession() throws InvalidKeyException, UntrustedIdentityException {
+    InMemorySignalProtocolStore aliceStore  = new InMemorySignalProtocolStore(KeyHelper.generateIdentityKeyPair(), 1);
+    IdentityKeyPair             bobIdentity = KeyHelper.generateIdentityKeyPair();
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(createBundle(bobIdentity, 1));
+
+    byte[] firstBaseKey = aliceStore.loadSession(BOB_ADDRESS).getSessionState().getAliceBaseKey();
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(createBundle(bobIdentity, 2));
+
+    SessionRecord record = aliceStore.loadSession(BOB_ADDRESS);
+
+    assertEquals(1, record.getPreviousSessionStates().size());
+    assertTrue(record.hasSessionState(record.getSessionState().getSessionVersion(), firstBaseKey));
+  }
+
+  private PreKeyBundle createBundle(IdentityKeyPair identity, int keyId) throws InvalidKeyException {
+    ECKeyPair preKey       = Curve.generateKeyPair();
+    ECKeyPair signedPreKey = Curve.generateKeyPair();
+    byte[]    signature    = Curve.calculateSignature(identity.getPrivateKey(), signedPreKey.getPublicKey().serialize());
+
+    return new PreKeyBundle(2, 1, keyId, preKey.getPublicKey(), keyId, signedPreKey.getPublicKey(), signature, identity.getPublicKey());
+  }
+}
@@ -0,0 +1,108 @@
+package org.whispersystems.signalservice.api;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class OutboundMessageSchedulerTest extends TestCase {
+
+  public void testErrorCompletesSend() throws Exception {
+    OutboundMessageScheduler scheduler = new OutboundMessageScheduler(1);
+    ListenableFuture<String> future    = scheduler.schedule(OutboundMessageScheduler.Priority.MESSAGE, null, new Callable<String>() {
+      @Override
+      public String call() {
+        throw new AssertionError("impossible");
+      }
+    });
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AssertionError);
+    }
+
+    assertEquals("sent", scheduler.run(OutboundMessageScheduler.Priority.MESSAGE, null, new Callable<String>() {
+      @Override
+      public String call() {
+        return "sent";
+      }
+    }));
+  }
+
+  public void testReplacedSendGetsReplacementsError() throws Exception {
+    OutboundMessageScheduler scheduler = new OutboundMessageScheduler(1);
+    final CountDownLatch     blocked   = new CountDownLatch(1);
+
+    scheduler.schedule(OutboundMessageScheduler.Priority.MESSAGE, null, new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        blocked.await();
+        return "first";
+      }
+    });
+
+    ListenableFuture<String> replaced = scheduler.schedule(OutboundMessageScheduler.Priority.TYPING, "typing", new Callable<String>() {
+      @Override
+      public String call() {
+        return "replaced";
+      }
+    });
+
+    ListenableFuture<String> replacement = scheduler.schedule(OutboundMessageScheduler.Priority.TYPING, "typing", new Callable<String>() {
+      @Override
+      public String call() {
+        throw new AssertionError("impossible");
+      }
+    });
+
+    blocked.countDown();
+
+    for (ListenableFuture<String> future : new ListenableFuture[] {replaced, replacement}) {
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof AssertionError);
+      }
+    }
+
+    assertEquals(1, scheduler.getCoalescedCount(OutboundMessageScheduler.Priority.TYPING));
+  }
+
+  public void testDifferentKeysAreNotCoalesced() throws Exception {
+    OutboundMessageScheduler scheduler = new OutboundMessageScheduler(1);
+    final CountDownLatch     blocked   = new CountDownLatch(1);
+
+    scheduler.schedule(OutboundMessageScheduler.Priority.MESSAGE, null, new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        blocked.await();
+        return "first";
+      }
+    });
+
+    ListenableFuture<String> first  = scheduler.schedule(OutboundMessageScheduler.Priority.TYPING, "typing:group:alice,", constant("alice"));
+    ListenableFuture<String> second = scheduler.schedule(OutboundMessageScheduler.Priority.TYPING, "typing:group:bob,", constant("bob"));
+
+    blocked.countDown();
+
+    assertEquals("alice", first.get(5, TimeUnit.SECONDS));
+    assertEquals("bob", second.get(5, TimeUnit.SECONDS));
+    assertEquals(0, scheduler.getCoalescedCount(OutboundMessageScheduler.Priority.TYPING));
+  }
+
+  private static Callable<String> constant(final String result) {
+    return new Callable<String>() {
+      @Override
+      public String call() {
+        return result;
+      }
+    };
+  }
+}
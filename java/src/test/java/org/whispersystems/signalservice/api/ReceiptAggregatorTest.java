@@ -0,0 +1,223 @@
+package org.whispersystems.signalservice.api;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
+import org.whispersystems.signalservice.api.messages.multidevice.ReadMessage;
+import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.configuration.SignalCdnUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalContactDiscoveryUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ReceiptAggregatorTest extends TestCase {
+
+  private static final SignalServiceAddress ALICE = new SignalServiceAddress("+14151111111");
+  private static final SignalServiceAddress BOB   = new SignalServiceAddress("+14152222222");
+
+  public void testFlushesWhenWindowExpires() throws Exception {
+    FakeSender        sender     = new FakeSender();
+    ReceiptAggregator aggregator = new ReceiptAggregator(sender, 200, 100);
+
+    ListenableFuture<Void> first  = aggregator.addReceipt(1, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.READ, 1, 2));
+    ListenableFuture<Void> second = aggregator.addReceipt(2, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.READ, 3));
+
+    assertEquals(0, sender.getReceipts().size());
+
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+
+    assertEquals(1, sender.getReceipts().size());
+    assertEquals(Arrays.asList(1L, 2L, 3L), sender.getReceipts().get(0).getTimestamps());
+    assertEquals(1, aggregator.getBatchesSent());
+    assertEquals(3, aggregator.getMessagesSent());
+  }
+
+  public void testSendsEarlyAtMaxBatchSize() throws Exception {
+    FakeSender        sender     = new FakeSender();
+    ReceiptAggregator aggregator = new ReceiptAggregator(sender, 60 * 1000, 3);
+
+    aggregator.addReceipt(1, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.DELIVERY, 1, 2));
+    ListenableFuture<Void> full = aggregator.addReceipt(2, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.DELIVERY, 3));
+    ListenableFuture<Void> next = aggregator.addReceipt(3, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.DELIVERY, 4));
+
+    full.get(5, TimeUnit.SECONDS);
+
+    assertEquals(1, sender.getReceipts().size());
+    assertEquals(Arrays.asList(1L, 2L, 3L), sender.getReceipts().get(0).getTimestamps());
+    assertFalse(next.isDone());
+
+    aggregator.flush();
+    next.get(5, TimeUnit.SECONDS);
+
+    assertEquals(2, sender.getReceipts().size());
+    assertEquals(Arrays.asList(4L), sender.getReceipts().get(1).getTimestamps());
+  }
+
+  public void testRemovesDuplicateTimestamps() throws Exception {
+    FakeSender        sender     = new FakeSender();
+    ReceiptAggregator aggregator = new ReceiptAggregator(sender, 60 * 1000, 100);
+
+    aggregator.addReceipt(1, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.READ, 1, 2));
+    ListenableFuture<Void> future = aggregator.addReceipt(2, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.READ, 2, 3, 1));
+
+    aggregator.flush();
+    future.get(5, TimeUnit.SECONDS);
+
+    assertEquals(1, sender.getReceipts().size());
+    assertEquals(Arrays.asList(1L, 2L, 3L), sender.getReceipts().get(0).getTimestamps());
+    assertEquals(3, aggregator.getMessagesSent());
+  }
+
+  public void testBatchesPerRecipientAndType() throws Exception {
+    FakeSender        sender     = new FakeSender();
+    ReceiptAggregator aggregator = new ReceiptAggregator(sender, 60 * 1000, 100);
+
+    List<ListenableFuture<Void>> futures = new LinkedList<ListenableFuture<Void>>();
+    futures.add(aggregator.addReceipt(1, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.DELIVERY, 1)));
+    futures.add(aggregator.addReceipt(2, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.READ, 2)));
+    futures.add(aggregator.addReceipt(3, BOB, noAccess(), receipt(SignalServiceReceiptMessage.Type.DELIVERY, 3)));
+    futures.add(aggregator.addReceipt(4, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.DELIVERY, 4)));
+
+    aggregator.flush();
+
+    for (ListenableFuture<Void> future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+    }
+
+    assertEquals(3, sender.getReceipts().size());
+    assertEquals(3, aggregator.getBatchesSent());
+    assertEquals(4, aggregator.getMessagesSent());
+
+    for (int i = 0; i < 3; i++) {
+      SignalServiceAddress        recipient = sender.getRecipients().get(i);
+      SignalServiceReceiptMessage receipt   = sender.getReceipts().get(i);
+
+      if (recipient.equals(BOB)) {
+        assertEquals(SignalServiceReceiptMessage.Type.DELIVERY, receipt.getType());
+        assertEquals(Arrays.asList(3L), receipt.getTimestamps());
+      } else if (receipt.getType() == SignalServiceReceiptMessage.Type.DELIVERY) {
+        assertEquals(Arrays.asList(1L, 4L), receipt.getTimestamps());
+      } else {
+        assertEquals(Arrays.asList(2L), receipt.getTimestamps());
+      }
+    }
+  }
+
+  public void testBatchesReadSyncs() throws Exception {
+    FakeSender        sender     = new FakeSender();
+    ReceiptAggregator aggregator = new ReceiptAggregator(sender, 60 * 1000, 100);
+
+    aggregator.addRead(1, Arrays.asList(new ReadMessage(ALICE.getNumber(), 1)), noAccess());
+    ListenableFuture<Void> future = aggregator.addRead(2, Arrays.asList(new ReadMessage(BOB.getNumber(), 2)), noAccess());
+
+    aggregator.flush();
+    future.get(5, TimeUnit.SECONDS);
+
+    assertEquals(1, sender.getSyncs().size());
+    assertEquals(2, sender.getSyncs().get(0).getRead().get().size());
+    assertEquals(2, aggregator.getMessagesSent());
+  }
+
+  public void testFailedSendFailsBatch() throws Exception {
+    FakeSender        sender     = new FakeSender();
+    ReceiptAggregator aggregator = new ReceiptAggregator(sender, 60 * 1000, 100);
+
+    sender.setResult(SendMessageResult.networkFailure(ALICE));
+
+    ListenableFuture<Void> first  = aggregator.addReceipt(1, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.READ, 1));
+    ListenableFuture<Void> second = aggregator.addReceipt(2, ALICE, noAccess(), receipt(SignalServiceReceiptMessage.Type.READ, 2));
+
+    aggregator.flush();
+
+    for (ListenableFuture<Void> future : Arrays.asList(first, second)) {
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    }
+
+    assertEquals(0, aggregator.getBatchesSent());
+    assertEquals(0, aggregator.getMessagesSent());
+  }
+
+  private static SignalServiceReceiptMessage receipt(SignalServiceReceiptMessage.Type type, long... timestamps) {
+    List<Long> list = new LinkedList<Long>();
+
+    for (long timestamp : timestamps) {
+      list.add(timestamp);
+    }
+
+    return new SignalServiceReceiptMessage(type, list, System.currentTimeMillis());
+  }
+
+  private static Optional<UnidentifiedAccessPair> noAccess() {
+    return Optional.absent();
+  }
+
+  /**
+   * Records what would have been sent instead of sending it, and answers receipts with a
+   * result the test chooses.
+   */
+  private static class FakeSender extends SignalServiceMessageSender {
+
+    private final List<SignalServiceAddress>        recipients = new LinkedList<SignalServiceAddress>();
+    private final List<SignalServiceReceiptMessage> receipts   = new LinkedList<SignalServiceReceiptMessage>();
+    private final List<SignalServiceSyncMessage>    syncs      = new LinkedList<SignalServiceSyncMessage>();
+
+    private SendMessageResult result;
+
+    FakeSender() {
+      super(new SignalServiceConfiguration(new SignalServiceUrl[0], new SignalCdnUrl[0], new SignalContactDiscoveryUrl[0]),
+            "+14150000000", "password", null, "test", false,
+            Optional.<SignalServiceMessagePipe>absent(), Optional.<SignalServiceMessagePipe>absent(),
+            Optional.<EventListener>absent(), "", null, null, null, null, null, null, null);
+    }
+
+    synchronized void setResult(SendMessageResult result) {
+      this.result = result;
+    }
+
+    @Override
+    public synchronized SendMessageResult sendReceipt(long messageID,
+                                                      SignalServiceAddress recipient,
+                                                      Optional<UnidentifiedAccessPair> unidentifiedAccess,
+                                                      SignalServiceReceiptMessage message)
+    {
+      recipients.add(recipient);
+      receipts.add(message);
+      return result != null ? result : SendMessageResult.success(recipient, false, false);
+    }
+
+    @Override
+    public synchronized void sendMessage(long messageID, SignalServiceSyncMessage message, Optional<UnidentifiedAccessPair> unidentifiedAccess) {
+      syncs.add(message);
+    }
+
+    synchronized List<SignalServiceAddress> getRecipients() {
+      return new LinkedList<SignalServiceAddress>(recipients);
+    }
+
+    synchronized List<SignalServiceReceiptMessage> getReceipts() {
+      return new LinkedList<SignalServiceReceiptMessage>(receipts);
+    }
+
+    synchronized List<SignalServiceSyncMessage> getSyncs() {
+      return new LinkedList<SignalServiceSyncMessage>(syncs);
+    }
+  }
+}
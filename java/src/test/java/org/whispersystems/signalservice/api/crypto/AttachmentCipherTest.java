@@ -3,8 +3,10 @@ package org.whispersystems.signalservice.api.crypto;
 import junit.framework.TestCase;
 
 import org.conscrypt.Conscrypt;
+import org.whispersystems.libsignal.InvalidMacException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.kdf.HKDFv3;
+import org.whispersystems.signalservice.internal.crypto.CryptoPrimitives;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.ByteArrayOutputStream;
@@ -182,6 +184,158 @@ public class AttachmentCipherTest extends TestCase {
     assertTrue(hitCorrectException);
   }
 
+  public void test_attachment_verifyWhileWritingThenDecrypt() throws IOException, InvalidMessageException {
+    byte[]                          key             = Util.getSecretBytes(64);
+    byte[]                          plaintextInput  = Util.getSecretBytes(100000);
+    EncryptResult                   encryptResult   = encryptData(plaintextInput, key);
+    File                            cipherFile      = File.createTempFile("temp", ".data");
+    AttachmentVerifyingOutputStream verifyingStream = AttachmentVerifyingOutputStream.forCiphertext(new FileOutputStream(cipherFile), key, encryptResult.digest);
+
+    writeInChunks(verifyingStream, encryptResult.ciphertext, 777);
+    verifyingStream.close();
+
+    InputStream inputStream     = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, verifyingStream);
+    byte[]      plaintextOutput = readInputStreamFully(inputStream);
+
+    assertTrue(verifyingStream.isVerified());
+    assertTrue(Arrays.equals(plaintextInput, plaintextOutput));
+
+    cipherFile.delete();
+  }
+
+  public void test_attachment_decryptWhileWriting() throws IOException, InvalidMessageException {
+    byte[]                          key             = Util.getSecretBytes(64);
+    byte[]                          plaintextInput  = Util.getSecretBytes(100000);
+    EncryptResult                   encryptResult   = encryptData(plaintextInput, key);
+    ByteArrayOutputStream           plaintextOutput = new ByteArrayOutputStream();
+    AttachmentVerifyingOutputStream verifyingStream = AttachmentVerifyingOutputStream.forPlaintext(plaintextOutput, key, encryptResult.digest, plaintextInput.length);
+
+    writeInChunks(verifyingStream, encryptResult.ciphertext, 5);
+    verifyingStream.verify();
+    verifyingStream.close();
+
+    assertTrue(Arrays.equals(plaintextInput, plaintextOutput.toByteArray()));
+  }
+
+  public void test_attachment_verifyWhileWritingFailOnBadDigest() throws IOException {
+    boolean hitCorrectException = false;
+
+    try {
+      byte[]                          key             = Util.getSecretBytes(64);
+      byte[]                          plaintextInput  = "Miles Morales".getBytes();
+      EncryptResult                   encryptResult   = encryptData(plaintextInput, key);
+      AttachmentVerifyingOutputStream verifyingStream = AttachmentVerifyingOutputStream.forPlaintext(new ByteArrayOutputStream(), key, new byte[32], 0);
+
+      verifyingStream.write(encryptResult.ciphertext);
+      verifyingStream.verify();
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
+  public void test_attachment_reusesPooledPrimitives() throws IOException, InvalidMessageException {
+    byte[] key              = Util.getSecretBytes(64);
+    byte[] plaintextInput   = Util.getSecretBytes(1000);
+    long   aesCbcBefore     = CryptoPrimitives.getInstantiationCount(CryptoPrimitives.AES_CBC);
+    long   hmacSha256Before = CryptoPrimitives.getInstantiationCount(CryptoPrimitives.HMAC_SHA256);
+    long   sha256Before     = CryptoPrimitives.getInstantiationCount(CryptoPrimitives.SHA256);
+
+    for (int i=0;i<200;i++) {
+      EncryptResult encryptResult = encryptData(plaintextInput, key);
+      File          cipherFile    = writeToFile(encryptResult.ciphertext);
+      InputStream   inputStream   = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+
+      assertTrue(Arrays.equals(plaintextInput, readInputStreamFully(inputStream)));
+
+      cipherFile.delete();
+    }
+
+    assertTrue(CryptoPrimitives.getInstantiationCount(CryptoPrimitives.AES_CBC) - aesCbcBefore <= 2);
+    assertTrue(CryptoPrimitives.getInstantiationCount(CryptoPrimitives.HMAC_SHA256) - hmacSha256Before <= 2);
+    assertTrue(CryptoPrimitives.getInstantiationCount(CryptoPrimitives.SHA256) - sha256Before <= 2);
+  }
+
+  public void test_attachment_seekableDecrypt() throws IOException, InvalidMessageException {
+    byte[]                              key            = Util.getSecretBytes(64);
+    byte[]                              plaintextInput = Util.getSecretBytes(100003);
+    EncryptResult                       encryptResult  = encryptData(plaintextInput, key);
+    File                                cipherFile     = writeToFile(encryptResult.ciphertext);
+    SeekableAttachmentCipherInputStream inputStream    = SeekableAttachmentCipherInputStream.createFor(cipherFile, plaintextInput.length, key, encryptResult.digest);
+
+    assertEquals(plaintextInput.length, inputStream.length());
+    assertTrue(Arrays.equals(plaintextInput, readInputStreamFully(inputStream)));
+
+    int[] offsets = {0, 15, 16, 17, 4095, 50000, 99990, 100002};
+
+    for (int offset : offsets) {
+      byte[] expected = Arrays.copyOfRange(plaintextInput, offset, Math.min(offset + 37, plaintextInput.length));
+      byte[] actual   = new byte[expected.length];
+
+      inputStream.seek(offset);
+
+      int read = 0;
+      while (read < actual.length) read += inputStream.read(actual, read, actual.length - read);
+
+      assertTrue(Arrays.equals(expected, actual));
+    }
+
+    inputStream.seek(10);
+    assertEquals(plaintextInput.length - 10, inputStream.skip(Long.MAX_VALUE));
+    assertEquals(-1, inputStream.read());
+
+    inputStream.close();
+    cipherFile.delete();
+  }
+
+  public void test_attachment_seekableDecryptFailOnBadMac() throws IOException {
+    boolean hitCorrectException = false;
+    File    cipherFile          = null;
+
+    try {
+      byte[]        key              = Util.getSecretBytes(64);
+      byte[]        plaintextInput   = "Gwen Stacy".getBytes();
+      EncryptResult encryptResult    = encryptData(plaintextInput, key);
+      byte[]        badMacCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+      badMacCiphertext[badMacCiphertext.length - 1] ^= 1;
+      cipherFile = writeToFile(badMacCiphertext);
+
+      SeekableAttachmentCipherInputStream.createFor(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    } finally {
+      if (cipherFile != null) cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
+  public void test_attachment_seekableDecryptFailOnBadPaddingWithBadMac() throws IOException {
+    boolean hitCorrectException = false;
+    File    cipherFile          = null;
+
+    try {
+      byte[]        key                  = Util.getSecretBytes(64);
+      byte[]        plaintextInput       = "Gwen Stacy".getBytes();
+      EncryptResult encryptResult        = encryptData(plaintextInput, key);
+      byte[]        badPaddingCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+      // Flipping the last byte of the IV for the last block corrupts its padding
+      badPaddingCiphertext[badPaddingCiphertext.length - 32 - 16 - 1] ^= (byte)0xff;
+      cipherFile = writeToFile(badPaddingCiphertext);
+
+      SeekableAttachmentCipherInputStream.createFor(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    } catch (InvalidMessageException e) {
+      hitCorrectException = e.getCause() instanceof InvalidMacException;
+    } finally {
+      if (cipherFile != null) cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
   public void test_sticker_decryptFailOnBadMac() throws IOException {
     boolean hitCorrectException = false;
 
@@ -212,6 +366,12 @@ public class AttachmentCipherTest extends TestCase {
     return new EncryptResult(outputStream.toByteArray(), encryptStream.getTransmittedDigest());
   }
 
+  private static void writeInChunks(OutputStream outputStream, byte[] data, int chunkSize) throws IOException {
+    for (int offset = 0; offset < data.length; offset += chunkSize) {
+      outputStream.write(data, offset, Math.min(chunkSize, data.length - offset));
+    }
+  }
+
   private static File writeToFile(byte[] data) throws IOException {
     File         file         = File.createTempFile("temp", ".data");
     OutputStream outputStream = new FileOutputStream(file);
@@ -0,0 +1,323 @@
+package org.whispersystems.signalservice.api.messages.multidevice;
+
+import com.google.protobuf.CodedOutputStream;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentStream;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class ChunkedInputStreamTest extends TestCase {
+
+  // Around and across the 8192 byte buffers on both sides
+  private static final int[] AVATAR_SIZES = {1, 100, 8191, 8193, 3 * 8192 + 5};
+
+  private File spoolDirectory;
+
+  @Override
+  protected void setUp() throws Exception {
+    spoolDirectory = File.createTempFile("spool", "");
+    assertTrue(spoolDirectory.delete());
+    assertTrue(spoolDirectory.mkdir());
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File file : spoolDirectory.listFiles()) {
+      file.delete();
+    }
+
+    spoolDirectory.delete();
+  }
+
+  public void testContactsStreamingAvatars() throws Exception {
+    final List<byte[]> avatars  = createAvatars();
+    byte[]             contacts = writeContacts(avatars);
+    final List<byte[]> read     = new LinkedList<byte[]>();
+
+    DeviceContactsInputStream in = new DeviceContactsInputStream(new ByteArrayInputStream(contacts), ChunkedInputStream.AvatarMode.STREAM, null);
+
+    int count = in.readAll(new DeviceContactsInputStream.Listener() {
+      @Override
+      public void onContact(DeviceContact contact) throws Exception {
+        int index = read.size();
+
+        assertEquals(getNumber(index), contact.getNumber());
+        assertEquals(avatars.get(index).length, contact.getAvatar().get().getLength());
+
+        // Leave some avatars unread or half read, for the next read to skip past
+        if      (index % 3 == 0) read.add(readAll(contact.getAvatar().get().getInputStream()));
+        else if (index % 3 == 1) read.add(readPartially(contact.getAvatar().get().getInputStream()));
+        else                     read.add(null);
+      }
+    });
+
+    assertEquals(avatars.size(), count);
+
+    for (int i = 0; i < avatars.size(); i += 3) {
+      assertTrue(Arrays.equals(avatars.get(i), read.get(i)));
+    }
+  }
+
+  public void testContactsSkippingAvatars() throws Exception {
+    List<byte[]>        avatars  = createAvatars();
+    List<DeviceContact> contacts = new DeviceContactsInputStream(new ByteArrayInputStream(writeContacts(avatars)), ChunkedInputStream.AvatarMode.SKIP, null).readAll();
+
+    assertEquals(avatars.size(), contacts.size());
+
+    for (int i = 0; i < contacts.size(); i++) {
+      assertEquals(getNumber(i), contacts.get(i).getNumber());
+      assertFalse(contacts.get(i).getAvatar().isPresent());
+    }
+  }
+
+  public void testContactsSpoolingAvatars() throws Exception {
+    List<byte[]>        avatars  = createAvatars();
+    List<DeviceContact> contacts = new DeviceContactsInputStream(new ByteArrayInputStream(writeContacts(avatars)), ChunkedInputStream.AvatarMode.SPOOL, spoolDirectory).readAll();
+
+    assertEquals(avatars.size(), contacts.size());
+    assertEquals(avatars.size(), spoolDirectory.listFiles().length);
+
+    for (int i = 0; i < contacts.size(); i++) {
+      assertEquals(getNumber(i), contacts.get(i).getNumber());
+      InputStream avatar = contacts.get(i).getAvatar().get().getInputStream();
+      assertTrue(Arrays.equals(avatars.get(i), readAll(avatar)));
+      avatar.close();
+    }
+
+    assertEquals(0, spoolDirectory.listFiles().length);
+  }
+
+  public void testGroupsWithAvatars() throws Exception {
+    List<byte[]> avatars = createAvatars();
+    byte[]       groups  = writeGroups(avatars);
+
+    final List<byte[]> streamed = new LinkedList<byte[]>();
+
+    int count = new DeviceGroupsInputStream(new ByteArrayInputStream(groups), ChunkedInputStream.AvatarMode.STREAM, null).readAll(new DeviceGroupsInputStream.Listener() {
+      @Override
+      public void onGroup(DeviceGroup group) throws Exception {
+        assertEquals(streamed.size(), group.getId()[0]);
+        streamed.add(streamed.size() % 2 == 0 ? readAll(group.getAvatar().get().getInputStream()) : null);
+      }
+    });
+
+    assertEquals(avatars.size(), count);
+
+    for (int i = 0; i < avatars.size(); i += 2) {
+      assertTrue(Arrays.equals(avatars.get(i), streamed.get(i)));
+    }
+
+    List<DeviceGroup> skipped = new DeviceGroupsInputStream(new ByteArrayInputStream(groups), ChunkedInputStream.AvatarMode.SKIP, null).readAll();
+
+    assertEquals(avatars.size(), skipped.size());
+
+    for (int i = 0; i < skipped.size(); i++) {
+      assertEquals(i, skipped.get(i).getId()[0]);
+      assertFalse(skipped.get(i).getAvatar().isPresent());
+    }
+
+    List<DeviceGroup> spooled = new DeviceGroupsInputStream(new ByteArrayInputStream(groups), ChunkedInputStream.AvatarMode.SPOOL, spoolDirectory).readAll();
+
+    assertEquals(avatars.size(), spooled.size());
+
+    for (int i = 0; i < spooled.size(); i++) {
+      assertEquals(i, spooled.get(i).getId()[0]);
+      InputStream avatar = spooled.get(i).getAvatar().get().getInputStream();
+      assertTrue(Arrays.equals(avatars.get(i), readAll(avatar)));
+      avatar.close();
+    }
+
+    assertEquals(0, spoolDirectory.listFiles().length);
+  }
+
+  public void testContactsTruncatedInAvatar() throws Exception {
+    List<byte[]> avatars   = createAvatars();
+    byte[]       contacts  = writeContacts(avatars);
+    byte[]       truncated = Arrays.copyOf(contacts, contacts.length - avatars.get(avatars.size() - 1).length / 2);
+    int          complete  = avatars.size() - 1;
+
+    List<DeviceContact> skipped = new DeviceContactsInputStream(new ByteArrayInputStream(truncated), ChunkedInputStream.AvatarMode.SKIP, null).readAll();
+    assertEquals(complete, skipped.size());
+
+    List<DeviceContact> spooled = new DeviceContactsInputStream(new ByteArrayInputStream(truncated), ChunkedInputStream.AvatarMode.SPOOL, spoolDirectory).readAll();
+    assertEquals(complete, spooled.size());
+
+    for (DeviceContact contact : spooled) {
+      contact.getAvatar().get().getInputStream().close();
+    }
+
+    assertEquals(0, spoolDirectory.listFiles().length);
+
+    // A streamed avatar can only end early, after which there's nothing more to read
+    final List<Integer> lengths = new LinkedList<Integer>();
+
+    int count = new DeviceContactsInputStream(new ByteArrayInputStream(truncated), ChunkedInputStream.AvatarMode.STREAM, null).readAll(new DeviceContactsInputStream.Listener() {
+      @Override
+      public void onContact(DeviceContact contact) throws Exception {
+        lengths.add(readAll(contact.getAvatar().get().getInputStream()).length);
+      }
+    });
+
+    assertEquals(avatars.size(), count);
+    assertEquals(avatars.get(complete).length - avatars.get(complete).length / 2, (int) lengths.get(complete));
+  }
+
+  public void testContactsTruncatedInDetails() throws Exception {
+    List<byte[]> avatars  = createAvatars();
+    byte[]       contacts = writeContacts(avatars.subList(0, avatars.size() - 1));
+    byte[]       all      = writeContacts(avatars);
+
+    for (ChunkedInputStream.AvatarMode mode : ChunkedInputStream.AvatarMode.values()) {
+      for (int extra : new int[] {2, 4, 10}) {
+        byte[]              truncated = Arrays.copyOf(all, contacts.length + extra);
+        List<DeviceContact> read      = new DeviceContactsInputStream(new ByteArrayInputStream(truncated), mode, spoolDirectory).readAll();
+
+        assertEquals(avatars.size() - 1, read.size());
+
+        for (DeviceContact contact : read) {
+          if (contact.getAvatar().isPresent()) contact.getAvatar().get().getInputStream().close();
+        }
+      }
+    }
+
+    assertEquals(0, spoolDirectory.listFiles().length);
+  }
+
+  public void testVarints() throws Exception {
+    int[]                 values = {0, 1, 127, 128, 300, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+    ByteArrayOutputStream bytes  = new ByteArrayOutputStream();
+    ChunkedOutputStream   out    = new ChunkedOutputStream(bytes);
+
+    for (int value : values) {
+      out.writeVarint32(value);
+    }
+
+    out.flush();
+
+    // Protobuf sign extends negative int32s to ten bytes
+    CodedOutputStream coded = CodedOutputStream.newInstance(bytes);
+    coded.writeInt32NoTag(-2);
+    coded.flush();
+
+    ChunkedInputStream in = new ChunkedInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+    for (int value : values) {
+      assertEquals(value, in.readRawVarint32());
+    }
+
+    assertEquals(-2, in.readRawVarint32());
+
+    try {
+      in.readRawVarint32();
+      fail();
+    } catch (EOFException e) {
+      // Expected
+    }
+  }
+
+  public void testTruncatedAndMalformedVarints() throws Exception {
+    try {
+      new ChunkedInputStream(new ByteArrayInputStream(new byte[] {(byte) 0x80, (byte) 0x80})).readRawVarint32();
+      fail();
+    } catch (EOFException e) {
+      // Expected
+    }
+
+    byte[] malformed = new byte[10];
+    Arrays.fill(malformed, (byte) 0x80);
+
+    try {
+      new ChunkedInputStream(new ByteArrayInputStream(malformed)).readRawVarint32();
+      fail();
+    } catch (EOFException e) {
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private static List<byte[]> createAvatars() {
+    List<byte[]> avatars = new LinkedList<byte[]>();
+
+    for (int size : AVATAR_SIZES) {
+      avatars.add(Util.getSecretBytes(size));
+    }
+
+    for (int size : AVATAR_SIZES) {
+      avatars.add(Util.getSecretBytes(size));
+    }
+
+    return avatars;
+  }
+
+  private static String getNumber(int index) {
+    return "+1415555" + (1000 + index);
+  }
+
+  private static byte[] writeContacts(List<byte[]> avatars) throws IOException {
+    ByteArrayOutputStream      bytes = new ByteArrayOutputStream();
+    DeviceContactsOutputStream out   = new DeviceContactsOutputStream(bytes);
+
+    for (int i = 0; i < avatars.size(); i++) {
+      out.write(new DeviceContact(getNumber(i), Optional.of("Contact " + i), Optional.of(createAttachment(avatars.get(i))),
+                                  Optional.<String>absent(), Optional.<VerifiedMessage>absent(), Optional.<byte[]>absent(),
+                                  false, Optional.<Integer>absent()));
+    }
+
+    out.close();
+
+    return bytes.toByteArray();
+  }
+
+  private static byte[] writeGroups(List<byte[]> avatars) throws IOException {
+    ByteArrayOutputStream    bytes = new ByteArrayOutputStream();
+    DeviceGroupsOutputStream out   = new DeviceGroupsOutputStream(bytes);
+
+    for (int i = 0; i < avatars.size(); i++) {
+      out.write(new DeviceGroup(new byte[] {(byte) i}, Optional.of("Group " + i), Arrays.asList(getNumber(i)), Arrays.asList(getNumber(i)),
+                                Optional.of(createAttachment(avatars.get(i))), true, Optional.<Integer>absent(), Optional.<String>absent(), false));
+
+      // Group avatars aren't written at the moment, so add them the way they'd be written
+      out.flush();
+      bytes.write(avatars.get(i));
+    }
+
+    out.close();
+
+    return bytes.toByteArray();
+  }
+
+  private static SignalServiceAttachmentStream createAttachment(byte[] avatar) {
+    return new SignalServiceAttachmentStream(new ByteArrayInputStream(avatar), "image/png", avatar.length, Optional.<String>absent(), false, null);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static byte[] readPartially(InputStream in) throws IOException {
+    byte[] buffer = new byte[1];
+    Util.readFully(in, buffer);
+    return buffer;
+  }
+}
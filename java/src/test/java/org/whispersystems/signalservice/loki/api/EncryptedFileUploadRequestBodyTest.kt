@@ -0,0 +1,67 @@
+package org.whispersystems.signalservice.loki.api
+
+import junit.framework.TestCase
+import okhttp3.MediaType
+import okhttp3.MultipartBody
+import okhttp3.RequestBody
+import okhttp3.internal.http.UnrepeatableRequestBody
+import okio.Buffer
+import org.whispersystems.libsignal.loki.DiffieHellman
+import org.whispersystems.signalservice.internal.util.Base64
+import org.whispersystems.signalservice.internal.util.JsonUtil
+import org.whispersystems.signalservice.internal.util.Util
+
+class EncryptedFileUploadRequestBodyTest : TestCase() {
+
+    private val symmetricKey = Util.getSecretBytes(32)
+    private val endpoint = "files"
+    private val method = "POST"
+    private val headers = mapOf("Authorization" to "Bearer loki")
+
+    private fun createMultipartBody(fileSize: Int): MultipartBody {
+        return MultipartBody.Builder()
+            .setType(MultipartBody.FORM)
+            .addFormDataPart("type", "network.loki")
+            .addFormDataPart("content", "attachment", RequestBody.create(MediaType.get("application/binary"), Util.getSecretBytes(fileSize)))
+            .build()
+    }
+
+    private fun assertRoundTrips(fileSize: Int) {
+        val multipartBody = createMultipartBody(fileSize)
+        val otherParametersAsJSON = JsonUtil.toJson(mapOf("endpoint" to endpoint, "method" to method, "headers" to headers))
+        val requestBody = EncryptedFileUploadRequestBody(multipartBody, otherParametersAsJSON, symmetricKey)
+        val sink = Buffer()
+        requestBody.writeTo(sink)
+        assertEquals(requestBody.contentLength(), sink.size())
+        val cipherText64 = JsonUtil.fromJson(sink.readUtf8()).get("cipherText64").asText()
+        val plaintext = DiffieHellman.decrypt(Base64.decode(cipherText64), symmetricKey).toString(Charsets.UTF_8)
+        val multipart = Buffer()
+        multipartBody.writeTo(multipart)
+        val fileUpload = Base64.encodeBytes(multipart.readByteArray())
+        assertEquals(fileUpload, JsonUtil.fromJson(plaintext).get("body").get("fileUpload").asText())
+        // Before uploads were streamed, the body was built as nested JSON in memory
+        val oldPlaintext = JsonUtil.toJson(mapOf("body" to mapOf("fileUpload" to fileUpload), "endpoint" to endpoint, "method" to method, "headers" to headers))
+        assertEquals(oldPlaintext, plaintext)
+    }
+
+    fun testEmptyFile() {
+        assertRoundTrips(0)
+    }
+
+    fun testSmallFiles() {
+        for (fileSize in listOf(1, 2, 3, 15, 16, 17, 1000)) { assertRoundTrips(fileSize) }
+    }
+
+    fun testFilesAroundBufferSize() {
+        for (fileSize in listOf(8191, 8192, 8193, 3 * 8192)) { assertRoundTrips(fileSize) }
+    }
+
+    fun testLargeFile() {
+        assertRoundTrips(3 * 1024 * 1024)
+    }
+
+    fun testIsUnrepeatable() {
+        val requestBody = EncryptedFileUploadRequestBody(createMultipartBody(16), "{}", symmetricKey)
+        assertTrue(requestBody is UnrepeatableRequestBody)
+    }
+}
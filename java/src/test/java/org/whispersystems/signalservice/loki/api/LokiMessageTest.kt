@@ -0,0 +1,57 @@
+package org.whispersystems.signalservice.loki.api
+
+import junit.framework.TestCase
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope
+import org.whispersystems.signalservice.internal.util.Base64
+import org.whispersystems.signalservice.loki.crypto.ProofOfWork
+import org.whispersystems.signalservice.loki.messaging.SignalMessageInfo
+
+@kotlin.ExperimentalUnsignedTypes
+class LokiMessageTest : TestCase() {
+
+    private fun createMessage(timestamp: Long): SignalMessageInfo {
+        val content = Base64.encodeBytes(ByteArray(256) { it.toByte() })
+        return SignalMessageInfo(Envelope.Type.CIPHERTEXT, timestamp, "05" + "a".repeat(64), 1, content, "05" + "b".repeat(64), null, false)
+    }
+
+    fun testPrecalculatedMessageSendsWithoutRecalculating() {
+        val message = createMessage(1)
+        val precalculatedMessage = LokiMessage.precalculatePoW(message).get()
+        val searchCount = ProofOfWork.getSearchCount()
+        val lokiMessage = LokiMessage.forSending(message)!!
+        assertEquals(precalculatedMessage.data, lokiMessage.data)
+        assertEquals(precalculatedMessage.timestamp, lokiMessage.timestamp)
+        val lokiMessageWithPoW = lokiMessage.calculatePoW(lokiMessage.timestamp).get()
+        assertEquals(precalculatedMessage.nonce, lokiMessageWithPoW.nonce)
+        assertEquals(searchCount, ProofOfWork.getSearchCount())
+    }
+
+    fun testPrecalculatedMessageIsOnlyUsedOnce() {
+        val message = createMessage(2)
+        val precalculatedMessage = LokiMessage.precalculatePoW(message).get()
+        assertEquals(precalculatedMessage.data, LokiMessage.forSending(message)!!.data)
+        val lokiMessage = LokiMessage.forSending(message)!!
+        assertNull(lokiMessage.timestamp)
+        assertFalse(precalculatedMessage.data == lokiMessage.data)
+    }
+
+    fun testRecalculatingAtHigherDifficultyResumes() {
+        val lokiMessage = LokiMessage.from(createMessage(3))!!
+        val powDifficulty = LokiAPI.powDifficulty
+        try {
+            val first = lokiMessage.calculatePoW(1000).get()
+            val searchCount = ProofOfWork.getSearchCount()
+            assertEquals(first.nonce, lokiMessage.calculatePoW(1000).get().nonce)
+            assertEquals(searchCount, ProofOfWork.getSearchCount())
+            LokiAPI.powDifficulty = powDifficulty * 4
+            val second = lokiMessage.calculatePoW(1000).get()
+            assertTrue(Base64.decode(second.nonce).toLong() >= Base64.decode(first.nonce).toLong())
+        } finally {
+            LokiAPI.powDifficulty = powDifficulty
+        }
+    }
+
+    private fun ByteArray.toLong(): Long {
+        return java.nio.ByteBuffer.wrap(this).long
+    }
+}
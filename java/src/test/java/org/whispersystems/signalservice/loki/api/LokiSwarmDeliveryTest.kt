@@ -0,0 +1,175 @@
+package org.whispersystems.signalservice.loki.api
+
+import junit.framework.TestCase
+import nl.komponents.kovenant.Deferred
+import nl.komponents.kovenant.deferred
+import java.util.concurrent.CancellationException
+
+class LokiSwarmDeliveryTest : TestCase() {
+
+    private val byteCount = 1000
+    private val targets = (1..3).map { LokiAPITarget("https://127.0.0.$it", 443, null) }
+
+    /**
+     * Stands in for the snode requests, which are settled by the tests. A request that gets cancelled fails the way
+     * `LokiHTTPClient` fails it.
+     */
+    private class FakeSnodes {
+        val requests = mutableListOf<Request>()
+
+        class Request(val target: LokiAPITarget, val cancellation: LokiHTTPClient.Cancellation, val deferred: Deferred<RawResponse, Exception>)
+
+        fun send(target: LokiAPITarget, cancellation: LokiHTTPClient.Cancellation): RawResponsePromise {
+            val request = Request(target, cancellation, deferred())
+            synchronized(this) { requests.add(request) }
+            return request.deferred.promise
+        }
+
+        fun getRequestCount(): Int { return synchronized(this) { requests.count() } }
+
+        fun getRequest(index: Int): Request { return synchronized(this) { requests[index] } }
+
+        fun succeed(index: Int) { getRequest(index).deferred.resolve(mapOf("difficulty" to 1)) }
+
+        fun fail(index: Int) { getRequest(index).deferred.reject(Exception("Snode unreachable.")) }
+
+        fun failCancelledRequests() {
+            synchronized(this) { requests.toList() }.filter { it.cancellation.isCancelled }.forEach { request ->
+                try { request.deferred.reject(CancellationException()) } catch (e: Exception) { /* Already settled */ }
+            }
+        }
+    }
+
+    private class MetricsSnapshot(metrics: LokiDeliveryMetrics) {
+        val messageCount = metrics.getMessageCount()
+        val deliveredMessageCount = metrics.getDeliveredMessageCount()
+        val requestCount = metrics.getRequestCount()
+        val cancelledRequestCount = metrics.getCancelledRequestCount()
+        val skippedRequestCount = metrics.getSkippedRequestCount()
+        val byteCount = metrics.getByteCount()
+    }
+
+    private fun waitUntil(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!condition()) {
+            if (System.currentTimeMillis() > deadline) { fail("Timed out.") }
+            Thread.sleep(10)
+        }
+    }
+
+    /**
+     * Waits for every promise to settle, and returns the ones that succeeded.
+     */
+    private fun settle(promises: List<RawResponsePromise>): List<Boolean> {
+        return promises.map { promise ->
+            try {
+                promise.get()
+                true
+            } catch (e: Exception) {
+                false
+            }
+        }
+    }
+
+    private fun isCancelled(promise: RawResponsePromise): Boolean {
+        return try { promise.get(); false } catch (e: CancellationException) { true } catch (e: Exception) { false }
+    }
+
+    private fun assertMetrics(strategy: LokiDeliveryStrategy, before: MetricsSnapshot, delivered: Long, requests: Long, cancelled: Long, skipped: Long) {
+        val metrics = LokiSwarmDelivery.getMetrics(strategy)
+        waitUntil { metrics.getDeliveredMessageCount() - before.deliveredMessageCount == delivered }
+        assertEquals(1, metrics.getMessageCount() - before.messageCount)
+        assertEquals(requests, metrics.getRequestCount() - before.requestCount)
+        assertEquals(cancelled, metrics.getCancelledRequestCount() - before.cancelledRequestCount)
+        assertEquals(skipped, metrics.getSkippedRequestCount() - before.skippedRequestCount)
+        assertEquals(requests * byteCount, metrics.getByteCount() - before.byteCount)
+    }
+
+    fun testFanOutLetsEveryRequestFinish() {
+        val strategy = LokiDeliveryStrategy.FanOut
+        val before = MetricsSnapshot(LokiSwarmDelivery.getMetrics(strategy))
+        val snodes = FakeSnodes()
+        val promises = LokiSwarmDelivery(strategy, targets, byteCount, snodes::send).start()
+        assertEquals(3, snodes.getRequestCount())
+        snodes.succeed(1)
+        snodes.fail(0)
+        snodes.succeed(2)
+        assertEquals(listOf(false, true, true), settle(promises))
+        assertFalse(snodes.requests.any { it.cancellation.isCancelled })
+        assertMetrics(strategy, before, 1, 3, 0, 0)
+    }
+
+    fun testFirstSuccessCancelsTheOtherRequests() {
+        val strategy = LokiDeliveryStrategy.FirstSuccess
+        val before = MetricsSnapshot(LokiSwarmDelivery.getMetrics(strategy))
+        val snodes = FakeSnodes()
+        val promises = LokiSwarmDelivery(strategy, targets, byteCount, snodes::send).start()
+        assertEquals(3, snodes.getRequestCount())
+        snodes.succeed(1)
+        waitUntil { snodes.getRequest(0).cancellation.isCancelled && snodes.getRequest(2).cancellation.isCancelled }
+        snodes.failCancelledRequests()
+        assertEquals(listOf(false, true, false), settle(promises))
+        assertTrue(isCancelled(promises[0]))
+        assertTrue(isCancelled(promises[2]))
+        assertMetrics(strategy, before, 1, 3, 2, 0)
+    }
+
+    fun testFirstSuccessWithEveryRequestFailing() {
+        val strategy = LokiDeliveryStrategy.FirstSuccess
+        val before = MetricsSnapshot(LokiSwarmDelivery.getMetrics(strategy))
+        val snodes = FakeSnodes()
+        val promises = LokiSwarmDelivery(strategy, targets, byteCount, snodes::send).start()
+        targets.indices.forEach { snodes.fail(it) }
+        assertEquals(listOf(false, false, false), settle(promises))
+        assertMetrics(strategy, before, 0, 3, 0, 0)
+    }
+
+    fun testHedgedStartsTheNextRequestAfterTheDelay() {
+        val strategy = LokiDeliveryStrategy.Hedged(100)
+        val before = MetricsSnapshot(LokiSwarmDelivery.getMetrics(strategy))
+        val snodes = FakeSnodes()
+        val promises = LokiSwarmDelivery(strategy, targets, byteCount, snodes::send).start()
+        assertEquals(1, snodes.getRequestCount())
+        waitUntil { snodes.getRequestCount() == 2 }
+        snodes.succeed(1)
+        waitUntil { snodes.getRequest(0).cancellation.isCancelled }
+        snodes.failCancelledRequests()
+        assertEquals(listOf(false, true, false), settle(promises))
+        assertTrue(isCancelled(promises[0]))
+        assertTrue(isCancelled(promises[2]))
+        // The third request was skipped rather than made
+        Thread.sleep(300)
+        assertEquals(2, snodes.getRequestCount())
+        assertEquals(targets[1], snodes.getRequest(1).target)
+        assertMetrics(strategy, before, 1, 2, 1, 1)
+    }
+
+    fun testHedgedStartsTheNextRequestWhenOneFails() {
+        val strategy = LokiDeliveryStrategy.Hedged(60 * 1000)
+        val before = MetricsSnapshot(LokiSwarmDelivery.getMetrics(strategy))
+        val snodes = FakeSnodes()
+        val promises = LokiSwarmDelivery(strategy, targets, byteCount, snodes::send).start()
+        assertEquals(1, snodes.getRequestCount())
+        snodes.fail(0)
+        waitUntil { snodes.getRequestCount() == 2 }
+        snodes.fail(1)
+        waitUntil { snodes.getRequestCount() == 3 }
+        snodes.succeed(2)
+        assertEquals(listOf(false, false, true), settle(promises))
+        assertMetrics(strategy, before, 1, 3, 0, 0)
+    }
+
+    fun testHedgedWithEveryRequestFailing() {
+        val strategy = LokiDeliveryStrategy.Hedged(60 * 1000)
+        val before = MetricsSnapshot(LokiSwarmDelivery.getMetrics(strategy))
+        val snodes = FakeSnodes()
+        val promises = LokiSwarmDelivery(strategy, targets, byteCount, snodes::send).start()
+        for (index in targets.indices) {
+            waitUntil { snodes.getRequestCount() == index + 1 }
+            snodes.fail(index)
+        }
+        assertEquals(listOf(false, false, false), settle(promises))
+        assertEquals(3, snodes.getRequestCount())
+        assertMetrics(strategy, before, 0, 3, 0, 0)
+    }
+}
@@ -0,0 +1,86 @@
+package org.whispersystems.signalservice.loki.messaging
+
+import com.google.protobuf.ByteString
+import junit.framework.TestCase
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope
+import org.whispersystems.signalservice.internal.util.Base64
+import org.whispersystems.signalservice.internal.util.Util
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketMessage
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage
+
+class LokiMessageWrapperTest : TestCase() {
+
+    private val senderID = "05" + "a".repeat(64)
+    private val recipientID = "05" + "b".repeat(64)
+
+    private fun createMessage(type: Envelope.Type, contentSize: Int, senderDeviceID: Int = 1): SignalMessageInfo {
+        val content = Base64.encodeBytes(Util.getSecretBytes(contentSize))
+        return SignalMessageInfo(type, 1565000000000L + contentSize, senderID, senderDeviceID, content, recipientID, null, false)
+    }
+
+    /**
+     * Builds the message the way it was built before `wrap` wrote it by hand, using the request ID `wrap` picked.
+     */
+    private fun wrapWithBuilders(message: SignalMessageInfo, id: Long): ByteArray {
+        val envelope = Envelope.newBuilder()
+            .setType(message.type)
+            .setTimestamp(message.timestamp)
+            .setSource(message.senderID)
+            .setSourceDevice(message.senderDeviceID)
+            .setContent(ByteString.copyFrom(Base64.decode(message.content)))
+            .build()
+        val request = WebSocketRequestMessage.newBuilder()
+            .setVerb("PUT")
+            .setPath("/api/v1/message")
+            .setId(id)
+            .setBody(envelope.toByteString())
+            .build()
+        return WebSocketMessage.newBuilder()
+            .setType(WebSocketMessage.Type.REQUEST)
+            .setRequest(request)
+            .build()
+            .toByteArray()
+    }
+
+    private fun assertMatchesBuilders(message: SignalMessageInfo) {
+        val data = LokiMessageWrapper.wrap(message)
+        val id = WebSocketMessage.parseFrom(data).request.id
+        assertTrue(wrapWithBuilders(message, id).contentEquals(data))
+        val envelope = LokiMessageWrapper.unwrap(data)
+        assertEquals(message.type, envelope.type)
+        assertEquals(message.timestamp, envelope.timestamp)
+        assertEquals(message.senderID, envelope.source)
+        assertEquals(message.senderDeviceID, envelope.sourceDevice)
+        assertEquals(message.content, Base64.encodeBytes(envelope.content.toByteArray()))
+    }
+
+    fun testContentSizes() {
+        // Including the sizes where the length prefixes of the nested messages grow by a byte
+        for (contentSize in listOf(0, 1, 100, 127, 128, 16383, 16384, 100000)) {
+            assertMatchesBuilders(createMessage(Envelope.Type.CIPHERTEXT, contentSize))
+        }
+    }
+
+    fun testEnvelopeTypes() {
+        for (type in listOf(Envelope.Type.CIPHERTEXT, Envelope.Type.PREKEY_BUNDLE, Envelope.Type.RECEIPT, Envelope.Type.UNIDENTIFIED_SENDER,
+            Envelope.Type.FRIEND_REQUEST)) {
+            assertMatchesBuilders(createMessage(type, 256))
+        }
+    }
+
+    fun testSenderDeviceIDs() {
+        for (senderDeviceID in listOf(0, 1, 127, 128, Int.MAX_VALUE)) {
+            assertMatchesBuilders(createMessage(Envelope.Type.CIPHERTEXT, 64, senderDeviceID))
+        }
+    }
+
+    fun testInvalidContent() {
+        val message = createMessage(Envelope.Type.CIPHERTEXT, 16).copy(content = "not base 64!")
+        try {
+            LokiMessageWrapper.wrap(message)
+            fail()
+        } catch (e: LokiMessageWrapper.Error) {
+            assertEquals(LokiMessageWrapper.Error.FailedToWrapMessageInEnvelope, e)
+        }
+    }
+}